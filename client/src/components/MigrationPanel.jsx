@@ -89,6 +89,7 @@ function MigrationPanel({ migrations, nodes }) {
             >
               <option value="WEAK">Weak (Code only)</option>
               <option value="STRONG">Strong (Code + State)</option>
+              <option value="PRECOPY">Pre-copy (Live, Code + State)</option>
             </select>
           </div>
         </div>
@@ -0,0 +1,172 @@
+package com.htpt.migration.config;
+
+import com.htpt.migration.util.PayloadCompression;
+import com.htpt.migration.util.PayloadCompression.Codec;
+import jakarta.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Nén STOMP message phía broker (Coordinator).
+ *
+ * Worker gửi header accept-encoding trong frame CONNECT; session đó được
+ * gán codec đầu tiên trong node.compression.codecs mà worker nhận được, và
+ * message tới session (clientOutboundChannel) lớn hơn ngưỡng được nén.
+ * Message worker gửi lên đã nén (content-type ...;codec=) được giải nén ở
+ * clientInboundChannel trước khi tới @MessageMapping. Browser không gửi
+ * accept-encoding nên vẫn nhận JSON như cũ.
+ */
+@Component
+@Slf4j
+public class StompCompression {
+
+    // Thứ tự ưu tiên khi worker nhận nhiều codec; rỗng / "none" = tắt
+    @Value("${node.compression.codecs:gzip,deflate}")
+    private String codecs;
+
+    @Value("${node.compression.threshold-bytes:1024}")
+    private int thresholdBytes;
+
+    @Value("${node.compression.level:6}")
+    private int level;
+
+    @Value("${node.compression.max-inflated-bytes:67108864}")
+    private long maxInflatedBytes;
+
+    private List<Codec> acceptedCodecs;
+    private PayloadCompression compression;
+
+    // sessionId -> codec đã thỏa thuận với worker của session đó
+    private final Map<String, Codec> sessionCodecs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        acceptedCodecs = Codec.parseList(codecs);
+        compression = new PayloadCompression(
+            thresholdBytes,
+            level,
+            maxInflatedBytes
+        );
+    }
+
+    // Gửi cho worker trong /registered: worker chỉ nén khi codec của nó có ở đây
+    public List<String> getAcceptedCodecs() {
+        return acceptedCodecs.stream().map(Codec::id).toList();
+    }
+
+    public ChannelInterceptor inbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(
+                    message,
+                    StompHeaderAccessor.class
+                );
+                if (accessor == null || accessor.getCommand() == null) {
+                    return message;
+                }
+                return switch (accessor.getCommand()) {
+                    case CONNECT, STOMP -> {
+                        negotiate(accessor);
+                        yield message;
+                    }
+                    case DISCONNECT -> {
+                        sessionCodecs.remove(accessor.getSessionId());
+                        yield message;
+                    }
+                    case SEND -> inflate(message, accessor);
+                    default -> message;
+                };
+            }
+        };
+    }
+
+    public ChannelInterceptor outbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                SimpMessageHeaderAccessor accessor =
+                    MessageHeaderAccessor.getAccessor(
+                        message,
+                        SimpMessageHeaderAccessor.class
+                    );
+                if (
+                    accessor == null ||
+                    accessor.getMessageType() != SimpMessageType.MESSAGE ||
+                    !(message.getPayload() instanceof byte[] body)
+                ) {
+                    return message;
+                }
+                Codec codec = sessionCodecs.get(accessor.getSessionId());
+                byte[] compressed = codec != null
+                    ? compression.compress(body, codec)
+                    : null;
+                if (compressed == null) {
+                    return message;
+                }
+                SimpMessageHeaderAccessor headers = accessor.isMutable()
+                    ? accessor
+                    : SimpMessageHeaderAccessor.wrap(message);
+                headers.setContentType(PayloadCompression.mimeType(codec));
+                return MessageBuilder.createMessage(
+                    compressed,
+                    headers.getMessageHeaders()
+                );
+            }
+        };
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("codecs", getAcceptedCodecs());
+        stats.put("compressedSessions", sessionCodecs.size());
+        stats.putAll(compression.getStats());
+        return stats;
+    }
+
+    private void negotiate(StompHeaderAccessor accessor) {
+        List<Codec> offered = Codec.parseList(
+            accessor.getFirstNativeHeader(PayloadCompression.ACCEPT_HEADER)
+        );
+        acceptedCodecs
+            .stream()
+            .filter(offered::contains)
+            .findFirst()
+            .ifPresent(codec -> {
+                sessionCodecs.put(accessor.getSessionId(), codec);
+                log.debug(
+                    "Session {} negotiated {} compression",
+                    accessor.getSessionId(),
+                    codec.id()
+                );
+            });
+    }
+
+    private Message<?> inflate(Message<?> message, StompHeaderAccessor accessor) {
+        Codec codec = PayloadCompression.codecOf(accessor.getContentType());
+        if (codec == null || !(message.getPayload() instanceof byte[] body)) {
+            return message;
+        }
+        byte[] inflated = compression.decompress(body, codec);
+        StompHeaderAccessor headers = accessor.isMutable()
+            ? accessor
+            : StompHeaderAccessor.wrap(message);
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        headers.setContentLength(inflated.length);
+        return MessageBuilder.createMessage(inflated, headers.getMessageHeaders());
+    }
+}
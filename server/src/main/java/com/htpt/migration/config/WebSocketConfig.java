@@ -1,27 +1,73 @@
 package com.htpt.migration.config;
 
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 @Configuration
 @EnableWebSocketMessageBroker
+@RequiredArgsConstructor
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    private final StompCompression stompCompression;
+
+    // Frame lớn nhất nhận được; payload lớn hơn một chunk đi theo chunk
+    // (node.transfer.chunk-size-bytes) nên chỉ cần lớn hơn một chunk
+    @Value("${node.transfer.max-frame-bytes:262144}")
+    private int maxFrameBytes;
+
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container =
+            new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(maxFrameBytes);
+        container.setMaxBinaryMessageBufferSize(maxFrameBytes);
+        return container;
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         // Prefix cho messages từ server -> client
         config.enableSimpleBroker("/topic", "/queue");
         // Prefix cho messages từ client -> server
         config.setApplicationDestinationPrefixes("/app");
+        // Giữ thứ tự message gửi tới cùng một session (vd. receive rồi execute)
+        config.setPreservePublishOrder(true);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
+        // Xử lý message của cùng một session theo thứ tự gửi (vd. ack
+        // "executing" của migration tới trước execution-complete)
+        registry.setPreserveReceiveOrder(true);
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
     }
+
+    @Override
+    public void configureWebSocketTransport(
+        WebSocketTransportRegistration registration
+    ) {
+        registration.setMessageSizeLimit(maxFrameBytes);
+    }
+
+    // Nén / giải nén message với worker đã thỏa thuận codec (StompCompression)
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(stompCompression.inbound());
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(stompCompression.outbound());
+    }
 }
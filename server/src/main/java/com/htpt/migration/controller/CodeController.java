@@ -4,6 +4,7 @@ import com.htpt.migration.dto.CodeDTO;
 import com.htpt.migration.model.CodePackage;
 import com.htpt.migration.service.MigrationService;
 import java.util.Collection;
+import java.util.Map;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.ResponseEntity;
@@ -36,4 +37,16 @@ public class CodeController {
     public ResponseEntity<Collection<CodePackage>> getAllCode() {
         return ResponseEntity.ok(migrationService.getAllCodePackages());
     }
+
+    // Thống kê memo kết quả (package deterministic) trên coordinator
+    @GetMapping("/memo/stats")
+    public ResponseEntity<Map<String, Object>> getMemoStats() {
+        return ResponseEntity.ok(migrationService.getResultMemoStats());
+    }
+
+    // Kho code theo hash: số code, byte code đã gửi / không phải gửi lại
+    @GetMapping("/store/stats")
+    public ResponseEntity<Map<String, Object>> getStoreStats() {
+        return ResponseEntity.ok(migrationService.getCodeStoreStats());
+    }
 }
@@ -0,0 +1,81 @@
+package com.htpt.migration.controller;
+
+import com.htpt.migration.dto.BroadcastRequest;
+import com.htpt.migration.dto.ScatterRequest;
+import com.htpt.migration.model.ClusterJob;
+import com.htpt.migration.service.ClusterExecutionService;
+import java.util.Collection;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/jobs")
+@Profile({ "coordinator", "demo" })
+@RequiredArgsConstructor
+public class JobController {
+
+    private final ClusterExecutionService clusterExecutionService;
+
+    // Chạy code package song song trên các worker (scatter-gather)
+    @PostMapping
+    public ResponseEntity<?> submitJob(@RequestBody ScatterRequest request) {
+        try {
+            return ResponseEntity.ok(clusterExecutionService.submit(request));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(
+                Map.of("error", e.getMessage())
+            );
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    // Chạy cùng package trên mọi worker (hoặc nhóm có label), gom kết quả.
+    // Mặc định chờ tới khi job kết thúc (kể cả PARTIAL do timeout)
+    @PostMapping("/broadcast")
+    public ResponseEntity<?> broadcast(@RequestBody BroadcastRequest request)
+        throws InterruptedException {
+        ClusterJob job;
+        try {
+            job = clusterExecutionService.submitBroadcast(request);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(
+                Map.of("error", e.getMessage())
+            );
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                Map.of("error", e.getMessage())
+            );
+        }
+        if (Boolean.FALSE.equals(request.getWait())) {
+            return ResponseEntity.accepted().body(job);
+        }
+        // checkJobs kiểm tra timeout mỗi giây -> chờ thêm chút cho chắc
+        return ResponseEntity.ok(
+            clusterExecutionService.awaitCompletion(
+                job,
+                job.getTimeoutMs() + 2000
+            )
+        );
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<ClusterJob> getJob(@PathVariable String id) {
+        ClusterJob job = clusterExecutionService.getJob(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(job);
+    }
+
+    @GetMapping
+    public ResponseEntity<Collection<ClusterJob>> getAllJobs() {
+        return ResponseEntity.ok(clusterExecutionService.getAllJobs());
+    }
+}
@@ -40,6 +40,18 @@ public class MigrationController {
         return ResponseEntity.ok(migrationService.getAllMigrations());
     }
 
+    // Request/response đang chờ worker trả lời (theo correlation id)
+    @GetMapping("/requests/stats")
+    public ResponseEntity<Map<String, Object>> getRequestStats() {
+        return ResponseEntity.ok(migrationService.getRequestStats());
+    }
+
+    // Số lần chuyển package trực tiếp (peer) / qua Coordinator (relay)
+    @GetMapping("/transfers/stats")
+    public ResponseEntity<Map<String, Object>> getTransferStats() {
+        return ResponseEntity.ok(migrationService.getTransferStats());
+    }
+
     @PostMapping("/{id}/cancel")
     public ResponseEntity<?> cancelMigration(@PathVariable String id) {
         Migration migration = migrationService.getMigration(id);
@@ -1,11 +1,16 @@
 package com.htpt.migration.controller;
 
+import com.htpt.migration.config.StompCompression;
+import com.htpt.migration.dto.DrainRequest;
 import com.htpt.migration.model.Node;
+import com.htpt.migration.model.NodeDrain;
 import com.htpt.migration.service.CoordinatorService;
+import com.htpt.migration.service.NodeDrainService;
 import java.util.Collection;
 import java.util.Map;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,12 +21,66 @@ import org.springframework.web.bind.annotation.*;
 public class NodeController {
 
     private final CoordinatorService coordinatorService;
+    private final StompCompression stompCompression;
+    private final NodeDrainService nodeDrainService;
 
     @GetMapping
     public ResponseEntity<Collection<Node>> getAllNodes() {
         return ResponseEntity.ok(coordinatorService.getAllNodes());
     }
 
+    // Nén message STOMP phía Coordinator (tới / từ các worker)
+    @GetMapping("/compression/stats")
+    public ResponseEntity<Map<String, Object>> getCompressionStats() {
+        return ResponseEntity.ok(stompCompression.getStats());
+    }
+
+    // Các lần drain gần nhất của mỗi node
+    @GetMapping("/drains")
+    public ResponseEntity<Collection<NodeDrain>> getAllDrains() {
+        return ResponseEntity.ok(nodeDrainService.getAllDrains());
+    }
+
+    // Bảo trì: không chọn node làm target nữa, migrate mọi package ra khỏi
+    // node (song song, có giới hạn); đang drain thì trả về lần drain đó
+    @PostMapping("/{id}/drain")
+    public ResponseEntity<?> drainNode(
+        @PathVariable String id,
+        @RequestBody(required = false) DrainRequest request
+    ) {
+        try {
+            return ResponseEntity.accepted().body(
+                nodeDrainService.drain(id, request)
+            );
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(
+                Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    // Tiến độ / ETA của lần drain gần nhất
+    @GetMapping("/{id}/drain")
+    public ResponseEntity<NodeDrain> getDrain(@PathVariable String id) {
+        NodeDrain drain = nodeDrainService.getDrain(id);
+        if (drain == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(drain);
+    }
+
+    // Bỏ drain: node nhận việc lại, package chưa chuyển thì ở lại
+    @DeleteMapping("/{id}/drain")
+    public ResponseEntity<?> undrainNode(@PathVariable String id) {
+        if (coordinatorService.getNode(id) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        NodeDrain drain = nodeDrainService.undrain(id);
+        return ResponseEntity.ok(
+            drain != null ? drain : Map.of("nodeId", id, "draining", false)
+        );
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<Node> getNode(@PathVariable String id) {
         Node node = coordinatorService.getNode(id);
@@ -0,0 +1,45 @@
+package com.htpt.migration.controller;
+
+import com.htpt.migration.service.WorkerNodeService;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Endpoint worker-to-worker: worker source POST code package (+ state)
+ * thẳng tới worker target thay vì đi vòng qua Coordinator. Package chỉ
+ * mang codeHash mà node chưa có code đó -> 409, source gửi lại kèm code.
+ */
+@RestController
+@RequestMapping("/api/peer")
+@Profile("worker")
+@RequiredArgsConstructor
+public class PeerController {
+
+    private final WorkerNodeService workerNodeService;
+
+    @PostMapping("/packages")
+    public ResponseEntity<Map<String, Object>> receivePackage(
+        @RequestBody Map<String, Object> payload
+    ) {
+        if (
+            payload.get("id") == null ||
+            (payload.get("code") == null && payload.get("codeHash") == null)
+        ) {
+            return ResponseEntity.badRequest().body(
+                Map.of("error", "Package must have id and code or codeHash")
+            );
+        }
+        if (!workerNodeService.acceptPackage(payload)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(
+                Map.of("status", "code-missing", "codeId", payload.get("id"))
+            );
+        }
+        return ResponseEntity.ok(
+            Map.of("status", "received", "codeId", payload.get("id"))
+        );
+    }
+}
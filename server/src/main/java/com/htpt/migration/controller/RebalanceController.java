@@ -0,0 +1,44 @@
+package com.htpt.migration.controller;
+
+import com.htpt.migration.service.RebalancerService;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/rebalancer")
+@Profile({ "coordinator", "demo" })
+@RequiredArgsConstructor
+public class RebalanceController {
+
+    private final RebalancerService rebalancerService;
+
+    // Mode, load (EWMA) từng node, kế hoạch gần nhất và các lần chuyển
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getStatus() {
+        return ResponseEntity.ok(rebalancerService.getStatus());
+    }
+
+    // Dry-run: các lần chuyển nếu chạy chu kỳ ngay bây giờ (không chờ sustain)
+    @GetMapping("/plan")
+    public ResponseEntity<RebalancerService.Plan> previewPlan() {
+        return ResponseEntity.ok(rebalancerService.previewPlan());
+    }
+
+    // Đổi mode lúc chạy: {"mode": "off" | "dry-run" | "auto"}
+    @PutMapping("/mode")
+    public ResponseEntity<?> setMode(@RequestBody Map<String, String> body) {
+        try {
+            rebalancerService.setMode(
+                RebalancerService.Mode.parse(body.get("mode"))
+            );
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(
+                Map.of("error", e.getMessage())
+            );
+        }
+        return ResponseEntity.ok(rebalancerService.getStatus());
+    }
+}
@@ -0,0 +1,22 @@
+package com.htpt.migration.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BroadcastRequest {
+    private String codeId; // Package đã upload, hoặc gửi code trực tiếp
+    private String name;
+    private String code;
+    private Map<String, Object> metadata;
+    private Map<String, Object> variables; // State đầu vào (tùy chọn)
+    private List<String> labels; // Rỗng = mọi worker online
+    private Long timeoutMs; // null = node.broadcast.timeout-ms
+    private Boolean wait; // null/true = trả lời khi job kết thúc
+}
@@ -4,6 +4,8 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.Map;
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -12,4 +14,5 @@ public class CodeDTO {
     private String code;
     private String entryPoint;
     private String initialNodeId;
+    private Map<String, Object> metadata; // Tùy chọn thực thi, vd. compileStatic
 }
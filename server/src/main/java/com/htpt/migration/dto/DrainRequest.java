@@ -0,0 +1,15 @@
+package com.htpt.migration.dto;
+
+import com.htpt.migration.model.Migration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DrainRequest {
+    private Migration.MigrationType type; // null = node.drain.type
+    private Integer maxConcurrent; // null = node.drain.max-concurrent
+    private Integer maxPerTarget; // null = node.drain.max-per-target
+}
@@ -0,0 +1,18 @@
+package com.htpt.migration.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ScatterRequest {
+    private String codeId;
+    private List<Object> data; // Được chia thành các phần liên tiếp
+    private int partitions;
+    private String reduce; // Script gộp kết quả (tùy chọn)
+    private Long timeoutMs; // null = node.scatter.timeout-ms
+}
@@ -0,0 +1,70 @@
+package com.htpt.migration.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Một lần chạy code trên nhiều worker:
+ * - SCATTER: mỗi partition nhận một phần dữ liệu; reduce (nếu có) gộp kết quả.
+ * - BROADCAST: cùng package chạy trên mọi worker được chọn; node chậm quá
+ *   timeout thì job kết thúc với kết quả của các node đã trả lời (PARTIAL).
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterJob {
+    private String id;
+    private JobType type;
+    private String codeId;
+    private int partitions;
+    private List<String> labels; // Broadcast: chỉ các worker có đủ label này
+    private JobStatus status;
+    private List<Task> tasks;
+    private Task reduceTask; // null nếu không có reduce script
+    // Scatter: kết quả reduce hoặc danh sách kết quả các partition
+    // Broadcast: nodeId -> kết quả của các node đã hoàn thành
+    private Object result;
+    private Map<String, Object> summary; // Broadcast: số node theo trạng thái, latency
+    private String errorMessage;
+    private long timeoutMs;
+    private Instant startTime;
+    private Instant endTime;
+
+    // Một phần việc gửi tới một worker (partition, node broadcast hoặc reduce)
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Task {
+        private String id; // codeId của package gửi tới worker
+        private int partition;
+        private String nodeId;
+        private int items; // Số phần tử dữ liệu của partition
+        private TaskStatus status;
+        private Object value; // Giá trị trả về (đã giải mã)
+        private String result; // Giá trị trả về dạng chuỗi
+        private String error;
+        private long executionTime; // Thời gian chạy do worker báo
+        private Instant dispatchedAt;
+        private long latencyMs; // Từ lúc gửi tới lúc coordinator nhận kết quả
+    }
+
+    public enum JobType {
+        SCATTER, BROADCAST
+    }
+
+    public enum JobStatus {
+        RUNNING, REDUCING, COMPLETED, PARTIAL, FAILED
+    }
+
+    public enum TaskStatus {
+        DISPATCHED, COMPLETED, FAILED, TIMED_OUT
+    }
+}
@@ -15,6 +15,7 @@ public class CodePackage {
     private String id;
     private String name;
     private String code;
+    private String codeHash; // SHA-256 của code - worker đã có thì chỉ gửi hash
     private String entryPoint;
     private String currentNodeId;
     private CodeState state;
@@ -26,7 +27,8 @@ public class CodePackage {
     @AllArgsConstructor
     public static class CodeState {
         private Map<String, Object> variables;
-        private int executionPoint;
+        private int executionPoint; // Câu lệnh top-level kế tiếp cần chạy
+        private long loopIteration; // Số iteration đã vào nếu executionPoint là vòng lặp
         private String output;
     }
     }
@@ -6,6 +6,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.Instant;
+import java.util.Map;
 
 @Data
 @Builder
@@ -18,14 +19,27 @@ public class Migration {
     private String targetNodeId;
     private MigrationType type;
     private MigrationStatus status;
+    private MigrationPhase phase; // Bước đang chờ worker
     private int progress;
+    private Map<String, Long> phaseDurations; // Thời gian thực của từng bước (ms)
+    private long downtimeMs; // Script không chạy ở đâu cả: source dừng -> target chạy
+    private int precopyRounds;
+    private long stateBytes; // Byte state (đã mã hóa) gửi tới target
+    private long codeBytes; // Byte code gửi tới target (0 = target đã có code)
+    private long transferredBytes; // Byte package target đã xác nhận nhận được
+    private String transferMode; // "peer" (worker -> worker) hoặc "relay" (qua Coordinator)
     private Instant startTime;
     private Instant endTime;
     private String errorMessage;
 
     public enum MigrationType {
         WEAK,   // Chỉ di chuyển code
-        STRONG  // Di chuyển code + state
+        STRONG, // Di chuyển code + state
+        PRECOPY // Code + state, copy state trong lúc script vẫn chạy
+    }
+
+    public enum MigrationPhase {
+        PREPARING, CAPTURING_STATE, PRECOPYING, TRANSFERRING, STARTING, DONE
     }
 
     public enum MigrationStatus {
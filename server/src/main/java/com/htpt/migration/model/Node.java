@@ -6,6 +6,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.Instant;
+import java.util.List;
 
 @Data
 @Builder
@@ -19,6 +20,8 @@ public class Node {
     private NodeStatus status;
     private NodeMetrics metrics;
     private Instant connectedAt;
+    private List<String> labels; // Do worker khai báo (node.labels), dùng để chọn nhóm node
+    private boolean draining; // Đang bảo trì: không nhận migration / job mới
 
     public enum NodeRole {
         COORDINATOR, WORKER
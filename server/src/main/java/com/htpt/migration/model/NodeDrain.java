@@ -0,0 +1,59 @@
+package com.htpt.migration.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Chuyển mọi code package khỏi một worker (bảo trì): node bị đánh dấu
+ * draining (không được chọn làm target / nhận job mới), các package trên
+ * node được migrate song song với giới hạn tổng và giới hạn theo target.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class NodeDrain {
+    private String id;
+    private String nodeId;
+    private DrainStatus status;
+    private Migration.MigrationType type;
+    private int maxConcurrent; // Số migration chạy cùng lúc của lần drain này
+    private int maxPerTarget; // Số migration đang chạy tới một target (mọi nguồn)
+    private List<Item> items;
+    private int total;
+    private int done; // Đã xong (kể cả lỗi / bỏ qua)
+    private int inFlight;
+    private int progress; // done / total (%)
+    private long etaMs; // Ước tính theo tốc độ từ đầu drain, -1 = chưa biết
+    private String waitingReason; // Còn package nhưng chưa bắt đầu được (vd. không có target)
+    private Instant startTime;
+    private Instant endTime;
+
+    // Một package cần chuyển đi
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Item {
+        private String codeId;
+        private ItemStatus status;
+        private String migrationId; // Migration gần nhất
+        private String targetNodeId;
+        private int attempts;
+        private String error;
+        private long durationMs;
+    }
+
+    public enum DrainStatus {
+        RUNNING, COMPLETED, PARTIAL, CANCELLED
+    }
+
+    public enum ItemStatus {
+        PENDING, MIGRATING, COMPLETED, FAILED, SKIPPED
+    }
+}
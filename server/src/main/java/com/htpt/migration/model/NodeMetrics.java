@@ -15,7 +15,57 @@ public class NodeMetrics {
     private int activeProcesses;
     private long uptime;
 
+    // Trạng thái engine thực thi trên worker (hàng đợi, từ chối)
+    private int executionSlots;
+    private int activeExecutions;
+    private int queueDepth;
+    private int queueCapacity;
+    private long rejectedExecutions;
+    private long avgQueueWaitMs;
+
+    // State của các execution đã kết thúc được worker giữ lại
+    private int retainedStates;
+    private long retainedStateBytes;
+    private int spilledStates;
+
+    // Tổng tài nguyên các script đã dùng trên node (từ lúc worker khởi động)
+    private long scriptExecutions;
+    private long scriptCpuTimeMs;
+    private long scriptAllocatedBytes;
+    private long scriptGcTimeMs;
+
+    // Cache kết quả của package deterministic trên worker
+    private int memoEntries;
+    private long memoHits;
+    private long memoMisses;
+
+    // Nén message STOMP từ worker (codec đã thỏa thuận, "none" nếu tắt)
+    private String compressionCodec;
+    private long compressedMessages;
+    private long compressionSavedBytes;
+    private double compressionRatio;
+    private long compressionCpuMs;
+
+    // CPU time trung bình mỗi execution (ms)
+    public long getAvgScriptCpuTimeMs() {
+        return scriptExecutions > 0 ? scriptCpuTimeMs / scriptExecutions : 0;
+    }
+
+    public double getMemoHitRate() {
+        long lookups = memoHits + memoMisses;
+        return lookups > 0 ? (double) memoHits / lookups : 0;
+    }
+
     public double getLoadScore() {
         return cpuUsage * 0.6 + memoryUsage * 0.4;
     }
+
+    // Tất cả slot đang bận và hàng đợi đã đầy -> lệnh mới sẽ bị từ chối
+    public boolean isSaturated() {
+        return (
+            queueCapacity > 0 &&
+            activeExecutions >= executionSlots &&
+            queueDepth >= queueCapacity
+        );
+    }
 }
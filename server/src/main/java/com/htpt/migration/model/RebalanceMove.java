@@ -0,0 +1,29 @@
+package com.htpt.migration.model;
+
+import java.time.Instant;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** Một lần chuyển package từ node tải cao sang node tải thấp (rebalancer) */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RebalanceMove {
+    private String codeId;
+    private String codeName;
+    private String sourceNodeId;
+    private String targetNodeId;
+
+    // Load score (EWMA) lúc lập kế hoạch và ước lượng sau khi chuyển
+    private double sourceLoad;
+    private double targetLoad;
+    private double projectedSourceLoad;
+    private double projectedTargetLoad;
+
+    private boolean dryRun; // Chỉ là kế hoạch, không tạo migration
+    private String migrationId;
+    private Instant plannedAt;
+}
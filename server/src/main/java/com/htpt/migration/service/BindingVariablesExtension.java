@@ -0,0 +1,68 @@
+package com.htpt.migration.service;
+
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCall;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.transform.stc.AbstractTypeCheckingExtension;
+import org.codehaus.groovy.transform.stc.StaticTypeCheckingVisitor;
+import org.codehaus.groovy.transform.stc.StaticTypesMarker;
+
+/**
+ * Type-checking extension cho script compile tĩnh (@CompileStatic).
+ *
+ * Các biến Worker inject qua Binding (out, data, output, nodeId, biến được
+ * restore) không có kiểu lúc compile; extension này cho phép truy cập
+ * chúng động (kiểu Object), kể cả gọi method/property trên chính biến đó.
+ * Phần còn lại của script vẫn được type-check và compile tĩnh.
+ */
+public class BindingVariablesExtension extends AbstractTypeCheckingExtension {
+
+    public BindingVariablesExtension(StaticTypeCheckingVisitor typeCheckingVisitor) {
+        super(typeCheckingVisitor);
+    }
+
+    @Override
+    public boolean handleUnresolvedVariableExpression(VariableExpression vexp) {
+        makeDynamic(vexp);
+        return true;
+    }
+
+    @Override
+    public boolean handleUnresolvedProperty(PropertyExpression pexp) {
+        if (!isBindingVariable(pexp.getObjectExpression())) return false;
+        makeDynamic(pexp);
+        return true;
+    }
+
+    @Override
+    public List<MethodNode> handleMissingMethod(
+        ClassNode receiver,
+        String name,
+        ArgumentListExpression argumentList,
+        ClassNode[] argumentTypes,
+        MethodCall call
+    ) {
+        if (
+            call instanceof MethodCallExpression methodCall &&
+            isBindingVariable(methodCall.getObjectExpression())
+        ) {
+            return Collections.singletonList(makeDynamic(call));
+        }
+        return Collections.emptyList();
+    }
+
+    // Chỉ nới lỏng cho biến binding, lỗi kiểu khác vẫn được báo
+    private static boolean isBindingVariable(Expression expression) {
+        return (
+            expression instanceof VariableExpression variable &&
+            variable.getNodeMetaData(StaticTypesMarker.DYNAMIC_RESOLUTION) != null
+        );
+    }
+}
@@ -0,0 +1,304 @@
+package com.htpt.migration.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.BooleanExpression;
+import org.codehaus.groovy.ast.expr.CastExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ClosureListExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.DeclarationExpression;
+import org.codehaus.groovy.ast.expr.EmptyExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MapExpression;
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression;
+import org.codehaus.groovy.ast.expr.TernaryExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ForStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.ast.stmt.WhileStatement;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+
+/**
+ * Chèn checkpoint vào thân script (method run()) để strong migration có
+ * thể resume giữa chừng thay vì chạy lại từ đầu.
+ *
+ * - Khai báo top-level (def x = ... / int n) vẫn là biến local đúng kiểu;
+ *   giá trị khởi tạo được chọn lúc chạy: khi resume qua khai báo thì lấy
+ *   giá trị từ state, không thì biểu thức gốc (hoặc giá trị mặc định của
+ *   kiểu). Sau mỗi khai báo, script đăng ký closure trả về các local đã
+ *   khai báo để snapshot tại safepoint có cả chúng.
+ * - Mỗi câu lệnh top-level khác i được bọc bằng ScriptCheckpoints.shouldRun(i)
+ *   (bỏ qua khi resume) và theo sau bởi completed(i).
+ * - Vòng lặp top-level (for/while) gọi iteration(i) ở đầu thân vòng lặp;
+ *   for cổ điển lấy lại biến đếm từ state thay vì chạy init, for-in bỏ
+ *   qua các phần tử đã xử lý khi resume.
+ *
+ * Câu lệnh lồng bên trong không được đánh số: safepoint gần nhất là đầu
+ * iteration của vòng lặp top-level chứa nó.
+ */
+public class CheckpointCustomizer extends CompilationCustomizer {
+
+    private static final ClassNode CHECKPOINTS = ClassHelper.make(
+        ScriptCheckpoints.class
+    );
+
+    public CheckpointCustomizer() {
+        // CONVERSION: trước khi resolve biến -> closure đăng ký local trỏ
+        // đúng biến local đã khai báo
+        super(CompilePhase.CONVERSION);
+    }
+
+    @Override
+    public void call(
+        SourceUnit source,
+        GeneratorContext context,
+        ClassNode classNode
+    ) {
+        if (!classNode.isScript()) return;
+        MethodNode run = classNode.getMethod("run", Parameter.EMPTY_ARRAY);
+        if (run == null || !(run.getCode() instanceof BlockStatement block)) {
+            return;
+        }
+
+        List<Statement> original = new ArrayList<>(block.getStatements());
+        List<Statement> instrumented = new ArrayList<>();
+        List<String> locals = new ArrayList<>();
+
+        for (int i = 0; i < original.size(); i++) {
+            Statement statement = original.get(i);
+            boolean last = i == original.size() - 1;
+            DeclarationExpression declaration = localDeclaration(statement);
+
+            if (declaration != null) {
+                String name = declaration.getVariableExpression().getName();
+                declaration.setRightExpression(
+                    new TernaryExpression(
+                        new BooleanExpression(
+                            call(
+                                "shouldRun",
+                                new ConstantExpression(i, true),
+                                new ConstantExpression(name)
+                            )
+                        ),
+                        initialValue(declaration),
+                        call("restored", new ConstantExpression(name))
+                    )
+                );
+                instrumented.add(statement);
+                locals.add(name);
+                if (!last) {
+                    instrumented.add(
+                        new ExpressionStatement(
+                            call("locals", localsClosure(locals))
+                        )
+                    );
+                }
+            } else if (isDeclaration(statement)) {
+                // def (a, b) = ... / khai báo có annotation: giữ nguyên,
+                // luôn chạy lại khi resume
+                instrumented.add(statement);
+            } else {
+                instrumented.add(
+                    new IfStatement(
+                        new BooleanExpression(
+                            call(
+                                "shouldRun",
+                                new ConstantExpression(i, true),
+                                ConstantExpression.NULL
+                            )
+                        ),
+                        instrumentLoop(statement, i),
+                        EmptyStatement.INSTANCE
+                    )
+                );
+            }
+
+            // Câu lệnh cuối giữ vị trí cuối để giá trị trả về của script không đổi
+            if (!last) {
+                instrumented.add(
+                    new ExpressionStatement(
+                        call("completed", new ConstantExpression(i, true))
+                    )
+                );
+            }
+        }
+
+        block.getStatements().clear();
+        block.getStatements().addAll(instrumented);
+    }
+
+    private Statement instrumentLoop(Statement statement, int index) {
+        if (statement instanceof WhileStatement loop) {
+            loop.setLoopBlock(withIteration(loop.getLoopBlock(), index));
+        } else if (statement instanceof ForStatement loop) {
+            loop.setLoopBlock(withIteration(loop.getLoopBlock(), index));
+
+            Expression collection = loop.getCollectionExpression();
+            if (collection instanceof ClosureListExpression parts) {
+                List<Expression> expressions = parts.getExpressions();
+                if (expressions.size() == 3) {
+                    Expression init = expressions.get(0);
+                    if (
+                        init instanceof DeclarationExpression declaration &&
+                        !declaration.isMultipleAssignmentDeclaration()
+                    ) {
+                        return withLoopVariable(loop, declaration, index);
+                    }
+                    // for (i = 0; ...) trên biến đã có: resume giữa vòng
+                    // lặp -> bỏ init, biến đã được restore
+                    expressions.set(
+                        0,
+                        new TernaryExpression(
+                            new BooleanExpression(
+                                call(
+                                    "resumingLoop",
+                                    new ConstantExpression(index, true)
+                                )
+                            ),
+                            ConstantExpression.NULL,
+                            init instanceof EmptyExpression
+                                ? ConstantExpression.NULL
+                                : init
+                        )
+                    );
+                }
+            } else {
+                loop.setCollectionExpression(
+                    call(
+                        "resumeIterable",
+                        new ConstantExpression(index, true),
+                        collection
+                    )
+                );
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * for (int i = init; cond; update) body ->
+     * { int i = resuming ? restored : init; loopLocals {[i: i]}; for (; cond; update) body }
+     * Biến đếm vẫn chỉ thấy trong vòng lặp, snapshot lấy qua loopLocals
+     */
+    private Statement withLoopVariable(
+        ForStatement loop,
+        DeclarationExpression declaration,
+        int index
+    ) {
+        String name = declaration.getVariableExpression().getName();
+        declaration.setRightExpression(
+            new TernaryExpression(
+                new BooleanExpression(
+                    call(
+                        "resumingLoopVariable",
+                        new ConstantExpression(index, true),
+                        new ConstantExpression(name)
+                    )
+                ),
+                call("restored", new ConstantExpression(name)),
+                initialValue(declaration)
+            )
+        );
+        ((ClosureListExpression) loop.getCollectionExpression())
+            .getExpressions()
+            .set(0, EmptyExpression.INSTANCE);
+
+        BlockStatement block = new BlockStatement();
+        block.addStatement(new ExpressionStatement(declaration));
+        block.addStatement(
+            new ExpressionStatement(
+                call("loopLocals", localsClosure(List.of(name)))
+            )
+        );
+        block.addStatement(loop);
+        block.setSourcePosition(loop);
+        return block;
+    }
+
+    private Statement withIteration(Statement body, int index) {
+        BlockStatement block = new BlockStatement();
+        block.addStatement(
+            new ExpressionStatement(
+                call("iteration", new ConstantExpression(index, true))
+            )
+        );
+        block.addStatement(body);
+        block.setSourcePosition(body);
+        return block;
+    }
+
+    private static boolean isDeclaration(Statement statement) {
+        return (
+            statement instanceof ExpressionStatement expression &&
+            expression.getExpression() instanceof DeclarationExpression
+        );
+    }
+
+    // Chỉ khai báo một biến, không annotation (@Field...) mới được snapshot
+    private static DeclarationExpression localDeclaration(Statement statement) {
+        if (
+            statement instanceof ExpressionStatement expression &&
+            expression.getExpression() instanceof DeclarationExpression declaration &&
+            !declaration.isMultipleAssignmentDeclaration() &&
+            declaration.getAnnotations().isEmpty()
+        ) {
+            return declaration;
+        }
+        return null;
+    }
+
+    // Biểu thức khởi tạo gốc; không có thì giá trị mặc định như Groovy
+    // (int n -> 0, boolean b -> false, kiểu object -> null)
+    private static Expression initialValue(DeclarationExpression declaration) {
+        Expression value = declaration.getRightExpression();
+        if (!(value instanceof EmptyExpression)) {
+            return value;
+        }
+        ClassNode type = declaration.getVariableExpression().getOriginType();
+        if (!ClassHelper.isPrimitiveType(type)) {
+            return ConstantExpression.NULL;
+        }
+        if (ClassHelper.isPrimitiveBoolean(type)) {
+            return ConstantExpression.FALSE;
+        }
+        return new CastExpression(type, new ConstantExpression(0));
+    }
+
+    // { -> [a: a, b: b] } - đọc giá trị hiện tại của các local tại safepoint
+    private static Expression localsClosure(List<String> names) {
+        MapExpression values = new MapExpression();
+        for (String name : names) {
+            values.addMapEntryExpression(
+                new ConstantExpression(name),
+                new VariableExpression(name)
+            );
+        }
+        BlockStatement body = new BlockStatement();
+        body.addStatement(new ExpressionStatement(values));
+        return new ClosureExpression(Parameter.EMPTY_ARRAY, body);
+    }
+
+    private static Expression call(String method, Expression... args) {
+        List<Expression> arguments = new ArrayList<>();
+        arguments.add(VariableExpression.THIS_EXPRESSION);
+        arguments.addAll(List.of(args));
+        return new StaticMethodCallExpression(
+            CHECKPOINTS,
+            method,
+            new ArgumentListExpression(arguments)
+        );
+    }
+}
@@ -0,0 +1,195 @@
+package com.htpt.migration.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.htpt.migration.util.ChunkedTransfers;
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Truyền payload lớn giữa Coordinator và worker theo chunk (ChunkedTransfers).
+ *
+ * Gửi: package /receive lớn hơn một chunk được chia thành các frame
+ * /topic/node/{id}/chunk, worker ack qua /app/node/chunk-ack. Nhận: worker
+ * gửi state lớn qua /app/node/chunk, Coordinator ack qua
+ * /topic/node/{id}/chunk-ack. Worker đăng ký lại (kết nối lại) -> các
+ * transfer tới node đó gửi tiếp từ chunk cuối đã ack.
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+@RequiredArgsConstructor
+public class ChunkTransferService {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${node.transfer.chunk-size-bytes:32768}")
+    private int chunkSizeBytes;
+
+    // Số chunk tối đa đã gửi mà chưa được ack
+    @Value("${node.transfer.window:8}")
+    private int window;
+
+    // Không có ack trong khoảng này -> gửi lại từ chunk cuối đã ack
+    @Value("${node.transfer.retransmit-ms:2000}")
+    private long retransmitMs;
+
+    @Value("${node.transfer.max-retransmits:5}")
+    private int maxRetransmits;
+
+    @Value("${node.transfer.max-bytes:268435456}")
+    private long maxBytes;
+
+    // Transfer nhận dở không có chunk mới trong khoảng này thì bỏ
+    @Value("${node.transfer.incoming-ttl-ms:60000}")
+    private long incomingTtlMs;
+
+    private ChunkedTransfers transfers;
+
+    @PostConstruct
+    public void init() {
+        transfers = new ChunkedTransfers(
+            chunkSizeBytes,
+            window,
+            retransmitMs,
+            maxRetransmits,
+            maxBytes,
+            incomingTtlMs,
+            (nodeId, frame) ->
+                messagingTemplate.convertAndSend(
+                    "/topic/node/" + nodeId + "/chunk",
+                    frame
+                )
+        );
+    }
+
+    /**
+     * Gửi package tới /receive của worker: nhỏ thì gửi thẳng, lớn thì chia
+     * chunk. Future xong khi worker đã nhận đủ package; listener nhận số byte
+     * đã được ack (có thể null).
+     */
+    public CompletableFuture<Void> sendPackage(
+        String nodeId,
+        Map<String, Object> payload,
+        ChunkedTransfers.ProgressListener listener
+    ) {
+        byte[] data = encode(payload);
+        if (!transfers.needsChunking(data.length)) {
+            messagingTemplate.convertAndSend(
+                "/topic/node/" + nodeId + "/receive",
+                payload
+            );
+            if (listener != null) {
+                listener.onProgress(data.length, data.length);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        log.info(
+            "Sending {} bytes to {} in chunks of {}",
+            data.length,
+            nodeId,
+            chunkSizeBytes
+        );
+        return transfers.send(nodeId, "receive", data, null, listener);
+    }
+
+    public void onAck(Map<String, Object> ack) {
+        transfers.onAck(ack);
+    }
+
+    /** Đã nhận thêm chunk: header của transfer (vd. requestId), byte đã có */
+    @FunctionalInterface
+    public interface ReceiveProgress {
+        void onProgress(
+            Map<String, Object> headers,
+            long receivedBytes,
+            long totalBytes
+        );
+    }
+
+    /**
+     * Chunk từ worker: báo progress, đủ payload thì gọi handler(kind,
+     * payload) rồi mới ack; handler lỗi thì ack kèm error để worker dừng
+     */
+    public void receive(
+        Map<String, Object> frame,
+        ReceiveProgress progress,
+        BiConsumer<String, Map<String, Object>> handler
+    ) {
+        String nodeId = (String) frame.get("nodeId");
+        ChunkedTransfers.Received received = transfers.onChunk(frame, nodeId);
+        Map<String, Object> ack = new HashMap<>(received.ack());
+        ChunkedTransfers.Completed completed = received.completed();
+        if (completed == null && !ack.containsKey("error")) {
+            progress.onProgress(
+                received.headers(),
+                received.receivedBytes(),
+                received.totalBytes()
+            );
+        }
+        if (completed != null) {
+            try {
+                handler.accept(completed.kind(), decode(completed.data()));
+                transfers.markHandled(completed);
+            } catch (RuntimeException e) {
+                log.error(
+                    "Failed to handle chunked {} from {}",
+                    completed.kind(),
+                    nodeId,
+                    e
+                );
+                ack.put("error", e.getMessage());
+            }
+        }
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + nodeId + "/chunk-ack",
+            ack
+        );
+    }
+
+    // Worker vừa đăng ký lại -> gửi tiếp các transfer đang dở tới node đó
+    public void resume(String nodeId) {
+        transfers.resume(nodeId);
+    }
+
+    @Scheduled(fixedDelay = 500)
+    public void checkTransfers() {
+        transfers.checkTimeouts();
+    }
+
+    public Map<String, Object> getStats() {
+        return transfers.getStats();
+    }
+
+    private byte[] encode(Map<String, Object> payload) {
+        try {
+            return objectMapper.writeValueAsBytes(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(
+                "Payload is not serializable",
+                e
+            );
+        }
+    }
+
+    private Map<String, Object> decode(byte[] data) {
+        try {
+            return objectMapper.readValue(data, new TypeReference<>() {});
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt chunked payload", e);
+        }
+    }
+}
@@ -0,0 +1,693 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.dto.BroadcastRequest;
+import com.htpt.migration.dto.ScatterRequest;
+import com.htpt.migration.model.ClusterJob;
+import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.model.Node;
+import com.htpt.migration.util.WirePackage;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Scatter-gather: chạy một CodePackage song song trên nhiều worker.
+ *
+ * Dữ liệu đầu vào được chia thành các phần liên tiếp; mỗi partition là một
+ * package tạm (cùng code, state chứa biến data = phần dữ liệu, partition,
+ * partitions) gửi tới worker tải thấp nhất qua receive/execute như bình
+ * thường. Khi mọi partition xong, reduce script (nếu có) chạy trên một
+ * worker với data = danh sách kết quả theo thứ tự partition.
+ *
+ * Broadcast: cùng package chạy trên mọi worker online (hoặc nhóm có label),
+ * gom kết quả từng node kèm latency; quá timeout thì trả về phần đã có.
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+@RequiredArgsConstructor
+public class ClusterExecutionService {
+
+    private final CoordinatorService coordinatorService;
+    private final MigrationService migrationService;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final LogBroadcastService logService;
+    private final CodeStore codeStore;
+    private final ChunkTransferService chunkTransferService;
+
+    // Thời gian tối đa của cả job (mọi partition + reduce)
+    @Value("${node.scatter.timeout-ms:600000}")
+    private long defaultTimeoutMs;
+
+    @Value("${node.scatter.max-partitions:256}")
+    private int maxPartitions;
+
+    // Job đã kết thúc được giữ lại để tra cứu trong khoảng này
+    @Value("${node.scatter.retention-ms:3600000}")
+    private long retentionMs;
+
+    @Value("${node.broadcast.timeout-ms:30000}")
+    private long broadcastTimeoutMs;
+
+    private final Map<String, ClusterJob> jobs = new ConcurrentHashMap<>();
+    // codeId của package tạm -> job id
+    private final Map<String, String> taskJobs = new ConcurrentHashMap<>();
+    private final Map<String, String> reduceScripts = new ConcurrentHashMap<>();
+
+    public ClusterJob submit(ScatterRequest request) {
+        CodePackage codePackage = migrationService.getCodePackage(
+            request.getCodeId()
+        );
+        if (codePackage == null) {
+            throw new IllegalArgumentException(
+                "Code package not found: " + request.getCodeId()
+            );
+        }
+
+        List<Node> workers = coordinatorService.findLeastLoadedNodes();
+        if (workers.isEmpty()) {
+            throw new IllegalStateException("No online worker available");
+        }
+
+        List<Object> data = request.getData() != null
+            ? request.getData()
+            : List.of();
+        // 0 = mỗi worker một partition; không nhiều hơn số phần tử dữ liệu
+        int partitions = request.getPartitions() > 0
+            ? request.getPartitions()
+            : workers.size();
+        partitions = Math.min(partitions, maxPartitions);
+        if (!data.isEmpty()) {
+            partitions = Math.min(partitions, data.size());
+        }
+
+        String jobId = "job-" + UUID.randomUUID().toString().substring(0, 8);
+        List<ClusterJob.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            tasks.add(
+                ClusterJob.Task.builder()
+                    .id(jobId + "-p" + i)
+                    .partition(i)
+                    .nodeId(workers.get(i % workers.size()).getId())
+                    .items(
+                        sliceEnd(data.size(), partitions, i) -
+                        sliceStart(data.size(), partitions, i)
+                    )
+                    .status(ClusterJob.TaskStatus.DISPATCHED)
+                    .build()
+            );
+        }
+
+        ClusterJob job = ClusterJob.builder()
+            .id(jobId)
+            .type(ClusterJob.JobType.SCATTER)
+            .codeId(codePackage.getId())
+            .partitions(partitions)
+            .status(ClusterJob.JobStatus.RUNNING)
+            .tasks(tasks)
+            .timeoutMs(
+                request.getTimeoutMs() != null
+                    ? request.getTimeoutMs()
+                    : defaultTimeoutMs
+            )
+            .startTime(Instant.now())
+            .build();
+        jobs.put(jobId, job);
+        if (request.getReduce() != null && !request.getReduce().isBlank()) {
+            reduceScripts.put(jobId, request.getReduce());
+        }
+
+        log.info(
+            "Scatter job {}: code {} over {} partitions on {} workers ({} items)",
+            jobId,
+            codePackage.getId(),
+            partitions,
+            Math.min(partitions, workers.size()),
+            data.size()
+        );
+        logService.info(
+            "coordinator",
+            "SCATTER",
+            String.format(
+                "Job %s: \"%s\" split into %d partitions",
+                jobId,
+                codePackage.getName(),
+                partitions
+            )
+        );
+
+        synchronized (job) {
+            for (ClusterJob.Task task : tasks) {
+                int index = task.getPartition();
+                int from = sliceStart(data.size(), partitions, index);
+                int to = sliceEnd(data.size(), partitions, index);
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("data", new ArrayList<>(data.subList(from, to)));
+                variables.put("partition", index);
+                variables.put("partitions", partitions);
+                dispatch(
+                    job,
+                    task,
+                    codePackage.getName() + " [partition " + index + "]",
+                    codePackage.getCode(),
+                    codePackage.getMetadata(),
+                    variables
+                );
+            }
+        }
+        broadcast(job);
+        return job;
+    }
+
+    public ClusterJob submitBroadcast(BroadcastRequest request) {
+        String name;
+        String code;
+        Map<String, Object> metadata;
+        String codeId = null;
+        if (request.getCodeId() != null && !request.getCodeId().isBlank()) {
+            CodePackage codePackage = migrationService.getCodePackage(
+                request.getCodeId()
+            );
+            if (codePackage == null) {
+                throw new IllegalArgumentException(
+                    "Code package not found: " + request.getCodeId()
+                );
+            }
+            codeId = codePackage.getId();
+            name = codePackage.getName();
+            code = codePackage.getCode();
+            metadata = codePackage.getMetadata();
+        } else if (request.getCode() != null && !request.getCode().isBlank()) {
+            name = request.getName() != null ? request.getName() : "broadcast";
+            code = request.getCode();
+            metadata = request.getMetadata();
+        } else {
+            throw new IllegalArgumentException("codeId or code is required");
+        }
+
+        List<String> labels = request.getLabels() != null
+            ? request.getLabels()
+            : List.of();
+        List<Node> targets = coordinatorService.findNodesWithLabels(labels);
+        if (targets.isEmpty()) {
+            throw new IllegalStateException(
+                labels.isEmpty()
+                    ? "No online worker available"
+                    : "No online worker with labels " + labels
+            );
+        }
+
+        String jobId = "bc-" + UUID.randomUUID().toString().substring(0, 8);
+        List<ClusterJob.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            tasks.add(
+                ClusterJob.Task.builder()
+                    .id(jobId + "-n" + i)
+                    .partition(i)
+                    .nodeId(targets.get(i).getId())
+                    .status(ClusterJob.TaskStatus.DISPATCHED)
+                    .build()
+            );
+        }
+
+        ClusterJob job = ClusterJob.builder()
+            .id(jobId)
+            .type(ClusterJob.JobType.BROADCAST)
+            .codeId(codeId)
+            .partitions(tasks.size())
+            .labels(labels)
+            .status(ClusterJob.JobStatus.RUNNING)
+            .tasks(tasks)
+            .timeoutMs(
+                request.getTimeoutMs() != null
+                    ? request.getTimeoutMs()
+                    : broadcastTimeoutMs
+            )
+            .startTime(Instant.now())
+            .build();
+        jobs.put(jobId, job);
+
+        log.info(
+            "Broadcast job {}: \"{}\" on {} workers {}",
+            jobId,
+            name,
+            tasks.size(),
+            labels.isEmpty() ? "" : "with labels " + labels
+        );
+        logService.info(
+            "coordinator",
+            "BROADCAST",
+            String.format(
+                "Job %s: \"%s\" sent to %d workers",
+                jobId,
+                name,
+                tasks.size()
+            )
+        );
+
+        // Gửi tới tất cả rồi mới chờ: các worker chạy song song
+        synchronized (job) {
+            for (ClusterJob.Task task : tasks) {
+                Map<String, Object> variables = request.getVariables() != null
+                    ? new HashMap<>(request.getVariables())
+                    : new HashMap<>();
+                variables.put("nodeId", task.getNodeId());
+                dispatch(
+                    job,
+                    task,
+                    name + " [" + task.getNodeId() + "]",
+                    code,
+                    metadata,
+                    variables
+                );
+            }
+        }
+        broadcast(job);
+        return job;
+    }
+
+    /**
+     * Chờ job kết thúc tối đa timeoutMs; trả về job ở trạng thái hiện tại.
+     * Job broadcast luôn kết thúc trước timeout của chính nó (checkJobs).
+     */
+    public ClusterJob awaitCompletion(ClusterJob job, long timeoutMs)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (job) {
+            long remaining;
+            while (
+                !isFinished(job) &&
+                (remaining = deadline - System.currentTimeMillis()) > 0
+            ) {
+                job.wait(remaining);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Kết quả execution từ worker (gọi từ WebSocketHandler).
+     * Trả về true nếu codeId là một phần của scatter job.
+     */
+    public boolean onExecutionComplete(
+        String codeId,
+        String status,
+        String result,
+        Object value,
+        String error,
+        long executionTime
+    ) {
+        String jobId = taskJobs.get(codeId);
+        if (jobId == null) return false;
+        ClusterJob job = jobs.get(jobId);
+        if (job == null) {
+            taskJobs.remove(codeId);
+            return true;
+        }
+
+        synchronized (job) {
+            ClusterJob.Task task = findTask(job, codeId);
+            if (
+                isFinished(job) ||
+                task == null ||
+                task.getStatus() != ClusterJob.TaskStatus.DISPATCHED
+            ) {
+                return true;
+            }
+
+            task.setResult(result);
+            task.setValue(value);
+            task.setExecutionTime(executionTime);
+            task.setLatencyMs(
+                System.currentTimeMillis() - task.getDispatchedAt().toEpochMilli()
+            );
+            if (job.getType() == ClusterJob.JobType.BROADCAST) {
+                if ("completed".equals(status)) {
+                    task.setStatus(ClusterJob.TaskStatus.COMPLETED);
+                } else {
+                    task.setStatus(ClusterJob.TaskStatus.FAILED);
+                    task.setError(
+                        error != null && !error.isEmpty() ? error : status
+                    );
+                }
+                if (pendingTasks(job).isEmpty()) {
+                    finishBroadcast(job);
+                }
+            } else if (!"completed".equals(status)) {
+                task.setStatus(ClusterJob.TaskStatus.FAILED);
+                task.setError(error != null && !error.isEmpty() ? error : status);
+                fail(
+                    job,
+                    String.format(
+                        "%s on %s failed: %s",
+                        task == job.getReduceTask()
+                            ? "Reduce"
+                            : "Partition " + task.getPartition(),
+                        task.getNodeId(),
+                        task.getError()
+                    )
+                );
+            } else {
+                task.setStatus(ClusterJob.TaskStatus.COMPLETED);
+                if (task == job.getReduceTask()) {
+                    complete(job, valueOf(task));
+                } else if (allCompleted(job.getTasks())) {
+                    List<Object> results = new ArrayList<>();
+                    for (ClusterJob.Task partition : job.getTasks()) {
+                        results.add(valueOf(partition));
+                    }
+                    String reduce = reduceScripts.get(jobId);
+                    if (reduce != null) {
+                        startReduce(job, reduce, results);
+                    } else {
+                        complete(job, results);
+                    }
+                }
+            }
+        }
+        broadcast(job);
+        return true;
+    }
+
+    // Job quá thời gian -> FAILED (broadcast: PARTIAL); job đã kết thúc lâu -> bỏ khỏi bộ nhớ
+    @Scheduled(fixedDelay = 1000)
+    public void checkJobs() {
+        long now = System.currentTimeMillis();
+        for (ClusterJob job : jobs.values()) {
+            boolean changed = false;
+            synchronized (job) {
+                if (isFinished(job)) {
+                    if (now - job.getEndTime().toEpochMilli() > retentionMs) {
+                        jobs.remove(job.getId());
+                    }
+                    continue;
+                }
+                if (
+                    job.getTimeoutMs() > 0 &&
+                    now - job.getStartTime().toEpochMilli() > job.getTimeoutMs()
+                ) {
+                    changed = true;
+                    if (job.getType() == ClusterJob.JobType.BROADCAST) {
+                        // Node chưa trả lời bị bỏ qua, giữ kết quả đã có
+                        for (ClusterJob.Task task : pendingTasks(job)) {
+                            task.setStatus(ClusterJob.TaskStatus.TIMED_OUT);
+                        }
+                        finishBroadcast(job);
+                    } else {
+                        fail(
+                            job,
+                            String.format(
+                                "Job timed out after %dms waiting for %s",
+                                job.getTimeoutMs(),
+                                pendingDescription(job)
+                            )
+                        );
+                    }
+                }
+            }
+            if (changed) {
+                broadcast(job);
+            }
+        }
+    }
+
+    public ClusterJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public Collection<ClusterJob> getAllJobs() {
+        return jobs.values();
+    }
+
+    // ========== Internal (gọi trong synchronized(job)) ==========
+
+    private void dispatch(
+        ClusterJob job,
+        ClusterJob.Task task,
+        String name,
+        String code,
+        Map<String, Object> metadata,
+        Map<String, Object> variables
+    ) {
+        taskJobs.put(task.getId(), job.getId());
+        task.setDispatchedAt(Instant.now());
+        // Các partition cùng code: worker đã nhận một lần thì chỉ gửi hash
+        String codeHash = codeStore.put(code);
+        CodePackage taskPackage = CodePackage.builder()
+            .id(task.getId())
+            .name(name)
+            .code(code)
+            .codeHash(codeHash)
+            .currentNodeId(task.getNodeId())
+            .metadata(metadata)
+            .state(CodePackage.CodeState.builder().variables(variables).build())
+            .build();
+
+        // Partition lớn đi theo chunk -> chỉ execute khi worker đã nhận đủ
+        chunkTransferService
+            .sendPackage(
+                task.getNodeId(),
+                WirePackage.payload(
+                    taskPackage,
+                    codeStore.needsCode(task.getNodeId(), codeHash)
+                ),
+                null
+            )
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    // Không tới được worker -> task lỗi như execution thất bại
+                    onExecutionComplete(
+                        task.getId(),
+                        "failed",
+                        null,
+                        null,
+                        "Package transfer failed: " + error.getMessage(),
+                        0
+                    );
+                    return;
+                }
+                // Chỉ khi worker đã nhận đủ package mới coi là có code
+                codeStore.markPresent(task.getNodeId(), codeHash);
+                messagingTemplate.convertAndSend(
+                    "/topic/node/" + task.getNodeId() + "/execute",
+                    Map.of("codeId", task.getId())
+                );
+            });
+    }
+
+    private void startReduce(
+        ClusterJob job,
+        String reduce,
+        List<Object> results
+    ) {
+        List<Node> workers = coordinatorService.findLeastLoadedNodes();
+        if (workers.isEmpty()) {
+            fail(job, "No online worker available for reduce");
+            return;
+        }
+
+        ClusterJob.Task task = ClusterJob.Task.builder()
+            .id(job.getId() + "-reduce")
+            .partition(-1)
+            .nodeId(workers.get(0).getId())
+            .items(results.size())
+            .status(ClusterJob.TaskStatus.DISPATCHED)
+            .build();
+        job.setReduceTask(task);
+        job.setStatus(ClusterJob.JobStatus.REDUCING);
+
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("data", results);
+        variables.put("partitions", job.getPartitions());
+        dispatch(job, task, "reduce " + job.getId(), reduce, null, variables);
+        log.info("Scatter job {}: reducing on {}", job.getId(), task.getNodeId());
+    }
+
+    private void complete(ClusterJob job, Object result) {
+        job.setResult(result);
+        job.setStatus(ClusterJob.JobStatus.COMPLETED);
+        job.setEndTime(Instant.now());
+        release(job);
+        job.notifyAll();
+
+        long duration =
+            job.getEndTime().toEpochMilli() - job.getStartTime().toEpochMilli();
+        log.info("Scatter job {} completed in {}ms", job.getId(), duration);
+        logService.success(
+            "coordinator",
+            "SCATTER",
+            String.format(
+                "Job %s completed in %dms: %s",
+                job.getId(),
+                duration,
+                result
+            )
+        );
+    }
+
+    private void fail(ClusterJob job, String message) {
+        job.setErrorMessage(message);
+        job.setStatus(ClusterJob.JobStatus.FAILED);
+        job.setEndTime(Instant.now());
+        release(job);
+        job.notifyAll();
+
+        log.warn("Scatter job {} failed: {}", job.getId(), message);
+        logService.error(
+            "coordinator",
+            "SCATTER",
+            "Job " + job.getId() + " failed: " + message
+        );
+    }
+
+    // Gom kết quả từng node; COMPLETED nếu mọi node xong, PARTIAL nếu chỉ một phần
+    private void finishBroadcast(ClusterJob job) {
+        Map<String, Object> results = new LinkedHashMap<>();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        LongSummaryStatistics latency = new LongSummaryStatistics();
+        String slowest = null;
+        long slowestMs = -1;
+        for (ClusterJob.Task task : job.getTasks()) {
+            counts.merge(task.getStatus().name().toLowerCase(), 1L, Long::sum);
+            if (task.getStatus() != ClusterJob.TaskStatus.COMPLETED) continue;
+            results.put(task.getNodeId(), valueOf(task));
+            latency.accept(task.getLatencyMs());
+            if (task.getLatencyMs() > slowestMs) {
+                slowestMs = task.getLatencyMs();
+                slowest = task.getNodeId();
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("nodes", job.getTasks().size());
+        summary.putAll(counts);
+        if (latency.getCount() > 0) {
+            summary.put("minLatencyMs", latency.getMin());
+            summary.put("avgLatencyMs", Math.round(latency.getAverage()));
+            summary.put("maxLatencyMs", latency.getMax());
+            summary.put("slowestNode", slowest);
+        }
+
+        job.setResult(results);
+        job.setSummary(summary);
+        job.setEndTime(Instant.now());
+        if (results.size() == job.getTasks().size()) {
+            job.setStatus(ClusterJob.JobStatus.COMPLETED);
+        } else if (!results.isEmpty()) {
+            job.setStatus(ClusterJob.JobStatus.PARTIAL);
+            job.setErrorMessage(
+                String.format(
+                    "%d of %d workers did not complete",
+                    job.getTasks().size() - results.size(),
+                    job.getTasks().size()
+                )
+            );
+        } else {
+            job.setStatus(ClusterJob.JobStatus.FAILED);
+            job.setErrorMessage("No worker completed");
+        }
+        // Dừng luôn các node chưa trả lời (timeout)
+        release(job);
+        job.notifyAll();
+
+        log.info("Broadcast job {} {}: {}", job.getId(), job.getStatus(), summary);
+        String message = String.format(
+            "Job %s %s: %s",
+            job.getId(),
+            job.getStatus(),
+            summary
+        );
+        if (job.getStatus() == ClusterJob.JobStatus.COMPLETED) {
+            logService.success("coordinator", "BROADCAST", message);
+        } else {
+            logService.warning("coordinator", "BROADCAST", message);
+        }
+    }
+
+    // Bỏ package tạm trên worker (dừng luôn phần còn chạy nếu job thất bại)
+    private void release(ClusterJob job) {
+        reduceScripts.remove(job.getId());
+        List<ClusterJob.Task> all = new ArrayList<>(job.getTasks());
+        if (job.getReduceTask() != null) {
+            all.add(job.getReduceTask());
+        }
+        for (ClusterJob.Task task : all) {
+            taskJobs.remove(task.getId());
+            messagingTemplate.convertAndSend(
+                "/topic/node/" + task.getNodeId() + "/stop",
+                Map.of("codeId", task.getId(), "release", true)
+            );
+        }
+    }
+
+    private void broadcast(ClusterJob job) {
+        messagingTemplate.convertAndSend("/topic/jobs/" + job.getId(), job);
+    }
+
+    private static ClusterJob.Task findTask(ClusterJob job, String taskId) {
+        ClusterJob.Task reduce = job.getReduceTask();
+        if (reduce != null && reduce.getId().equals(taskId)) {
+            return reduce;
+        }
+        for (ClusterJob.Task task : job.getTasks()) {
+            if (task.getId().equals(taskId)) return task;
+        }
+        return null;
+    }
+
+    private static boolean allCompleted(List<ClusterJob.Task> tasks) {
+        return tasks
+            .stream()
+            .allMatch(t -> t.getStatus() == ClusterJob.TaskStatus.COMPLETED);
+    }
+
+    private static boolean isFinished(ClusterJob job) {
+        return (
+            job.getStatus() == ClusterJob.JobStatus.COMPLETED ||
+            job.getStatus() == ClusterJob.JobStatus.PARTIAL ||
+            job.getStatus() == ClusterJob.JobStatus.FAILED
+        );
+    }
+
+    private static List<ClusterJob.Task> pendingTasks(ClusterJob job) {
+        return job
+            .getTasks()
+            .stream()
+            .filter(t -> t.getStatus() == ClusterJob.TaskStatus.DISPATCHED)
+            .toList();
+    }
+
+    // Giá trị nguyên kiểu nếu worker gửi được, không thì dạng chuỗi
+    private static Object valueOf(ClusterJob.Task task) {
+        return task.getValue() != null ? task.getValue() : task.getResult();
+    }
+
+    private static String pendingDescription(ClusterJob job) {
+        if (job.getReduceTask() != null) {
+            return "reduce on " + job.getReduceTask().getNodeId();
+        }
+        List<String> pending = new ArrayList<>();
+        for (ClusterJob.Task task : job.getTasks()) {
+            if (task.getStatus() == ClusterJob.TaskStatus.DISPATCHED) {
+                pending.add(task.getPartition() + "@" + task.getNodeId());
+            }
+        }
+        return "partitions " + pending;
+    }
+
+    // Chia n phần tử thành k phần liên tiếp, các phần lệch nhau tối đa 1
+    private static int sliceStart(int size, int partitions, int index) {
+        return (int) ((long) size * index / partitions);
+    }
+
+    private static int sliceEnd(int size, int partitions, int index) {
+        return sliceStart(size, partitions, index + 1);
+    }
+}
@@ -1,22 +1,134 @@
 package com.htpt.migration.service;
 
 import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.util.MemoCache;
+import com.htpt.migration.util.StateCodec;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
-import java.io.ByteArrayOutputStream;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
+@RequiredArgsConstructor
 public class CodeExecutorService {
 
+    private final CompiledScriptCache scriptCache;
+    private final ScriptExecutionEngine engine;
+    private final ExecutionStateStore stateStore;
+    // Execution đang chờ/đang chạy; khi kết thúc state được chuyển sang
+    // stateStore (có giới hạn) thay vì giữ cả Binding ở đây
     private final Map<String, ExecutionContext> contexts =
         new ConcurrentHashMap<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Context đang giữ slot - kể cả khi đã bị stop() gỡ khỏi contexts
+    private final Set<ExecutionContext> running =
+        ConcurrentHashMap.newKeySet();
+
+    // Giới hạn mặc định cho mỗi execution (0 = không giới hạn),
+    // có thể override qua CodePackage.metadata (timeoutMs, cpuTimeLimitMs)
+    @Value("${node.executor.timeout-ms:300000}")
+    private long defaultTimeoutMs;
+
+    @Value("${node.executor.cpu-time-limit-ms:0}")
+    private long defaultCpuTimeLimitMs;
+
+    // Streaming console output: kích thước chunk, chu kỳ flush, phần đuôi giữ lại
+    @Value("${node.executor.output.chunk-bytes:4096}")
+    private int outputChunkBytes;
+
+    @Value("${node.executor.output.flush-interval-ms:50}")
+    private long outputFlushIntervalMs;
+
+    @Value("${node.executor.output.tail-bytes:65536}")
+    private int outputTailBytes;
+
+    // Checkpoint: thời gian chờ script tới safepoint khi capture state,
+    // thời gian tối đa script bị giữ lại sau capture có pause
+    @Value("${node.executor.checkpoint.wait-ms:2000}")
+    private long checkpointWaitMs;
+
+    @Value("${node.executor.checkpoint.pause-timeout-ms:30000}")
+    private long checkpointPauseTimeoutMs;
+
+    // Cache kết quả của package deterministic (metadata.deterministic)
+    @Value("${node.executor.memo.max-entries:512}")
+    private int memoMaxEntries;
+
+    @Value("${node.executor.memo.max-bytes:33554432}")
+    private long memoMaxBytes;
+
+    @Value("${node.executor.memo.ttl-ms:600000}")
+    private long memoTtlMs;
+
+    private MemoCache<MemoizedRun> resultMemo;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> gcBeans =
+        ManagementFactory.getGarbageCollectorMXBeans();
+
+    // Tổng tài nguyên các script đã dùng trên node này
+    private final AtomicLong measuredExecutions = new AtomicLong();
+    private final AtomicLong totalCpuTimeNanos = new AtomicLong();
+    private final AtomicLong totalAllocatedBytes = new AtomicLong();
+    private final AtomicLong totalGcTimeMs = new AtomicLong();
+    private final ScheduledExecutorService watchdog =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "script-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+    // Snapshot hoàn thành trên thread của script (tại safepoint): phần còn
+    // lại của captureState() chạy ở đây để script không phải chờ
+    private final Executor captureCallbacks = task ->
+        Thread.ofVirtual().name("state-capture").start(task);
+    private final ScheduledExecutorService outputFlusher =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "script-output-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+
+    @PostConstruct
+    public void init() {
+        // Gắn router cho System.out/err một lần duy nhất
+        ConsoleCapture.install();
+        resultMemo = new MemoCache<>(
+            memoMaxEntries,
+            memoMaxBytes,
+            memoTtlMs,
+            MemoizedRun::weight
+        );
+        watchdog.scheduleAtFixedRate(
+            this::enforceLimits,
+            100,
+            100,
+            TimeUnit.MILLISECONDS
+        );
+        outputFlusher.scheduleAtFixedRate(
+            this::flushOutputs,
+            outputFlushIntervalMs,
+            outputFlushIntervalMs,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        outputFlusher.shutdownNow();
+    }
 
     // Execute code trong sandbox với capture console output
     public CompletableFuture<ExecutionResult> execute(
@@ -24,100 +136,16 @@ public class CodeExecutorService {
         String code,
         String nodeId
     ) {
-        return CompletableFuture.supplyAsync(
-            () -> {
-                // Capture stdout/stderr từ Groovy
-                ByteArrayOutputStream outputStream =
-                    new ByteArrayOutputStream();
-                PrintStream captureStream = new PrintStream(outputStream);
-                PrintStream originalOut = System.out;
-                PrintStream originalErr = System.err;
-
-                try {
-                    log.info("Executing code {} on node {}", codeId, nodeId);
-
-                    // Redirect System.out và System.err để capture println
-                    System.setOut(captureStream);
-                    System.setErr(captureStream);
-
-                    Binding binding = new Binding();
-
-                    // Inject các biến môi trường
-                    binding.setVariable("nodeId", nodeId);
-                    binding.setVariable("output", new ArrayList<String>());
-                    binding.setVariable("data", new HashMap<String, Object>());
-                    // Inject out stream để code có thể dùng: out.println("...")
-                    binding.setVariable("out", captureStream);
-
-                    GroovyShell shell = new GroovyShell(binding);
-
-                    // Execute
-                    long startTime = System.currentTimeMillis();
-                    Object result = shell.evaluate(code);
-                    long executionTime = System.currentTimeMillis() - startTime;
-
-                    // Restore original streams
-                    System.setOut(originalOut);
-                    System.setErr(originalErr);
-
-                    // Get captured console output
-                    String consoleOutput = outputStream.toString().trim();
-
-                    // Lưu context
-                    ExecutionContext context = new ExecutionContext();
-                    context.binding = binding;
-                    context.result = result;
-                    context.consoleOutput = consoleOutput;
-                    context.status = "completed";
-                    context.startTime = startTime;
-                    contexts.put(codeId, context);
-
-                    log.info(
-                        "Code {} executed successfully in {}ms",
-                        codeId,
-                        executionTime
-                    );
-                    if (!consoleOutput.isEmpty()) {
-                        log.info("Console output:\n{}", consoleOutput);
-                    }
-
-                    return ExecutionResult.builder()
-                        .codeId(codeId)
-                        .nodeId(nodeId)
-                        .result(result != null ? result.toString() : "null")
-                        .consoleOutput(consoleOutput)
-                        .executionTime(executionTime)
-                        .status("completed")
-                        .build();
-                } catch (Exception e) {
-                    // Restore original streams on error
-                    System.setOut(originalOut);
-                    System.setErr(originalErr);
-
-                    String consoleOutput = outputStream.toString().trim();
-                    log.error(
-                        "Execution error for code {}: {}",
-                        codeId,
-                        e.getMessage()
-                    );
-                    if (!consoleOutput.isEmpty()) {
-                        log.info(
-                            "Console output before error:\n{}",
-                            consoleOutput
-                        );
-                    }
+        return execute(codeId, code, nodeId, ExecutionOptions.defaults());
+    }
 
-                    return ExecutionResult.builder()
-                        .codeId(codeId)
-                        .nodeId(nodeId)
-                        .consoleOutput(consoleOutput)
-                        .error(e.getMessage())
-                        .status("error")
-                        .build();
-                }
-            },
-            executor
-        );
+    public CompletableFuture<ExecutionResult> execute(
+        String codeId,
+        String code,
+        String nodeId,
+        ExecutionOptions options
+    ) {
+        return run(codeId, code, nodeId, null, options);
     }
 
     // Thực thi với state đã có (strong mobility)
@@ -127,159 +155,834 @@ public class CodeExecutorService {
         String nodeId,
         CodePackage.CodeState state
     ) {
-        return CompletableFuture.supplyAsync(
-            () -> {
-                // Capture stdout/stderr
-                ByteArrayOutputStream outputStream =
-                    new ByteArrayOutputStream();
-                PrintStream captureStream = new PrintStream(outputStream);
-                PrintStream originalOut = System.out;
-                PrintStream originalErr = System.err;
+        return executeWithState(
+            codeId,
+            code,
+            nodeId,
+            state,
+            ExecutionOptions.defaults()
+        );
+    }
 
-                try {
-                    log.info(
-                        "Executing code {} with restored state on node {}",
-                        codeId,
-                        nodeId
-                    );
+    public CompletableFuture<ExecutionResult> executeWithState(
+        String codeId,
+        String code,
+        String nodeId,
+        CodePackage.CodeState state,
+        ExecutionOptions options
+    ) {
+        return run(codeId, code, nodeId, state, options);
+    }
 
-                    System.setOut(captureStream);
-                    System.setErr(captureStream);
+    private CompletableFuture<ExecutionResult> run(
+        String codeId,
+        String code,
+        String nodeId,
+        CodePackage.CodeState state,
+        ExecutionOptions options
+    ) {
+        // Package deterministic đã chạy với cùng code + state -> trả kết
+        // quả đã lưu, không chiếm slot của engine
+        String memoKey = null;
+        if (options.isDeterministic()) {
+            memoKey = MemoCache.key(code, state);
+            MemoizedRun memoized = resultMemo.get(memoKey);
+            if (memoized != null) {
+                return CompletableFuture.completedFuture(
+                    replay(codeId, nodeId, memoized)
+                );
+            }
+        }
 
-                    Binding binding = new Binding();
+        // Đăng ký context ngay khi nhận lệnh để stop() hủy được cả
+        // execution còn nằm trong hàng đợi
+        ExecutionContext context = new ExecutionContext();
+        context.binding = new Binding();
+        context.status = "queued";
+        context.output = new StreamingOutput(
+            options.getOutputSink(),
+            outputChunkBytes,
+            outputFlushIntervalMs,
+            outputTailBytes
+        );
+        context.timeoutMs = options.getTimeoutMs() != null
+            ? options.getTimeoutMs()
+            : defaultTimeoutMs;
+        context.cpuTimeLimitMs = options.getCpuTimeLimitMs() != null
+            ? options.getCpuTimeLimitMs()
+            : defaultCpuTimeLimitMs;
+        context.compileStatic = options.isCompileStatic();
+        context.memoKey = memoKey;
+        // Resume từ checkpoint của node nguồn (0 = chạy từ đầu)
+        context.checkpoints = new ScriptCheckpoints.Tracker(
+            state != null ? state.getExecutionPoint() : 0,
+            state != null ? state.getLoopIteration() : 0,
+            this::isSerializable,
+            checkpointPauseTimeoutMs,
+            state != null && state.getVariables() != null
+                ? new HashSet<>(state.getVariables().keySet())
+                : Set.of()
+        );
+        ExecutionContext previous = contexts.put(codeId, context);
+        if (previous != null && previous.isActive()) {
+            log.warn("Code {} re-executed while previous run is active", codeId);
+        }
 
-                    // Restore state
-                    if (state != null && state.getVariables() != null) {
-                        state.getVariables().forEach(binding::setVariable);
-                    }
+        try {
+            ScriptExecutionEngine.Submission<ExecutionResult> submission =
+                engine.submit(
+                    () -> runInSlot(codeId, code, nodeId, state, context),
+                    () -> cancelledBeforeStart(codeId, nodeId, context)
+                );
+            context.submission = submission;
+            return submission.result();
+        } catch (RejectedExecutionException e) {
+            // Engine đầy -> trả về kết quả "rejected" ngay
+            contexts.remove(codeId, context);
+            return CompletableFuture.completedFuture(
+                ExecutionResult.builder()
+                    .codeId(codeId)
+                    .nodeId(nodeId)
+                    .error("Worker saturated: execution queue is full")
+                    .status("rejected")
+                    .build()
+            );
+        }
+    }
 
-                    // Inject môi trường
-                    binding.setVariable("nodeId", nodeId);
-                    binding.setVariable("out", captureStream);
-
-                    GroovyShell shell = new GroovyShell(binding);
-
-                    long startTime = System.currentTimeMillis();
-                    Object result = shell.evaluate(code);
-                    long executionTime = System.currentTimeMillis() - startTime;
-
-                    // Restore streams
-                    System.setOut(originalOut);
-                    System.setErr(originalErr);
-
-                    String consoleOutput = outputStream.toString().trim();
-
-                    // Lưu context
-                    ExecutionContext context = new ExecutionContext();
-                    context.binding = binding;
-                    context.result = result;
-                    context.consoleOutput = consoleOutput;
-                    context.status = "completed";
-                    context.startTime = startTime;
-                    contexts.put(codeId, context);
-
-                    log.info(
-                        "Code {} with state executed in {}ms",
-                        codeId,
-                        executionTime
-                    );
-                    if (!consoleOutput.isEmpty()) {
-                        log.info("Console output:\n{}", consoleOutput);
-                    }
+    private ExecutionResult runInSlot(
+        String codeId,
+        String code,
+        String nodeId,
+        CodePackage.CodeState state,
+        ExecutionContext context
+    ) {
+        if (!context.begin()) {
+            // Bị stop đúng lúc tới lượt -> không chạy script
+            return cancelledBeforeStart(codeId, nodeId, context);
+        }
 
-                    return ExecutionResult.builder()
-                        .codeId(codeId)
-                        .nodeId(nodeId)
-                        .result(result != null ? result.toString() : "null")
-                        .consoleOutput(consoleOutput)
-                        .executionTime(executionTime)
-                        .status("completed")
-                        .build();
-                } catch (Exception e) {
-                    System.setOut(originalOut);
-                    System.setErr(originalErr);
-
-                    String consoleOutput = outputStream.toString().trim();
-                    log.error("Execution with state error: {}", e.getMessage());
-
-                    return ExecutionResult.builder()
-                        .codeId(codeId)
-                        .nodeId(nodeId)
-                        .consoleOutput(consoleOutput)
-                        .error(e.getMessage())
-                        .status("error")
-                        .build();
-                }
-            },
-            executor
+        // Capture stdout/stderr từ Groovy - sink riêng cho execution này,
+        // output được stream ra theo chunk trong lúc script chạy
+        StreamingOutput output = context.output;
+        PrintStream captureStream = new PrintStream(
+            output,
+            true,
+            StandardCharsets.UTF_8
         );
+
+        try {
+            if (state != null) {
+                log.info(
+                    "Executing code {} with restored state on node {} (resume at statement {}, iteration {})",
+                    codeId,
+                    nodeId,
+                    state.getExecutionPoint(),
+                    state.getLoopIteration()
+                );
+            } else {
+                log.info("Executing code {} on node {}", codeId, nodeId);
+            }
+
+            // System.out/err của thread này được route vào captureStream
+            ConsoleCapture.bind(captureStream);
+
+            Binding binding = context.binding;
+
+            // Inject các biến môi trường
+            binding.setVariable("output", new ArrayList<String>());
+            binding.setVariable("data", new HashMap<String, Object>());
+
+            // Restore state (strong mobility)
+            if (state != null && state.getVariables() != null) {
+                state.getVariables().forEach(binding::setVariable);
+            }
+
+            binding.setVariable("nodeId", nodeId);
+            // Inject out stream để code có thể dùng: out.println("...")
+            binding.setVariable("out", captureStream);
+
+            // Script class lấy từ cache theo hash của code (+ chế độ compile)
+            CompiledScriptCache.CompiledScript compiled = scriptCache.getScript(
+                code,
+                context.compileStatic
+            );
+            // Script tĩnh không có checkpoint -> capture không chờ safepoint
+            context.checkpointed = !compiled.staticCompiled();
+            if (compiled.fallbackReason() != null) {
+                captureStream.println(
+                    "[warning] Static compilation failed, running in dynamic mode:\n" +
+                    compiled.fallbackReason()
+                );
+            } else if (
+                compiled.staticCompiled() &&
+                state != null &&
+                state.getExecutionPoint() > 0
+            ) {
+                log.warn(
+                    "Code {} is statically compiled and cannot resume mid-execution, restarting from the beginning",
+                    codeId
+                );
+            }
+
+            // Chỉ interrupt được từ đây: interrupt lúc đang compile/nạp class
+            // làm loader của fat jar đóng channel, class lỗi bị nhớ vĩnh viễn
+            if (!context.enterScript()) {
+                throw new InterruptedException("Stopped during compilation");
+            }
+
+            // Execute
+            long startTime = System.currentTimeMillis();
+            ScriptCheckpoints.bind(context.checkpoints);
+            Object result = InvokerHelper.createScript(
+                compiled.scriptClass(),
+                binding
+            ).run();
+            context.leaveScript();
+            long executionTime = System.currentTimeMillis() - startTime;
+            ResourceUsage usage = measure(context);
+            // Gỡ sink trước khi log để log của worker không lẫn vào output script
+            ConsoleCapture.unbind();
+            ScriptCheckpoints.unbind();
+
+            // Get captured console output (phần đuôi, phần còn lại đã stream)
+            output.close();
+            String consoleOutput = output.tail().trim();
+
+            context.consoleOutput = consoleOutput;
+            context.finish("completed");
+
+            log.info(
+                "Code {} executed successfully in {}ms (cpu {}ms, allocated {} bytes, gc {}ms)",
+                codeId,
+                executionTime,
+                usage.cpuTimeMs(),
+                usage.allocatedBytes(),
+                usage.gcTimeMs()
+            );
+            if (!consoleOutput.isEmpty()) {
+                log.info("Console output:\n{}", consoleOutput);
+            }
+
+            ExecutionResult executionResult = ExecutionResult.builder()
+                .codeId(codeId)
+                .nodeId(nodeId)
+                .result(result != null ? result.toString() : "null")
+                .value(StateCodec.supports(result) ? result : null)
+                .consoleOutput(consoleOutput)
+                .outputBytes(output.getTotalBytes())
+                .executionTime(executionTime)
+                .cpuTimeMs(usage.cpuTimeMs())
+                .allocatedBytes(usage.allocatedBytes())
+                .gcTimeMs(usage.gcTimeMs())
+                .gcCount(usage.gcCount())
+                .compilation(compiled.staticCompiled() ? "static" : "dynamic")
+                .status("completed")
+                .build();
+            if (context.memoKey != null) {
+                resultMemo.put(
+                    context.memoKey,
+                    new MemoizedRun(
+                        executionResult,
+                        StateCodec.encode(finalState(context))
+                    )
+                );
+            }
+            return executionResult;
+        } catch (Exception e) {
+            // Bỏ cờ interrupt trước khi nạp class nào khác (builder, log...)
+            context.leaveScript();
+            ResourceUsage usage = measure(context);
+            ConsoleCapture.unbind();
+            output.close();
+            String consoleOutput = output.tail().trim();
+            context.consoleOutput = consoleOutput;
+
+            // Bị dừng bởi stop()/watchdog -> báo đúng lý do thay vì lỗi script
+            String cancelReason = context.cancelReason;
+            String status = cancelReason == null
+                ? "error"
+                : ("stopped".equals(cancelReason) ? "cancelled" : "timeout");
+            String error = cancelReason == null
+                ? e.getMessage()
+                : describeCancel(cancelReason, context);
+            context.finish(status);
+
+            if (cancelReason != null) {
+                log.warn("Code {} {}: {}", codeId, status, error);
+            } else {
+                log.error(
+                    "Execution error for code {}: {}",
+                    codeId,
+                    e.getMessage()
+                );
+            }
+            if (!consoleOutput.isEmpty()) {
+                log.info("Console output before error:\n{}", consoleOutput);
+            }
+
+            return ExecutionResult.builder()
+                .codeId(codeId)
+                .nodeId(nodeId)
+                .consoleOutput(consoleOutput)
+                .outputBytes(output.getTotalBytes())
+                .executionTime(System.currentTimeMillis() - context.startTime)
+                .cpuTimeMs(usage.cpuTimeMs())
+                .allocatedBytes(usage.allocatedBytes())
+                .gcTimeMs(usage.gcTimeMs())
+                .gcCount(usage.gcCount())
+                .error(error)
+                .status(status)
+                .build();
+        } finally {
+            ConsoleCapture.unbind();
+            ScriptCheckpoints.unbind();
+            context.checkpoints.close();
+            if (context.thread != null) {
+                // Thoát bằng Error (StackOverflowError...) -> vẫn trả slot
+                context.finish("error");
+            }
+            retire(codeId, context);
+        }
+    }
+
+    // Execution kết thúc: chỉ giữ lại state đã mã hóa trong stateStore,
+    // Binding/output của context được giải phóng
+    private void retire(String codeId, ExecutionContext context) {
+        if (
+            "stopped".equals(context.cancelReason) ||
+            contexts.get(codeId) != context
+        ) {
+            return;
+        }
+        try {
+            stateStore.put(codeId, finalState(context));
+        } catch (RuntimeException e) {
+            log.warn("Failed to retain state of {}: {}", codeId, e.getMessage());
+        }
+        // Ghi vào store trước khi gỡ để getState() không hụt ở giữa
+        contexts.remove(codeId, context);
+    }
+
+    private CodePackage.CodeState finalState(ExecutionContext context) {
+        return CodePackage.CodeState.builder()
+            .variables(context.checkpoints.copyVariables(context.binding))
+            .executionPoint(0)
+            .output(context.consoleOutput)
+            .build();
+    }
+
+    // Kết quả lấy từ memo: không tốn tài nguyên ở lần này; state cuối được
+    // đưa vào stateStore như một execution vừa kết thúc
+    private ExecutionResult replay(
+        String codeId,
+        String nodeId,
+        MemoizedRun memoized
+    ) {
+        stateStore.put(codeId, memoized.finalState());
+        log.info("Code {} served from result memo", codeId);
+        return memoized
+            .result()
+            .toBuilder()
+            .codeId(codeId)
+            .nodeId(nodeId)
+            .executionTime(0)
+            .cpuTimeMs(0)
+            .allocatedBytes(0)
+            .gcTimeMs(0)
+            .gcCount(0)
+            .memoized(true)
+            .build();
+    }
+
+    public Map<String, Object> getMemoStats() {
+        return resultMemo.getStats();
+    }
+
+    /**
+     * Tài nguyên execution đã dùng - gọi trên thread của script khi kết thúc.
+     * CPU time và bytes cấp phát đo theo thread (-1 nếu JVM không hỗ trợ,
+     * vd. virtual thread); GC là thời gian/số lần GC của JVM trong lúc
+     * script chạy (GC không gắn được với riêng một thread).
+     */
+    private ResourceUsage measure(ExecutionContext context) {
+        long cpuTimeMs = -1;
+        long cpuNanos = context.cpuStartNanos >= 0
+            ? threadBean.getCurrentThreadCpuTime()
+            : -1;
+        if (cpuNanos >= 0) {
+            cpuNanos -= context.cpuStartNanos;
+            cpuTimeMs = cpuNanos / 1_000_000;
+        }
+
+        long allocatedBytes = -1;
+        long allocatedNow = currentThreadAllocatedBytes();
+        if (context.allocatedStartBytes >= 0 && allocatedNow >= 0) {
+            allocatedBytes = allocatedNow - context.allocatedStartBytes;
+        }
+
+        long gcTimeMs = gcTime() - context.gcStartTimeMs;
+        long gcCount = gcCount() - context.gcStartCount;
+
+        measuredExecutions.incrementAndGet();
+        if (cpuNanos >= 0) totalCpuTimeNanos.addAndGet(cpuNanos);
+        if (allocatedBytes >= 0) totalAllocatedBytes.addAndGet(allocatedBytes);
+        totalGcTimeMs.addAndGet(gcTimeMs);
+
+        return new ResourceUsage(cpuTimeMs, allocatedBytes, gcTimeMs, gcCount);
+    }
+
+    private long currentThreadAllocatedBytes() {
+        if (
+            threadBean instanceof com.sun.management.ThreadMXBean hotspot &&
+            hotspot.isThreadAllocatedMemorySupported() &&
+            hotspot.isThreadAllocatedMemoryEnabled()
+        ) {
+            return hotspot.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : gcBeans) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : gcBeans) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    // Tổng hợp theo node - gửi kèm metrics của worker
+    public Map<String, Object> getResourceStats() {
+        long executions = measuredExecutions.get();
+        long cpuTimeMs = totalCpuTimeNanos.get() / 1_000_000;
+        long allocatedBytes = totalAllocatedBytes.get();
+        return Map.of(
+            "executions",
+            executions,
+            "cpuTimeMs",
+            cpuTimeMs,
+            "allocatedBytes",
+            allocatedBytes,
+            "gcTimeMs",
+            totalGcTimeMs.get(),
+            "avgCpuTimeMs",
+            executions > 0 ? cpuTimeMs / executions : 0,
+            "avgAllocatedBytes",
+            executions > 0 ? allocatedBytes / executions : 0
+        );
+    }
+
+    private String describeCancel(String reason, ExecutionContext context) {
+        return switch (reason) {
+            case "timeout" -> String.format(
+                "Execution exceeded wall-clock limit of %dms",
+                context.timeoutMs
+            );
+            case "cpu-limit" -> String.format(
+                "Execution exceeded CPU time limit of %dms",
+                context.cpuTimeLimitMs
+            );
+            default -> "Execution stopped";
+        };
+    }
+
+    // Watchdog: kiểm tra giới hạn wall-clock và CPU time của script đang chạy
+    private void enforceLimits() {
+        long now = System.currentTimeMillis();
+        for (ExecutionContext context : running) {
+            Thread thread = context.thread;
+            if (thread == null) continue;
+
+            // Đã hủy nhưng vẫn chạy (interrupt bị nuốt bởi script)
+            // -> interrupt lại cho tới khi script thoát
+            if (context.cancelReason != null) {
+                context.reinterrupt();
+                continue;
+            }
+
+            if (
+                context.timeoutMs > 0 &&
+                now - context.startTime > context.timeoutMs
+            ) {
+                context.cancel("timeout");
+                continue;
+            }
+
+            // Virtual thread không hỗ trợ đo CPU time (trả về -1)
+            if (context.cpuTimeLimitMs > 0 && !thread.isVirtual()) {
+                long cpuNanos = threadBean.getThreadCpuTime(thread.threadId());
+                if (
+                    cpuNanos >= 0 &&
+                    cpuNanos - context.cpuStartNanos >
+                    context.cpuTimeLimitMs * 1_000_000
+                ) {
+                    context.cancel("cpu-limit");
+                }
+            }
+        }
+    }
+
+    // Flusher: đẩy output đang chờ của các script đang chạy ra sink
+    private void flushOutputs() {
+        for (ExecutionContext context : running) {
+            try {
+                context.output.flushIfDue();
+            } catch (Exception e) {
+                log.warn("Failed to flush script output: {}", e.getMessage());
+            }
+        }
     }
 
     // Lấy state hiện tại
     public CodePackage.CodeState getState(String codeId) {
+        return getState(codeId, false);
+    }
+
+    /**
+     * Lấy state hiện tại. Script đang chạy được chụp tại safepoint kế tiếp
+     * (execution point thật + binding nhất quán); pause = giữ script đứng
+     * yên sau snapshot để stop() ngay sau đó không làm mất tiến độ.
+     * Execution đã kết thúc trả về binding cuối với executionPoint = 0.
+     * Chặn thread gọi tối đa checkpointWaitMs - xem captureState().
+     */
+    public CodePackage.CodeState getState(String codeId, boolean pause) {
+        return captureState(codeId, pause).join();
+    }
+
+    /**
+     * Như getState() nhưng không chặn: future hoàn thành khi script tới
+     * safepoint (hoặc hết checkpointWaitMs thì chụp không cần safepoint).
+     * Callback chạy trên virtual thread, không phải thread của script.
+     */
+    public CompletableFuture<CodePackage.CodeState> captureState(
+        String codeId,
+        boolean pause
+    ) {
         ExecutionContext context = contexts.get(codeId);
-        if (context == null) return null;
-
-        Map<String, Object> variables = new HashMap<>();
-        context.binding
-            .getVariables()
-            .forEach((k, v) -> {
-                if (isSerializable(v)) {
-                    variables.put(k.toString(), v);
-                }
-            });
+        if (context == null) {
+            // Đã kết thúc -> lấy từ store (bộ nhớ hoặc đĩa)
+            return CompletableFuture.completedFuture(stateStore.get(codeId));
+        }
+        if (!"running".equals(context.status) || !context.checkpointed) {
+            return CompletableFuture.completedFuture(
+                capturedState(context, null)
+            );
+        }
+
+        // copy(): timeout chỉ áp cho lần chờ này, không hủy request
+        // snapshot dùng chung của Tracker
+        return context.checkpoints
+            .requestSnapshot(pause)
+            .copy()
+            .orTimeout(checkpointWaitMs, TimeUnit.MILLISECONDS)
+            .handleAsync(
+                (checkpoint, error) -> {
+                    Throwable cause = error instanceof CompletionException
+                        ? error.getCause()
+                        : error;
+                    if (cause instanceof TimeoutException) {
+                        // Script đang kẹt trong một lời gọi dài, không tới safepoint
+                        ScriptCheckpoints.Tracker tracker = context.checkpoints;
+                        long iteration = Math.max(0, tracker.getIteration() - 1);
+                        log.warn(
+                            "Code {} did not reach a checkpoint within {}ms, capturing statement {} iteration {} without safepoint",
+                            codeId,
+                            checkpointWaitMs,
+                            tracker.getStatement(),
+                            iteration
+                        );
+                        checkpoint = new ScriptCheckpoints.Checkpoint(
+                            tracker.getStatement(),
+                            iteration,
+                            tracker.copyVariables(context.binding)
+                        );
+                    } else if (cause != null) {
+                        log.warn(
+                            "Checkpoint of {} failed: {}",
+                            codeId,
+                            cause.getMessage()
+                        );
+                    }
+                    return capturedState(context, checkpoint);
+                },
+                captureCallbacks
+            );
+    }
+
+    private CodePackage.CodeState capturedState(
+        ExecutionContext context,
+        ScriptCheckpoints.Checkpoint checkpoint
+    ) {
+        if (checkpoint == null) {
+            // Đã kết thúc (hoặc chưa chạy): binding cuối, chạy lại từ đầu
+            checkpoint = new ScriptCheckpoints.Checkpoint(
+                0,
+                0,
+                context.checkpoints.copyVariables(context.binding)
+            );
+        }
 
         return CodePackage.CodeState.builder()
-            .variables(variables)
-            .executionPoint(0)
+            .variables(checkpoint.variables())
+            .executionPoint(checkpoint.executionPoint())
+            .loopIteration(checkpoint.loopIteration())
             .output(
                 context.consoleOutput != null
                     ? context.consoleOutput
-                    : (context.result != null ? context.result.toString() : "")
+                    : context.output.tail().trim()
             )
             .build();
     }
 
-    // Dừng execution
-    public void stop(String codeId) {
+    // Thả script đang bị giữ sau getState(codeId, true) (vd. migration thất bại)
+    public void releaseCheckpoint(String codeId) {
         ExecutionContext context = contexts.get(codeId);
         if (context != null) {
-            context.status = "stopped";
-            contexts.remove(codeId);
-            log.info("Code {} stopped", codeId);
+            context.checkpoints.release();
         }
     }
 
+    // Bị stop khi còn trong hàng đợi -> không chiếm slot
+    private ExecutionResult cancelledBeforeStart(
+        String codeId,
+        String nodeId,
+        ExecutionContext context
+    ) {
+        context.status = "cancelled";
+        log.info("Code {} cancelled before start", codeId);
+        contexts.remove(codeId, context);
+        return ExecutionResult.builder()
+            .codeId(codeId)
+            .nodeId(nodeId)
+            .error("Execution cancelled before start")
+            .status("cancelled")
+            .build();
+    }
+
+    // Dừng execution: interrupt thread đang chạy script, hoặc rút khỏi hàng
+    // đợi của engine nếu chưa chạy để chỗ trong hàng đợi được trả lại ngay
+    public void stop(String codeId) {
+        stateStore.remove(codeId);
+        ExecutionContext context = contexts.remove(codeId);
+        if (context != null) {
+            boolean wasActive = context.isActive();
+            context.cancel("stopped");
+            ScriptExecutionEngine.Submission<?> submission = context.submission;
+            if (submission != null && submission.withdraw()) {
+                return;
+            }
+            log.info(
+                "Code {} stopped{}",
+                codeId,
+                wasActive ? " (interrupting active execution)" : ""
+            );
+        }
+    }
+
+    // Chỉ những giá trị StateCodec mã hóa được mới được đưa vào state
     private boolean isSerializable(Object obj) {
-        return (
-            obj instanceof String ||
-            obj instanceof Number ||
-            obj instanceof Boolean ||
-            obj instanceof List ||
-            obj instanceof Map
-        );
+        return StateCodec.supports(obj);
     }
 
     // Inner classes
-    private static class ExecutionContext {
+    private class ExecutionContext {
 
         Binding binding;
-        Object result;
-        String consoleOutput;
-        String status;
-        long startTime;
+        StreamingOutput output;
+        ScriptCheckpoints.Tracker checkpoints;
+        volatile String consoleOutput;
+        volatile String status;
+        volatile long startTime;
+
+        // Thread đang chạy script (null khi chưa chạy hoặc đã xong)
+        volatile Thread thread;
+        // Chỗ trong engine (rút ra được khi còn trong hàng đợi)
+        volatile ScriptExecutionEngine.Submission<?> submission;
+        volatile String cancelReason;
+        long cpuStartNanos;
+        long allocatedStartBytes;
+        long gcStartTimeMs;
+        long gcStartCount;
+        long timeoutMs;
+        long cpuTimeLimitMs;
+        boolean compileStatic;
+        String memoKey; // != null: kết quả completed được memo lại
+        // false khi script được compile tĩnh (không có safepoint)
+        volatile boolean checkpointed = true;
+        // true khi đã compile xong, script đang chạy -> cancel() mới interrupt
+        boolean interruptible;
+
+        // Gọi trên thread của engine ngay trước khi chạy script
+        synchronized boolean begin() {
+            if (cancelReason != null) {
+                status = "cancelled";
+                return false;
+            }
+            thread = Thread.currentThread();
+            startTime = System.currentTimeMillis();
+            // Virtual thread: CPU time/bytes cấp phát không đo được (-1)
+            cpuStartNanos = thread.isVirtual()
+                ? -1
+                : threadBean.getCurrentThreadCpuTime();
+            allocatedStartBytes = thread.isVirtual()
+                ? -1
+                : currentThreadAllocatedBytes();
+            gcStartTimeMs = gcTime();
+            gcStartCount = gcCount();
+            status = "running";
+            running.add(this);
+            return true;
+        }
+
+        void finish(String finalStatus) {
+            synchronized (this) {
+                thread = null;
+                status = finalStatus;
+            }
+            running.remove(this);
+            // Xóa cờ interrupt còn sót để thread của pool không bị ảnh hưởng
+            Thread.interrupted();
+        }
+
+        // Compile xong: false nếu đã bị hủy trong lúc compile
+        synchronized boolean enterScript() {
+            if (cancelReason != null) return false;
+            interruptible = true;
+            return true;
+        }
+
+        // Script đã thoát: không interrupt nữa, xóa cờ interrupt còn sót
+        synchronized void leaveScript() {
+            interruptible = false;
+            Thread.interrupted();
+        }
+
+        synchronized void cancel(String reason) {
+            if (cancelReason != null) return;
+            cancelReason = reason;
+            if (thread != null && interruptible) {
+                thread.interrupt();
+            }
+        }
+
+        synchronized void reinterrupt() {
+            if (thread != null && interruptible) {
+                thread.interrupt();
+            }
+        }
+
+        boolean isActive() {
+            return "queued".equals(status) || "running".equals(status);
+        }
     }
 
+    /**
+     * Tùy chọn cho một lần thực thi (null = dùng cấu hình mặc định của node)
+     */
     @lombok.Data
     @lombok.Builder
+    public static class ExecutionOptions {
+
+        private Long timeoutMs;
+        private Long cpuTimeLimitMs;
+
+        // Thử compile tĩnh (@CompileStatic), lỗi type-check thì chạy động
+        private boolean compileStatic;
+
+        // Cùng code + state luôn cho cùng kết quả -> cho phép memo kết quả
+        private boolean deterministic;
+
+        // Nhận output theo chunk trong lúc chạy (null = chỉ lấy khi kết thúc)
+        private StreamingOutput.Sink outputSink;
+
+        public static ExecutionOptions defaults() {
+            return ExecutionOptions.builder().build();
+        }
+
+        // Đọc từ CodePackage.metadata: timeoutMs, cpuTimeLimitMs,
+        // compileStatic, deterministic
+        public static ExecutionOptions fromMetadata(
+            Map<String, Object> metadata
+        ) {
+            if (metadata == null) return defaults();
+            return ExecutionOptions.builder()
+                .timeoutMs(asLong(metadata.get("timeoutMs")))
+                .cpuTimeLimitMs(asLong(metadata.get("cpuTimeLimitMs")))
+                .compileStatic(asBoolean(metadata.get("compileStatic")))
+                .deterministic(asBoolean(metadata.get("deterministic")))
+                .build();
+        }
+
+        private static boolean asBoolean(Object value) {
+            if (value instanceof Boolean bool) return bool;
+            return value instanceof String str && Boolean.parseBoolean(str.trim());
+        }
+
+        private static Long asLong(Object value) {
+            if (value instanceof Number number) return number.longValue();
+            if (value instanceof String str && !str.isBlank()) {
+                try {
+                    return Long.parseLong(str.trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    @lombok.Data
+    @lombok.Builder(toBuilder = true)
     public static class ExecutionResult {
 
         private String codeId;
         private String nodeId;
         private String result;
-        private String consoleOutput; // Captured println output
+        // Giá trị trả về nguyên kiểu (chỉ khi StateCodec mã hóa được), dùng
+        // để gộp kết quả các partition
+        private Object value;
+        private String consoleOutput; // Captured println output (phần đuôi)
+        private long outputBytes; // Tổng số byte script đã in ra
         private String error;
         private long executionTime;
+        // Tài nguyên đã dùng (-1 = không đo được trên thread này)
+        private long cpuTimeMs;
+        private long allocatedBytes;
+        private long gcTimeMs; // GC của JVM trong lúc script chạy
+        private long gcCount;
+        private String compilation; // "static" | "dynamic"
+        private boolean memoized; // Lấy từ memo, không thực thi lại
         private String status;
     }
+
+    // Kết quả + state cuối (đã mã hóa) của một lần chạy deterministic
+    private record MemoizedRun(ExecutionResult result, byte[] finalState) {
+        long weight() {
+            return (
+                64 +
+                finalState.length +
+                2L * length(result.getResult()) +
+                2L * length(result.getConsoleOutput())
+            );
+        }
+
+        private static int length(String value) {
+            return value != null ? value.length() : 0;
+        }
+    }
+
+    private record ResourceUsage(
+        long cpuTimeMs,
+        long allocatedBytes,
+        long gcTimeMs,
+        long gcCount
+    ) {}
 }
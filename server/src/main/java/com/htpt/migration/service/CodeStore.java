@@ -0,0 +1,130 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.util.ContentHash;
+import com.htpt.migration.util.MemoCache;
+import jakarta.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Kho code theo nội dung (SHA-256) phía Coordinator.
+ *
+ * Mỗi nội dung code chỉ giữ một bản, package tham chiếu bằng codeHash. Kho
+ * cũng nhớ worker nào đã có hash nào (đã gửi / worker đã ack); gửi package
+ * tới worker đã có code thì chỉ gửi hash + state + metadata. Worker báo
+ * thiếu (/node/code-missing) hoặc đăng ký lại thì bỏ khỏi danh sách đó.
+ *
+ * Kho giới hạn số entry / tổng byte, bỏ ra theo LRU: package vẫn giữ code
+ * của nó, kho chỉ để dùng chung một bản cho các package cùng nội dung.
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+public class CodeStore {
+
+    @Value("${node.code-store.max-entries:4096}")
+    private int maxEntries;
+
+    @Value("${node.code-store.max-bytes:67108864}")
+    private long maxBytes;
+
+    private MemoCache<String> codes;
+    // nodeId -> hash code mà worker đó đang giữ
+    private final Map<String, Set<String>> nodeHashes = new ConcurrentHashMap<>();
+
+    private final AtomicLong fullSends = new AtomicLong();
+    private final AtomicLong hashOnlySends = new AtomicLong();
+    private final AtomicLong codeBytesSent = new AtomicLong();
+    private final AtomicLong codeBytesSaved = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        codes = new MemoCache<>(maxEntries, maxBytes, 0, String::length);
+    }
+
+    /** Lưu code, trả về hash (null nếu không có code) */
+    public String put(String code) {
+        if (code == null) return null;
+        String hash = ContentHash.sha256(code);
+        if (codes.get(hash) == null) {
+            codes.put(hash, code);
+        }
+        return hash;
+    }
+
+    // null nếu không có hoặc đã bị bỏ khỏi kho
+    public String get(String hash) {
+        return hash != null ? codes.get(hash) : null;
+    }
+
+    public boolean isPresent(String nodeId, String hash) {
+        Set<String> hashes = nodeHashes.get(nodeId);
+        return hash != null && hashes != null && hashes.contains(hash);
+    }
+
+    public void markPresent(String nodeId, String hash) {
+        if (nodeId == null || hash == null) return;
+        nodeHashes
+            .computeIfAbsent(nodeId, id -> ConcurrentHashMap.newKeySet())
+            .add(hash);
+    }
+
+    public void markMissing(String nodeId, String hash) {
+        Set<String> hashes = nodeHashes.get(nodeId);
+        if (hashes != null && hash != null && hashes.remove(hash)) {
+            misses.incrementAndGet();
+            log.info("Node {} no longer has code {}", nodeId, shortHash(hash));
+        }
+    }
+
+    // Worker (re)register: có thể là process mới, kho của nó đã trống
+    public void forgetNode(String nodeId) {
+        nodeHashes.remove(nodeId);
+    }
+
+    /**
+     * Có cần gửi nội dung code tới node không (false = node đã có hash);
+     * ghi lại số byte code đã gửi / tiết kiệm được
+     */
+    public boolean needsCode(String nodeId, String hash) {
+        String code = get(hash);
+        long bytes = code != null ? code.length() : 0;
+        if (isPresent(nodeId, hash)) {
+            hashOnlySends.incrementAndGet();
+            codeBytesSaved.addAndGet(bytes);
+            return false;
+        }
+        fullSends.incrementAndGet();
+        codeBytesSent.addAndGet(bytes);
+        return true;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> store = codes.getStats();
+        stats.put("codes", store.get("entries"));
+        stats.put("codeBytes", store.get("bytes"));
+        stats.put("evictions", store.get("evictions"));
+        stats.put("fullSends", fullSends.get());
+        stats.put("hashOnlySends", hashOnlySends.get());
+        stats.put("codeBytesSent", codeBytesSent.get());
+        stats.put("codeBytesSaved", codeBytesSaved.get());
+        stats.put("misses", misses.get());
+        Map<String, Integer> perNode = new LinkedHashMap<>();
+        nodeHashes.forEach((nodeId, hashes) -> perNode.put(nodeId, hashes.size()));
+        stats.put("nodes", perNode);
+        return stats;
+    }
+
+    private static String shortHash(String hash) {
+        return hash.length() > 12 ? hash.substring(0, 12) : hash;
+    }
+}
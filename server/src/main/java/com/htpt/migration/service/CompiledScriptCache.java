@@ -0,0 +1,367 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.util.ContentHash;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import groovy.transform.CompileStatic;
+import groovy.transform.ThreadInterrupt;
+import jakarta.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache các Script class đã compile, khóa theo SHA-256 của code.
+ *
+ * Chạy lại cùng một package (hoặc sau khi di trú) chỉ tốn chi phí tạo
+ * instance và gắn Binding, không phải parse + compile lại bytecode.
+ *
+ * Class được compile theo "thế hệ": mỗi thế hệ là một GroovyShell (một
+ * GroovyClassLoader) dùng chung. GroovyClassLoader giữ mọi class nó định
+ * nghĩa nên class bị đẩy khỏi LRU vẫn chiếm metaspace; khi thế hệ hiện
+ * tại đã định nghĩa đủ nhiều class (hoặc metaspace vượt ngưỡng) thì đổi
+ * sang thế hệ mới, bỏ các entry của thế hệ cũ để loader cũ được GC thu
+ * hồi cùng toàn bộ class của nó.
+ *
+ * Package có thể yêu cầu compile tĩnh (@CompileStatic) cho các vòng lặp
+ * tính toán nặng; nếu type-check thất bại thì compile động như bình
+ * thường và trả kèm lý do. Class tĩnh được cache riêng (khóa khác).
+ */
+@Service
+@Slf4j
+public class CompiledScriptCache {
+
+    @Value("${node.executor.script-cache-size:256}")
+    private int maxEntries;
+
+    // Số class tối đa một thế hệ classloader được định nghĩa trước khi đổi
+    @Value("${node.executor.loader.max-classes-per-generation:1024}")
+    private int maxClassesPerGeneration;
+
+    // Đổi thế hệ sớm khi metaspace vượt ngưỡng (0 = không theo dõi)
+    @Value("${node.executor.loader.metaspace-rotate-bytes:268435456}")
+    private long metaspaceRotateBytes;
+
+    // Compile + chạy thử một script khi khởi động để nạp sẵn runtime Groovy
+    @Value("${node.executor.loader.warm-up:true}")
+    private boolean warmUp;
+
+    // Thế hệ nhỏ hơn mức này không bị đổi chỉ vì metaspace (tránh đổi liên tục)
+    private static final int MIN_CLASSES_BEFORE_METASPACE_ROTATION = 32;
+
+    private static final String WARM_UP_SCRIPT = String.join(
+        "\n",
+        // Kiểu khai báo tường minh -> nạp sẵn phần resolve class của compiler
+        "List<Integer> numbers = new ArrayList<>((1..200).collect { it * 2 })",
+        "long total = 0L",
+        "for (int i = 0; i < numbers.size(); i++) { total += numbers[i] }",
+        "Map<String, Object> words = [a: 1, b: 2].collectEntries { k, v -> [(k.toUpperCase()): v] }",
+        "\"total=${total} ${words}\".toString()"
+    );
+
+    private final AtomicInteger generationIds = new AtomicInteger();
+    private volatile Generation generation = new Generation(
+        generationIds.incrementAndGet()
+    );
+
+    // LinkedHashMap access-order = LRU, truy cập qua synchronized
+    private final Map<String, CachedScript> scripts = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    ) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, CachedScript> eldest
+        ) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                log.debug("Evicted compiled script {}", eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final Map<String, CompletableFuture<CompiledScript>> compiling =
+        new ConcurrentHashMap<>();
+
+    private final MemoryPoolMXBean metaspace = ManagementFactory
+        .getMemoryPoolMXBeans()
+        .stream()
+        .filter(pool -> "Metaspace".equals(pool.getName()))
+        .findFirst()
+        .orElse(null);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong compileTimeMs = new AtomicLong();
+    private final AtomicLong retiredGenerations = new AtomicLong();
+    private final AtomicLong staticCompilations = new AtomicLong();
+    private final AtomicLong staticFallbacks = new AtomicLong();
+
+    // Mọi script được chèn kiểm tra Thread.isInterrupted() ở đầu vòng lặp,
+    // closure và method -> stop()/timeout có thể dừng script thật sự;
+    // và checkpoint top-level để strong migration resume được giữa chừng
+    private static CompilerConfiguration compilerConfiguration() {
+        CompilerConfiguration config = new CompilerConfiguration();
+        config.addCompilationCustomizers(
+            new CheckpointCustomizer(),
+            new ASTTransformationCustomizer(ThreadInterrupt.class)
+        );
+        return config;
+    }
+
+    // Compile tĩnh: không chèn checkpoint (biến top-level phải là biến cục
+    // bộ có kiểu thì mới nhanh) -> script tĩnh chỉ hỗ trợ weak migration
+    private static CompilerConfiguration staticCompilerConfiguration() {
+        CompilerConfiguration config = new CompilerConfiguration();
+        config.addCompilationCustomizers(
+            new ASTTransformationCustomizer(ThreadInterrupt.class),
+            new ASTTransformationCustomizer(
+                Map.of(
+                    "extensions",
+                    List.of(BindingVariablesExtension.class.getName())
+                ),
+                CompileStatic.class
+            )
+        );
+        return config;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!warmUp) return;
+        // Chạy nền để không làm chậm khởi động; lần compile/chạy đầu tiên
+        // của package thật không phải trả chi phí nạp runtime Groovy
+        Thread warmer = new Thread(
+            () -> {
+                long start = System.currentTimeMillis();
+                try {
+                    Script script = generation.shell.parse(WARM_UP_SCRIPT);
+                    script.setBinding(new Binding());
+                    script.run();
+                    log.info(
+                        "Groovy runtime warmed up in {}ms",
+                        System.currentTimeMillis() - start
+                    );
+                } catch (Exception e) {
+                    log.warn("Groovy warm-up failed: {}", e.getMessage());
+                }
+            },
+            "script-warm-up"
+        );
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    // Tạo Script instance mới (đã gắn binding) từ class trong cache
+    public Script createScript(String code, Binding binding) {
+        return InvokerHelper.createScript(getScriptClass(code), binding);
+    }
+
+    public Class<? extends Script> getScriptClass(String code) {
+        return getScript(code, false).scriptClass();
+    }
+
+    // compileStatic = thử compile tĩnh, lỗi type-check thì dùng bản động
+    public CompiledScript getScript(String code, boolean compileStatic) {
+        String hash = ContentHash.sha256(code);
+        String key = compileStatic ? "static:" + hash : hash;
+
+        synchronized (scripts) {
+            CachedScript cached = scripts.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.script();
+            }
+        }
+
+        // Compile ngoài lock để không chặn các lần lookup khác; nhiều
+        // thread cùng miss một code thì chỉ thread đầu tiên compile
+        CompletableFuture<CompiledScript> pending = new CompletableFuture<>();
+        CompletableFuture<CompiledScript> inFlight = compiling.putIfAbsent(
+            key,
+            pending
+        );
+        if (inFlight != null) {
+            hits.incrementAndGet();
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                // Lỗi compile của thread kia -> ném lại nguyên gốc
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            Generation target = currentGeneration();
+            long start = System.currentTimeMillis();
+            CompiledScript compiled = compileStatic
+                ? compileStatic(target, code)
+                : new CompiledScript(compile(target.shell, code), false, null);
+            compileTimeMs.addAndGet(System.currentTimeMillis() - start);
+            target.classes.incrementAndGet();
+
+            synchronized (scripts) {
+                scripts.put(key, new CachedScript(compiled, target));
+            }
+            pending.complete(compiled);
+            return compiled;
+        } catch (RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            compiling.remove(key);
+        }
+    }
+
+    private CompiledScript compileStatic(Generation target, String code) {
+        try {
+            CompiledScript compiled = new CompiledScript(
+                compile(target.staticShell, code),
+                true,
+                null
+            );
+            staticCompilations.incrementAndGet();
+            return compiled;
+        } catch (MultipleCompilationErrorsException e) {
+            // Lỗi cú pháp thật sự thì compile động cũng ném lại lỗi đó
+            Class<? extends Script> dynamic = compile(target.shell, code);
+            staticFallbacks.incrementAndGet();
+            String reason = e.getMessage().replace("startup failed:", "").trim();
+            log.warn("Static compilation failed, using dynamic mode: {}", reason);
+            return new CompiledScript(dynamic, false, reason);
+        }
+    }
+
+    private static Class<? extends Script> compile(GroovyShell shell, String code) {
+        return shell.parse(code).getClass();
+    }
+
+    // Thế hệ để compile; đổi sang thế hệ mới nếu thế hệ hiện tại đã "đầy"
+    private Generation currentGeneration() {
+        Generation current = generation;
+        int classes = current.classes.get();
+        boolean full = classes >= maxClassesPerGeneration;
+        boolean metaspaceHigh =
+            metaspace != null &&
+            metaspaceRotateBytes > 0 &&
+            classes >= MIN_CLASSES_BEFORE_METASPACE_ROTATION &&
+            metaspace.getUsage().getUsed() > metaspaceRotateBytes;
+        if (!full && !metaspaceHigh) return current;
+
+        Generation next;
+        synchronized (this) {
+            if (generation != current) return generation;
+            next = new Generation(generationIds.incrementAndGet());
+            generation = next;
+        }
+        retire(current, full ? "class limit" : "metaspace threshold");
+        return next;
+    }
+
+    // Bỏ mọi tham chiếu của cache tới thế hệ cũ; script đang chạy vẫn giữ
+    // class của nó, loader được thu hồi khi các execution đó kết thúc
+    private void retire(Generation old, String reason) {
+        int dropped = 0;
+        synchronized (scripts) {
+            Iterator<CachedScript> it = scripts.values().iterator();
+            while (it.hasNext()) {
+                CachedScript cached = it.next();
+                if (cached.generation() == old) {
+                    it.remove();
+                    InvokerHelper.removeClass(cached.script().scriptClass());
+                    dropped++;
+                }
+            }
+        }
+        old.shell.getClassLoader().clearCache();
+        old.staticShell.getClassLoader().clearCache();
+        retiredGenerations.incrementAndGet();
+        log.info(
+            "Retired script classloader generation {} ({}, {} classes, {} cached scripts dropped)",
+            old.id,
+            reason,
+            old.classes.get(),
+            dropped
+        );
+    }
+
+    public void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        int size;
+        synchronized (scripts) {
+            size = scripts.size();
+        }
+        Generation current = generation;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("maxSize", maxEntries);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("compileTimeMs", compileTimeMs.get());
+        stats.put("staticCompilations", staticCompilations.get());
+        stats.put("staticFallbacks", staticFallbacks.get());
+        stats.put("generation", current.id);
+        stats.put("generationClasses", current.classes.get());
+        stats.put("retiredGenerations", retiredGenerations.get());
+        stats.put(
+            "metaspaceUsedBytes",
+            metaspace != null ? metaspace.getUsage().getUsed() : -1
+        );
+        return stats;
+    }
+
+    /**
+     * Kết quả compile: staticCompiled = false kèm fallbackReason khi package
+     * yêu cầu compile tĩnh nhưng type-check thất bại.
+     */
+    public record CompiledScript(
+        Class<? extends Script> scriptClass,
+        boolean staticCompiled,
+        String fallbackReason
+    ) {}
+
+    private record CachedScript(CompiledScript script, Generation generation) {}
+
+    // GroovyClassLoader dùng chung cho các script compile trong thế hệ
+    // (một shell cho chế độ động, một cho chế độ tĩnh)
+    private static final class Generation {
+
+        final int id;
+        final GroovyShell shell = new GroovyShell(compilerConfiguration());
+        final GroovyShell staticShell = new GroovyShell(
+            staticCompilerConfiguration()
+        );
+        final AtomicInteger classes = new AtomicInteger();
+
+        Generation(int id) {
+            this.id = id;
+        }
+    }
+}
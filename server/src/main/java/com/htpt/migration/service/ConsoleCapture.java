@@ -0,0 +1,222 @@
+package com.htpt.migration.service;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Định tuyến System.out / System.err theo thread.
+ *
+ * System.setOut/setErr chỉ được gọi MỘT lần (install) để gắn một
+ * PrintStream trung gian; mỗi execution bind sink riêng cho thread đang
+ * chạy script. Các script song song không dùng chung stream/lock nào,
+ * thread không bind sink thì ghi ra stdout/stderr gốc của JVM.
+ */
+final class ConsoleCapture {
+
+    private static final ThreadLocal<PrintStream> SINK = new ThreadLocal<>();
+    private static volatile boolean installed = false;
+
+    private ConsoleCapture() {}
+
+    static synchronized void install() {
+        if (installed) return;
+        System.setOut(new RoutingPrintStream(System.out));
+        System.setErr(new RoutingPrintStream(System.err));
+        installed = true;
+    }
+
+    static void bind(PrintStream sink) {
+        SINK.set(sink);
+    }
+
+    static void unbind() {
+        SINK.remove();
+    }
+
+    static PrintStream current() {
+        return SINK.get();
+    }
+
+    /**
+     * Ủy quyền mọi thao tác cho sink của thread hiện tại (hoặc stream gốc).
+     * Override toàn bộ public API để không đi qua lock nội bộ của
+     * PrintStream cha - lock đó sẽ là điểm tuần tự hóa toàn cục.
+     */
+    private static final class RoutingPrintStream extends PrintStream {
+
+        private final PrintStream fallback;
+
+        RoutingPrintStream(PrintStream fallback) {
+            super(fallback, true);
+            this.fallback = fallback;
+        }
+
+        private PrintStream target() {
+            PrintStream sink = SINK.get();
+            return sink != null ? sink : fallback;
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+
+        @Override
+        public void close() {
+            // Không đóng stream gốc của JVM
+            target().flush();
+        }
+
+        @Override
+        public boolean checkError() {
+            return target().checkError();
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            target().write(buf, off, len);
+        }
+
+        @Override
+        public void print(boolean b) {
+            target().print(b);
+        }
+
+        @Override
+        public void print(char c) {
+            target().print(c);
+        }
+
+        @Override
+        public void print(int i) {
+            target().print(i);
+        }
+
+        @Override
+        public void print(long l) {
+            target().print(l);
+        }
+
+        @Override
+        public void print(float f) {
+            target().print(f);
+        }
+
+        @Override
+        public void print(double d) {
+            target().print(d);
+        }
+
+        @Override
+        public void print(char[] s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(String s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(Object obj) {
+            target().print(obj);
+        }
+
+        @Override
+        public void println() {
+            target().println();
+        }
+
+        @Override
+        public void println(boolean x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(char x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(int x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(long x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(float x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(double x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(char[] x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(String x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(Object x) {
+            target().println(x);
+        }
+
+        @Override
+        public PrintStream printf(String format, Object... args) {
+            target().printf(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream printf(Locale l, String format, Object... args) {
+            target().printf(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(String format, Object... args) {
+            target().format(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(Locale l, String format, Object... args) {
+            target().format(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq) {
+            target().append(csq);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq, int start, int end) {
+            target().append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(char c) {
+            target().append(c);
+            return this;
+        }
+    }
+}
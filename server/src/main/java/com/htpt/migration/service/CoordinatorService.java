@@ -27,6 +27,8 @@ public class CoordinatorService {
 
     private final SimpMessagingTemplate messagingTemplate;
     private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    // Node đang drain - giữ qua lần đăng ký lại của worker
+    private final Set<String> drainingNodes = ConcurrentHashMap.newKeySet();
 
     @PostConstruct
     public void init() {
@@ -50,6 +52,7 @@ public class CoordinatorService {
         node.setConnectedAt(Instant.now());
         node.setStatus(Node.NodeStatus.ONLINE);
         node.setRole(Node.NodeRole.WORKER);
+        node.setDraining(drainingNodes.contains(node.getId()));
 
         nodes.put(node.getId(), node);
         log.info(
@@ -98,6 +101,25 @@ public class CoordinatorService {
         }
     }
 
+    // Đánh dấu / bỏ đánh dấu draining: node draining không được chọn làm
+    // target của migration, job scatter / broadcast
+    public void setDraining(String nodeId, boolean draining) {
+        if (draining) {
+            drainingNodes.add(nodeId);
+        } else {
+            drainingNodes.remove(nodeId);
+        }
+        Node node = nodes.get(nodeId);
+        if (node != null) {
+            node.setDraining(draining);
+            broadcastTopology();
+        }
+    }
+
+    public boolean isDraining(String nodeId) {
+        return drainingNodes.contains(nodeId);
+    }
+
     // Broadcast topology đến clients
     private void broadcastTopology() {
         messagingTemplate.convertAndSend("/topic/nodes", getTopology());
@@ -120,11 +142,65 @@ public class CoordinatorService {
             .stream()
             .filter(n -> !n.getId().equals(excludeNodeId))
             .filter(n -> n.getStatus() == Node.NodeStatus.ONLINE)
+            .filter(n -> !n.isDraining())
             .filter(n -> n.getMetrics() != null)
+            .filter(n -> !n.getMetrics().isSaturated())
             .min(Comparator.comparingDouble(n -> n.getMetrics().getLoadScore()))
             .orElse(null);
     }
 
+    // Các worker có thể nhận việc, tải thấp nhất trước (scatter-gather)
+    public List<Node> findLeastLoadedNodes() {
+        return nodes
+            .values()
+            .stream()
+            .filter(n -> n.getStatus() == Node.NodeStatus.ONLINE)
+            .filter(n -> !n.isDraining())
+            .filter(n -> n.getMetrics() != null)
+            .filter(n -> !n.getMetrics().isSaturated())
+            .sorted(Comparator.comparingDouble(n -> n.getMetrics().getLoadScore()))
+            .toList();
+    }
+
+    /**
+     * Target có thể nhận migration, tải thấp nhất trước. Khác
+     * findBestTargetNode: gồm cả node đang MIGRATING (đang nhận / gửi
+     * migration khác) - người gọi tự giới hạn số migration tới mỗi target
+     */
+    public List<Node> findMigrationTargets(String excludeNodeId) {
+        return nodes
+            .values()
+            .stream()
+            .filter(n -> !n.getId().equals(excludeNodeId))
+            .filter(
+                n ->
+                    n.getStatus() == Node.NodeStatus.ONLINE ||
+                    n.getStatus() == Node.NodeStatus.MIGRATING
+            )
+            .filter(n -> !n.isDraining())
+            .filter(n -> n.getMetrics() != null)
+            .filter(n -> !n.getMetrics().isSaturated())
+            .sorted(Comparator.comparingDouble(n -> n.getMetrics().getLoadScore()))
+            .toList();
+    }
+
+    // Mọi worker đang online có đủ các label yêu cầu (broadcast)
+    public List<Node> findNodesWithLabels(Collection<String> labels) {
+        return nodes
+            .values()
+            .stream()
+            .filter(n -> n.getStatus() == Node.NodeStatus.ONLINE)
+            .filter(n -> !n.isDraining())
+            .filter(
+                n ->
+                    labels == null ||
+                    labels.isEmpty() ||
+                    (n.getLabels() != null && n.getLabels().containsAll(labels))
+            )
+            .sorted(Comparator.comparing(Node::getId))
+            .toList();
+    }
+
     public Node getNode(String nodeId) {
         return nodes.get(nodeId);
     }
@@ -0,0 +1,276 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.util.ContentHash;
+import com.htpt.migration.util.StateCodec;
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * State của các execution đã kết thúc, để capture-state vẫn trả lời được
+ * sau khi script chạy xong.
+ *
+ * Mỗi state được giữ ở dạng đã mã hóa (StateCodec) nên kích thước tính
+ * được chính xác; store bị giới hạn theo số entry, tổng byte và TTL, bỏ
+ * ra theo LRU. Nếu cấu hình spill-dir, entry bị đẩy khỏi bộ nhớ được ghi
+ * xuống đĩa (cũng giới hạn theo byte) thay vì mất hẳn.
+ */
+@Service
+@Slf4j
+public class ExecutionStateStore {
+
+    @Value("${node.executor.state-store.max-entries:1024}")
+    private int maxEntries;
+
+    @Value("${node.executor.state-store.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${node.executor.state-store.ttl-ms:1800000}")
+    private long ttlMs;
+
+    // Rỗng = không spill, entry bị đẩy ra là mất
+    @Value("${node.executor.state-store.spill-dir:}")
+    private String spillDir;
+
+    @Value("${node.executor.state-store.spill-max-bytes:268435456}")
+    private long spillMaxBytes;
+
+    // Access-order = LRU; mọi truy cập đều synchronized(this)
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    );
+    private final LinkedHashMap<String, Entry> spilled = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    );
+    private long memoryBytes = 0;
+    private long spilledBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (!spillEnabled()) return;
+        try {
+            Path dir = Paths.get(spillDir);
+            Files.createDirectories(dir);
+            // Index của lần chạy trước không còn -> dọn file cũ
+            try (
+                DirectoryStream<Path> stale = Files.newDirectoryStream(
+                    dir,
+                    "*.state"
+                )
+            ) {
+                for (Path file : stale) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            log.info("Execution state spill directory: {}", dir.toAbsolutePath());
+        } catch (IOException e) {
+            log.warn(
+                "Cannot use state spill directory {}: {}",
+                spillDir,
+                e.getMessage()
+            );
+            spillDir = "";
+        }
+    }
+
+    public void put(String codeId, CodePackage.CodeState state) {
+        put(codeId, StateCodec.encode(state));
+    }
+
+    // State đã mã hóa sẵn (StateCodec)
+    public void put(String codeId, byte[] data) {
+        synchronized (this) {
+            removeQuietly(codeId);
+            memory.put(
+                codeId,
+                new Entry(data, data.length, System.currentTimeMillis(), null)
+            );
+            memoryBytes += data.length;
+            enforceLimits();
+        }
+    }
+
+    public CodePackage.CodeState get(String codeId) {
+        Entry entry;
+        synchronized (this) {
+            entry = memory.get(codeId);
+            if (entry == null) {
+                entry = spilled.get(codeId);
+            }
+            if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+                removeQuietly(codeId);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            byte[] data = entry.data != null
+                ? entry.data
+                : Files.readAllBytes(entry.file);
+            hits.incrementAndGet();
+            return StateCodec.decode(data);
+        } catch (IOException e) {
+            log.warn(
+                "Spilled state of {} is no longer readable: {}",
+                codeId,
+                e.getMessage()
+            );
+            // Chỉ bỏ đúng entry vừa đọc: put() có thể đã lưu state mới hơn
+            synchronized (this) {
+                if (spilled.remove(codeId, entry)) {
+                    release(entry);
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public synchronized void remove(String codeId) {
+        removeQuietly(codeId);
+    }
+
+    // Dọn các entry quá TTL (kể cả trên đĩa)
+    @Scheduled(fixedDelay = 60000)
+    public void expire() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            expireFrom(memory, now);
+            expireFrom(spilled, now);
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", memory.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("bytes", memoryBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("spilledEntries", spilled.size());
+        stats.put("spilledBytes", spilledBytes);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("spills", spills.get());
+        stats.put("expirations", expirations.get());
+        return stats;
+    }
+
+    // ========== Internal (gọi trong synchronized) ==========
+
+    private void enforceLimits() {
+        Iterator<Map.Entry<String, Entry>> lru = memory.entrySet().iterator();
+        while (
+            (memory.size() > maxEntries || memoryBytes > maxBytes) &&
+            lru.hasNext()
+        ) {
+            Map.Entry<String, Entry> eldest = lru.next();
+            lru.remove();
+            memoryBytes -= eldest.getValue().size;
+            evictions.incrementAndGet();
+            spill(eldest.getKey(), eldest.getValue());
+        }
+
+        Iterator<Map.Entry<String, Entry>> disk = spilled.entrySet().iterator();
+        while (spilledBytes > spillMaxBytes && disk.hasNext()) {
+            Map.Entry<String, Entry> eldest = disk.next();
+            disk.remove();
+            spilledBytes -= eldest.getValue().size;
+            deleteFile(eldest.getValue());
+        }
+    }
+
+    private void spill(String codeId, Entry entry) {
+        if (!spillEnabled() || entry.size > spillMaxBytes) return;
+        Path file = Paths.get(spillDir, ContentHash.sha256(codeId) + ".state");
+        try {
+            Files.write(file, entry.data);
+            spilled.put(
+                codeId,
+                new Entry(null, entry.size, entry.storedAt, file)
+            );
+            spilledBytes += entry.size;
+            spills.incrementAndGet();
+        } catch (IOException e) {
+            log.warn("Failed to spill state of {}: {}", codeId, e.getMessage());
+        }
+    }
+
+    private void expireFrom(Map<String, Entry> entries, long now) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (isExpired(entry.getValue(), now)) {
+                it.remove();
+                release(entry.getValue());
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    private void removeQuietly(String codeId) {
+        Entry entry = memory.remove(codeId);
+        if (entry != null) {
+            release(entry);
+        }
+        entry = spilled.remove(codeId);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.file != null) {
+            spilledBytes -= entry.size;
+            deleteFile(entry);
+        } else {
+            memoryBytes -= entry.size;
+        }
+    }
+
+    private void deleteFile(Entry entry) {
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}: {}", entry.file, e.getMessage());
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMs > 0 && now - entry.storedAt > ttlMs;
+    }
+
+    private boolean spillEnabled() {
+        return spillDir != null && !spillDir.isBlank();
+    }
+
+    // data != null: trong bộ nhớ; file != null: đã spill xuống đĩa
+    private record Entry(byte[] data, long size, long storedAt, Path file) {}
+}
@@ -80,6 +80,16 @@ public class LogBroadcastService {
         info(nodeId, "OUTPUT", String.format("Result: %s", formatOutput(output)));
     }
 
+    // Console output của script (từng dòng một)
+    public void logConsoleOutput(String nodeId, String text) {
+        if (text == null || text.isEmpty()) return;
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                info(nodeId, "CONSOLE", line.trim());
+            }
+        }
+    }
+
     public void logExecutionComplete(String nodeId, String codeId, long durationMs) {
         success(nodeId, "COMPLETE", String.format("Execution completed in %dms", durationMs));
     }
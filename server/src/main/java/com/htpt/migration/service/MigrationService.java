@@ -5,13 +5,22 @@ import com.htpt.migration.dto.MigrationRequest;
 import com.htpt.migration.model.CodePackage;
 import com.htpt.migration.model.Migration;
 import com.htpt.migration.model.Node;
+import com.htpt.migration.util.MemoCache;
+import com.htpt.migration.util.StateCodec;
+import com.htpt.migration.util.ValueFingerprint;
+import com.htpt.migration.util.WirePackage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -23,16 +32,102 @@ public class MigrationService {
     private final CoordinatorService coordinatorService;
     private final SimpMessagingTemplate messagingTemplate;
     private final LogBroadcastService logService;
-    private final ExecutorService executor = Executors.newFixedThreadPool(5);
+    private final RequestCorrelator requestCorrelator;
+    private final CodeStore codeStore;
+    private final ChunkTransferService chunkTransferService;
+    private final StateReassembler stateReassembler;
+
+    // Hạn chờ ack của target (received / executing) và của capture state
+    @Value("${node.migration.ack-timeout-ms:10000}")
+    private long ackTimeoutMs;
+
+    @Value("${node.migration.capture-timeout-ms:5000}")
+    private long captureTimeoutMs;
+
+    // Pre-copy: số vòng tối đa, ngưỡng byte của delta để chuyển sang
+    // stop-and-copy, khoảng nghỉ giữa các vòng
+    @Value("${node.migration.precopy.max-rounds:8}")
+    private int precopyMaxRounds;
+
+    @Value("${node.migration.precopy.dirty-threshold-bytes:4096}")
+    private long precopyDirtyThresholdBytes;
+
+    @Value("${node.migration.precopy.round-interval-ms:100}")
+    private long precopyRoundIntervalMs;
+
+    // peer: source gửi package thẳng tới target (lỗi thì relay);
+    // relay: Coordinator nhận state rồi chuyển tiếp
+    @Value("${node.migration.transfer:peer}")
+    private String transferMode;
+
+    // Nhịp demo: chờ thêm giữa các bước để frontend kịp hiển thị (0 = tắt)
+    @Value("${node.migration.step-delay-ms:0}")
+    private long stepDelayMs;
+
+    private final ScheduledExecutorService stepScheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "migration-steps");
+            thread.setDaemon(true);
+            return thread;
+        });
 
     private final Map<String, Migration> migrations = new ConcurrentHashMap<>();
     private final Map<String, CodePackage> codePackages =
         new ConcurrentHashMap<>();
 
-    // Lưu state được capture từ worker (để sử dụng trong Strong migration)
-    private final Map<String, CodePackage.CodeState> capturedStates =
+    // codeId -> migration đang chạy của code đó
+    private final Map<String, Migration> activeMigrations =
+        new ConcurrentHashMap<>();
+    // migrationId -> hạn chờ / lúc bắt đầu của bước hiện tại
+    private final Map<String, Long> phaseDeadlines = new ConcurrentHashMap<>();
+    private final Map<String, Long> phaseStartedAt = new ConcurrentHashMap<>();
+    // migrationId -> lúc script trên source bị dừng (tính downtime)
+    private final Map<String, Long> downtimeStartedAt =
+        new ConcurrentHashMap<>();
+    private final Map<String, PreCopy> preCopies = new ConcurrentHashMap<>();
+    // migrationId -> khóa memo do source tính (Coordinator không giữ state)
+    private final Map<String, String> peerMemoKeys = new ConcurrentHashMap<>();
+
+    private final AtomicLong peerTransfers = new AtomicLong();
+    private final AtomicLong peerStateBytes = new AtomicLong();
+    private final AtomicLong relayTransfers = new AtomicLong();
+    private final AtomicLong relayStateBytes = new AtomicLong();
+    private final AtomicLong peerFallbacks = new AtomicLong();
+
+    // Kết quả của package deterministic theo (code, state đầu vào)
+    @Value("${node.memo.max-entries:1024}")
+    private int memoMaxEntries;
+
+    @Value("${node.memo.max-bytes:16777216}")
+    private long memoMaxBytes;
+
+    @Value("${node.memo.ttl-ms:600000}")
+    private long memoTtlMs;
+
+    private MemoCache<Map<String, Object>> resultMemo;
+
+    // codeId -> (target, khóa memo) của execution đang chờ kết quả từ worker
+    private final Map<String, PendingMemo> pendingMemoKeys =
         new ConcurrentHashMap<>();
 
+    // codeId -> node đang chạy code (đã ack "executing", chưa có kết quả)
+    private final Map<String, String> executingOn = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        resultMemo = new MemoCache<>(
+            memoMaxEntries,
+            memoMaxBytes,
+            memoTtlMs,
+            MigrationService::resultWeight
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stepScheduler.shutdownNow();
+    }
+
     // Khởi tạo di trú
     public Migration initiateMigration(MigrationRequest request) {
         String migrationId = UUID.randomUUID().toString().substring(0, 8);
@@ -57,6 +152,8 @@ public class MigrationService {
                     : Migration.MigrationType.WEAK
             )
             .status(Migration.MigrationStatus.PENDING)
+            .phase(Migration.MigrationPhase.PREPARING)
+            .phaseDurations(new LinkedHashMap<>())
             .progress(0)
             .startTime(Instant.now())
             .build();
@@ -66,222 +163,1016 @@ public class MigrationService {
         // Broadcast migration created
         broadcastMigrationUpdate(migration);
 
-        // Thực hiện di trú async
-        executor.submit(() -> executeMigration(migration));
-
         log.info(
             "Migration initiated: {} from {} to {}",
             migrationId,
             sourceNodeId,
             request.getTargetNodeId()
         );
+
+        // Mỗi code chỉ có một migration đang chạy: ack/state theo codeId
+        Migration running = activeMigrations.putIfAbsent(
+            migration.getCodeId(),
+            migration
+        );
+        synchronized (migration) {
+            if (running != null) {
+                fail(
+                    migration,
+                    "Code " +
+                        migration.getCodeId() +
+                        " is already migrating (" +
+                        running.getId() +
+                        ")"
+                );
+            } else {
+                start(migration);
+            }
+        }
         return migration;
     }
 
-    // Thực hiện di trú
-    private void executeMigration(Migration migration) {
-        try {
-            migration.setStatus(Migration.MigrationStatus.IN_PROGRESS);
-            broadcastMigrationUpdate(migration);
+    /*
+     * Di trú là state machine không block thread nào: mỗi bước gửi lệnh tới
+     * worker rồi trả về, bước sau chạy khi worker báo lại
+     *   CAPTURING_STATE --/node/state-captured (requestId)--> TRANSFERRING
+     *   TRANSFERRING    --/node/migration-ack (received)--> STARTING
+     *   STARTING        --/node/migration-ack (executing)--> DONE
+     * Kiểu peer: source tự capture và POST package tới target, TRANSFERRING
+     * chờ ack "pushed" của source; "push-failed" hoặc quá hạn thì relay.
+     * PRECOPY thay hai bước đầu bằng PRECOPYING (các vòng capture -> delta).
+     * Bước chờ quá hạn (checkMigrations) thì migration FAILED, riêng capture
+     * state (timeout của request) thì tiếp tục với state đang có như trước.
+     * Các hàm bên dưới đều gọi trong synchronized(migration).
+     */
 
-            // Log migration start
-            logService.logMigrationStart(
-                migration.getId(),
+    // Step 1-2: chuẩn bị, yêu cầu capture state (strong) hoặc chuyển luôn
+    private void start(Migration migration) {
+        phaseStartedAt.put(migration.getId(), System.currentTimeMillis());
+        migration.setStatus(Migration.MigrationStatus.IN_PROGRESS);
+        broadcastMigrationUpdate(migration);
+
+        // Log migration start
+        logService.logMigrationStart(
+            migration.getId(),
+            migration.getSourceNodeId(),
+            migration.getTargetNodeId(),
+            migration.getType().name()
+        );
+
+        // Cập nhật status nodes
+        coordinatorService.updateNodeStatus(
+            migration.getSourceNodeId(),
+            Node.NodeStatus.MIGRATING
+        );
+        coordinatorService.updateNodeStatus(
+            migration.getTargetNodeId(),
+            Node.NodeStatus.MIGRATING
+        );
+
+        updateProgress(migration, 10, "Preparing migration");
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        if (codePackage == null) {
+            fail(migration, "Code package not found: " + migration.getCodeId());
+            return;
+        }
+
+        updateProgress(migration, 20, "Fetching code from source node");
+        logService.info(
+            migration.getSourceNodeId(),
+            "FETCH",
+            String.format(
+                "Fetching code \"%s\" (id: %s)",
+                codePackage.getName(),
+                codePackage.getId()
+            )
+        );
+
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/fetch",
+            Map.of(
+                "codeId",
+                migration.getCodeId(),
+                "migrationId",
+                migration.getId()
+            )
+        );
+
+        String peerUrl = migration.getType() != Migration.MigrationType.PRECOPY
+            ? peerUrl(migration.getTargetNodeId())
+            : null;
+        migration.setTransferMode(peerUrl != null ? "peer" : "relay");
+        if (peerUrl != null) {
+            pushToTarget(migration, peerUrl);
+        } else if (migration.getType() == Migration.MigrationType.STRONG) {
+            captureState(migration);
+        } else if (migration.getType() == Migration.MigrationType.PRECOPY) {
+            updateProgress(
+                migration,
+                30,
+                "Pre-copying state while the script keeps running"
+            );
+            logService.info(
                 migration.getSourceNodeId(),
-                migration.getTargetNodeId(),
-                migration.getType().name()
+                "PRECOPY",
+                "Copying state to target while running..."
             );
-
-            // Cập nhật status nodes
-            coordinatorService.updateNodeStatus(
+            preCopies.put(migration.getId(), new PreCopy());
+            enterPhase(migration, Migration.MigrationPhase.PRECOPYING, 0);
+            precopyRound(migration);
+        } else {
+            updateProgress(
+                migration,
+                40,
+                "Skipping state capture (weak migration)"
+            );
+            logService.info(
                 migration.getSourceNodeId(),
-                Node.NodeStatus.MIGRATING
+                "STATE",
+                "No state capture needed (weak mobility)"
             );
-            coordinatorService.updateNodeStatus(
-                migration.getTargetNodeId(),
-                Node.NodeStatus.MIGRATING
+            step(migration, Migration.MigrationPhase.PREPARING, () ->
+                transfer(migration, codePackage)
             );
+        }
+    }
 
-            // Step 1: Lấy code từ source node
-            updateProgress(migration, 10, "Preparing migration");
-            CodePackage codePackage = codePackages.get(migration.getCodeId());
+    // Strong (relay): Coordinator yêu cầu capture, state về qua requestId
+    private void captureState(Migration migration) {
+        updateProgress(migration, 40, "Capturing execution state from worker");
+        logService.info(
+            migration.getSourceNodeId(),
+            "STATE",
+            "Requesting state capture from worker..."
+        );
 
-            if (codePackage == null) {
-                throw new RuntimeException(
-                    "Code package not found: " + migration.getCodeId()
-                );
-            }
+        // State trả về kèm requestId -> chỉ đúng lần capture này nhận
+        // được nó, kể cả khi có capture khác của cùng code đang chạy
+        String requestId = requestCorrelator.newRequestId("capture");
+        enterPhase(migration, Migration.MigrationPhase.CAPTURING_STATE, 0);
+        // Sau peer lỗi: downtime tính từ lần pause đầu tiên
+        downtimeStartedAt.putIfAbsent(
+            migration.getId(),
+            System.currentTimeMillis()
+        );
+        requestCorrelator
+            .<CodePackage.CodeState>expect(requestId, captureTimeoutMs)
+            .whenComplete((state, error) -> {
+                synchronized (migration) {
+                    if (
+                        isFinished(migration) ||
+                        migration.getPhase() !=
+                        Migration.MigrationPhase.CAPTURING_STATE
+                    ) {
+                        return;
+                    }
+                    step(
+                        migration,
+                        Migration.MigrationPhase.CAPTURING_STATE,
+                        () -> onStateCaptured(migration, state, error != null)
+                    );
+                }
+            });
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/capture-state",
+            // pause: script dừng tại checkpoint cho tới lệnh stop ở bước 3
+            Map.of(
+                "codeId",
+                migration.getCodeId(),
+                "pause",
+                true,
+                "migrationId",
+                migration.getId(),
+                "requestId",
+                requestId
+            )
+        );
+    }
 
-            updateProgress(migration, 20, "Fetching code from source node");
-            logService.info(
+    // Địa chỉ REST của worker target, null nếu relay (tắt peer / chưa biết)
+    private String peerUrl(String targetNodeId) {
+        if (!"peer".equalsIgnoreCase(transferMode)) return null;
+        Node target = coordinatorService.getNode(targetNodeId);
+        if (target == null || target.getHost() == null || target.getPort() <= 0) {
+            return null;
+        }
+        return "http://" + target.getHost() + ":" + target.getPort();
+    }
+
+    // Step 2-4 (peer): source capture (strong) và POST package tới target
+    private void pushToTarget(Migration migration, String targetUrl) {
+        boolean strong = migration.getType() == Migration.MigrationType.STRONG;
+        updateProgress(
+            migration,
+            40,
+            strong
+                ? "Source capturing state and pushing it directly to target"
+                : "Source pushing code directly to target"
+        );
+        logService.info(
+            migration.getSourceNodeId(),
+            "PEER",
+            String.format(
+                "Pushing code%s to %s (%s)",
+                strong ? " + state" : "",
+                migration.getTargetNodeId(),
+                targetUrl
+            )
+        );
+        if (strong) {
+            // Source pause tại checkpoint khi capture
+            downtimeStartedAt.put(migration.getId(), System.currentTimeMillis());
+        }
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        boolean targetHasCode = !codeStore.needsCode(
+            migration.getTargetNodeId(),
+            codePackage.getCodeHash()
+        );
+        enterPhase(migration, Migration.MigrationPhase.TRANSFERRING, ackTimeoutMs);
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/push",
+            Map.of(
+                "codeId",
+                migration.getCodeId(),
+                "migrationId",
+                migration.getId(),
+                "targetUrl",
+                targetUrl,
+                "captureState",
+                strong,
+                "targetHasCode",
+                targetHasCode
+            )
+        );
+    }
+
+    // Target đã nhận package từ source -> dừng source, chạy trên target
+    private void onPushed(Migration migration, Map<String, Object> details) {
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        long bytes = details.get("bytes") instanceof Number number
+            ? number.longValue()
+            : 0;
+        migration.setStateBytes(bytes);
+        if (details.get("codeBytes") instanceof Number codeBytes) {
+            migration.setCodeBytes(codeBytes.longValue());
+        }
+        migration.setTransferredBytes(bytes + migration.getCodeBytes());
+        codeStore.markPresent(
+            migration.getTargetNodeId(),
+            codePackage.getCodeHash()
+        );
+        peerTransfers.incrementAndGet();
+        peerStateBytes.addAndGet(bytes);
+        if (details.get("memoKey") instanceof String memoKey) {
+            peerMemoKeys.put(migration.getId(), memoKey);
+        }
+
+        updateProgress(migration, 60, "Stopping execution on source node");
+        logService.info(
+            migration.getSourceNodeId(),
+            "STOP",
+            "Stopping execution"
+        );
+        downtimeStartedAt.putIfAbsent(
+            migration.getId(),
+            System.currentTimeMillis()
+        );
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/stop",
+            Map.of("codeId", migration.getCodeId())
+        );
+
+        updateProgress(
+            migration,
+            80,
+            String.format("Code pushed directly to target (%d state bytes)", bytes)
+        );
+        logService.logMigrationTransfer(migration.getId());
+        codePackage.setCurrentNodeId(migration.getTargetNodeId());
+        startOnTarget(migration);
+    }
+
+    // Peer không được (source báo lỗi / quá hạn) -> đi lại qua Coordinator
+    private void fallbackToRelay(Migration migration, String reason) {
+        peerFallbacks.incrementAndGet();
+        migration.setTransferMode("relay");
+        logService.warning(
+            migration.getSourceNodeId(),
+            "PEER",
+            "Direct transfer failed (" + reason + "), relaying through coordinator"
+        );
+        if (migration.getType() == Migration.MigrationType.STRONG) {
+            captureState(migration);
+        } else {
+            transfer(migration, codePackages.get(migration.getCodeId()));
+        }
+    }
+
+    // State đã về (hoặc hết thời gian chờ) -> gắn vào package rồi chuyển đi
+    private void onStateCaptured(
+        Migration migration,
+        CodePackage.CodeState capturedState,
+        boolean timedOut
+    ) {
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        if (capturedState != null) {
+            codePackage.setState(capturedState);
+            logService.logStateCheckpoint(
                 migration.getSourceNodeId(),
-                "FETCH",
-                String.format(
-                    "Fetching code \"%s\" (id: %s)",
-                    codePackage.getName(),
-                    codePackage.getId()
-                )
+                capturedState.getVariables()
             );
+        } else {
+            // Không gửi state của lần capture trước: target chạy từ đầu
+            codePackage.setState(null);
+            logService.warning(
+                migration.getSourceNodeId(),
+                "STATE",
+                timedOut
+                    ? "No state received from worker, continuing with empty state"
+                    : "Empty state received from worker"
+            );
+        }
+        transfer(migration, codePackage);
+    }
 
-            messagingTemplate.convertAndSend(
-                "/topic/node/" + migration.getSourceNodeId() + "/fetch",
-                Map.of(
-                    "codeId",
-                    migration.getCodeId(),
-                    "migrationId",
-                    migration.getId()
+    // Step 3-4: dừng trên source, gửi code (+ state) tới target, chờ ack
+    private void transfer(Migration migration, CodePackage codePackage) {
+        updateProgress(migration, 60, "Stopping execution on source node");
+        logService.info(
+            migration.getSourceNodeId(),
+            "STOP",
+            "Stopping execution"
+        );
+
+        downtimeStartedAt.putIfAbsent(
+            migration.getId(),
+            System.currentTimeMillis()
+        );
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/stop",
+            Map.of("codeId", migration.getCodeId())
+        );
+
+        updateProgress(migration, 80, "Transferring code to target node");
+        logService.logMigrationTransfer(migration.getId());
+
+        codePackage.setCurrentNodeId(migration.getTargetNodeId());
+
+        relayTransfers.incrementAndGet();
+        sendPackage(
+            migration,
+            codePackage,
+            codeStore.needsCode(
+                migration.getTargetNodeId(),
+                codePackage.getCodeHash()
+            )
+        );
+        relayStateBytes.addAndGet(migration.getStateBytes());
+    }
+
+    // Gửi package tới target (kèm code nếu target chưa có), chờ "received"
+    private void sendPackage(
+        Migration migration,
+        CodePackage codePackage,
+        boolean withCode
+    ) {
+        // Weak: không gửi state (kể cả state cũ còn trên package)
+        Map<String, Object> payload = WirePackage.payload(
+            codePackage,
+            withCode,
+            migration.getType() != Migration.MigrationType.WEAK
+        );
+        // Target trả lời qua /node/migration-ack (status "received")
+        payload.put("migrationId", migration.getId());
+        migration.setStateBytes(WirePackage.stateBytes(payload));
+        migration.setCodeBytes(WirePackage.codeBytes(payload));
+        enterPhase(migration, Migration.MigrationPhase.TRANSFERRING, ackTimeoutMs);
+        chunkTransferService
+            .sendPackage(
+                migration.getTargetNodeId(),
+                payload,
+                (sent, total) -> onTransferProgress(migration, sent, total)
+            )
+            .whenComplete((ignored, error) -> {
+                if (error == null) return;
+                synchronized (migration) {
+                    if (
+                        !isFinished(migration) &&
+                        migration.getPhase() ==
+                        Migration.MigrationPhase.TRANSFERRING
+                    ) {
+                        fail(
+                            migration,
+                            "Transfer to target failed: " + error.getMessage()
+                        );
+                    }
+                }
+            });
+    }
+
+    // Target ack thêm chunk -> cập nhật byte thật đã truyền, lùi hạn chờ
+    // (transfer còn chạy thì chưa coi là target không trả lời)
+    private void onTransferProgress(
+        Migration migration,
+        long sent,
+        long total
+    ) {
+        synchronized (migration) {
+            // Ack chunk cuối có thể tới sau "received" của target
+            migration.setTransferredBytes(sent);
+            if (
+                isFinished(migration) ||
+                migration.getPhase() != Migration.MigrationPhase.TRANSFERRING
+            ) {
+                return;
+            }
+            phaseDeadlines.put(
+                migration.getId(),
+                System.currentTimeMillis() + ackTimeoutMs
+            );
+            updateProgress(
+                migration,
+                80 + (int) (15 * sent / Math.max(total, 1)),
+                String.format(
+                    "Transferred %d / %d bytes to target",
+                    sent,
+                    total
                 )
             );
+        }
+    }
 
-            // Step 2: Nếu strong mobility, yêu cầu Worker capture state thực
-            if (migration.getType() == Migration.MigrationType.STRONG) {
+    /**
+     * State lớn đang được source gửi lên theo chunk (gọi từ WebSocketHandler):
+     * lùi hạn chờ capture để state không bị coi là không tới, báo số byte
+     */
+    public void onStateProgress(
+        String codeId,
+        String requestId,
+        long received,
+        long total
+    ) {
+        Migration migration = codeId != null
+            ? activeMigrations.get(codeId)
+            : null;
+        if (migration == null) return;
+        synchronized (migration) {
+            if (
+                isFinished(migration) ||
+                !requestCorrelator.extend(requestId, captureTimeoutMs)
+            ) {
+                return;
+            }
+            if (
+                migration.getPhase() == Migration.MigrationPhase.CAPTURING_STATE
+            ) {
                 updateProgress(
                     migration,
-                    40,
-                    "Capturing execution state from worker"
-                );
-
-                // Gửi lệnh capture state đến Worker source
-                logService.info(
-                    migration.getSourceNodeId(),
-                    "STATE",
-                    "Requesting state capture from worker..."
+                    40 + (int) (20 * received / Math.max(total, 1)),
+                    String.format(
+                        "Received %d / %d state bytes from source",
+                        received,
+                        total
+                    )
                 );
+            }
+        }
+    }
 
-                messagingTemplate.convertAndSend(
-                    "/topic/node/" +
-                        migration.getSourceNodeId() +
-                        "/capture-state",
-                    Map.of("codeId", migration.getCodeId())
-                );
+    /**
+     * Target nhận package chỉ có codeHash nhưng không có code đó (gọi từ
+     * WebSocketHandler): gửi lại kèm code
+     */
+    public void onCodeMissing(String migrationId, String nodeId) {
+        Migration migration = migrations.get(migrationId);
+        if (migration == null) return;
+        synchronized (migration) {
+            if (
+                isFinished(migration) ||
+                !"relay".equals(migration.getTransferMode()) ||
+                migration.getPhase() != Migration.MigrationPhase.TRANSFERRING ||
+                !Objects.equals(nodeId, migration.getTargetNodeId())
+            ) {
+                return;
+            }
+            log.info(
+                "Migration {}: target has no code {}, resending with code",
+                migrationId,
+                migration.getCodeId()
+            );
+            sendPackage(migration, codePackages.get(migration.getCodeId()), true);
+        }
+    }
 
-                // Chờ state từ Worker (tối đa 5 giây)
-                CodePackage.CodeState capturedState = null;
-                for (int i = 0; i < 10; i++) {
-                    Thread.sleep(500);
-                    capturedState = capturedStates.get(migration.getCodeId());
-                    if (capturedState != null) {
-                        break;
+    /*
+     * Pre-copy: script vẫn chạy trên source, mỗi vòng capture state (không
+     * pause) và chỉ gửi tới target các biến đổi so với bản target đang giữ
+     * (vòng đầu gửi cả package). Khi delta đủ nhỏ (hoặc hết số vòng) thì
+     * stop-and-copy: capture có pause, dừng source, gửi delta cuối rồi chạy
+     * trên target - script chỉ đứng yên trong vòng cuối này.
+     */
+    private void precopyRound(Migration migration) {
+        PreCopy copy = preCopies.get(migration.getId());
+        String requestId = requestCorrelator.newRequestId("precopy");
+        requestCorrelator
+            .<CodePackage.CodeState>expect(requestId, captureTimeoutMs)
+            .whenComplete((state, error) -> {
+                synchronized (migration) {
+                    if (
+                        isFinished(migration) ||
+                        migration.getPhase() != Migration.MigrationPhase.PRECOPYING
+                    ) {
+                        return;
+                    }
+                    if (error != null) {
+                        fail(
+                            migration,
+                            "Pre-copy round " +
+                                (copy.round + 1) +
+                                ": no state from source within " +
+                                captureTimeoutMs +
+                                "ms"
+                        );
+                    } else {
+                        onPrecopyState(migration, copy, state);
                     }
                 }
+            });
+        if (copy.finalRound) {
+            downtimeStartedAt.put(migration.getId(), System.currentTimeMillis());
+        }
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getSourceNodeId() + "/capture-state",
+            Map.of(
+                "codeId",
+                migration.getCodeId(),
+                "pause",
+                copy.finalRound,
+                "migrationId",
+                migration.getId(),
+                "requestId",
+                requestId
+            )
+        );
+    }
 
-                if (capturedState != null) {
-                    codePackage.setState(capturedState);
-                    logService.logStateCheckpoint(
-                        migration.getSourceNodeId(),
-                        capturedState.getVariables()
-                    );
-                    // Xóa khỏi map sau khi sử dụng
-                    capturedStates.remove(migration.getCodeId());
-                } else {
-                    logService.warning(
-                        migration.getSourceNodeId(),
-                        "STATE",
-                        "No state received from worker, continuing with empty state"
-                    );
-                }
-            } else {
-                updateProgress(
-                    migration,
-                    40,
-                    "Skipping state capture (weak migration)"
-                );
-                logService.info(
-                    migration.getSourceNodeId(),
-                    "STATE",
-                    "No state capture needed (weak mobility)"
-                );
+    private void onPrecopyState(
+        Migration migration,
+        PreCopy copy,
+        CodePackage.CodeState state
+    ) {
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        Map<String, Object> variables = state.getVariables() != null
+            ? state.getVariables()
+            : Map.of();
+
+        // Biến thay đổi so với bản target đang giữ (theo fingerprint)
+        Map<String, Object> changed = new HashMap<>();
+        Map<String, Long> fingerprints = new HashMap<>();
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            long fingerprint = ValueFingerprint.of(entry.getValue());
+            fingerprints.put(entry.getKey(), fingerprint);
+            if (!Objects.equals(copy.sent.get(entry.getKey()), fingerprint)) {
+                changed.put(entry.getKey(), entry.getValue());
             }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String name : copy.sent.keySet()) {
+            if (!variables.containsKey(name)) removed.add(name);
+        }
 
-            // Step 3: Dừng execution trên source
-            updateProgress(migration, 60, "Stopping execution on source node");
-            logService.info(
-                migration.getSourceNodeId(),
-                "STOP",
-                "Stopping execution"
+        long bytes;
+        CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+        if (copy.round == 0) {
+            // Vòng đầu: code + toàn bộ state; target chỉ lưu, chưa chạy
+            codePackage.setState(state);
+            Map<String, Object> payload = WirePackage.payload(
+                codePackage,
+                codeStore.needsCode(
+                    migration.getTargetNodeId(),
+                    codePackage.getCodeHash()
+                )
+            );
+            bytes = WirePackage.stateBytes(payload);
+            migration.setCodeBytes(WirePackage.codeBytes(payload));
+            // Package lớn đi theo chunk: vòng sau (delta) chỉ bắt đầu khi
+            // target đã nhận đủ package gốc
+            sent = chunkTransferService.sendPackage(
+                migration.getTargetNodeId(),
+                payload,
+                (acked, total) -> migration.setTransferredBytes(acked)
+            );
+        } else {
+            String encoded = StateCodec.encodeBase64(
+                CodePackage.CodeState.builder()
+                    .variables(changed)
+                    .executionPoint(state.getExecutionPoint())
+                    .loopIteration(state.getLoopIteration())
+                    .output(state.getOutput())
+                    .build()
             );
+            bytes = encoded.length();
+            migration.setTransferredBytes(
+                migration.getTransferredBytes() + bytes
+            );
+            messagingTemplate.convertAndSend(
+                "/topic/node/" + migration.getTargetNodeId() + "/state-delta",
+                Map.of(
+                    "codeId",
+                    migration.getCodeId(),
+                    "migrationId",
+                    migration.getId(),
+                    "round",
+                    copy.round,
+                    "state",
+                    encoded,
+                    "removed",
+                    removed
+                )
+            );
+        }
+        copy.sent = fingerprints;
+        copy.round++;
+        migration.setPrecopyRounds(copy.round);
+        migration.setStateBytes(migration.getStateBytes() + bytes);
 
+        if (copy.finalRound) {
+            // Source đang pause tại checkpoint -> dừng hẳn, chạy trên target
+            codePackage.setState(state);
             messagingTemplate.convertAndSend(
                 "/topic/node/" + migration.getSourceNodeId() + "/stop",
                 Map.of("codeId", migration.getCodeId())
             );
-
-            // Step 4: Transfer đến target node
-            updateProgress(migration, 80, "Transferring code to target node");
-            logService.logMigrationTransfer(migration.getId());
-
             codePackage.setCurrentNodeId(migration.getTargetNodeId());
+            logService.logStateCheckpoint(
+                migration.getSourceNodeId(),
+                state.getVariables()
+            );
+            startOnTarget(migration);
+            return;
+        }
 
-            messagingTemplate.convertAndSend(
-                "/topic/node/" + migration.getTargetNodeId() + "/receive",
-                codePackage
+        log.info(
+            "Migration {} pre-copy round {}: {} changed, {} removed, {} bytes",
+            migration.getId(),
+            copy.round,
+            changed.size(),
+            removed.size(),
+            bytes
+        );
+        if (
+            copy.round >= precopyMaxRounds ||
+            (copy.round > 1 && bytes <= precopyDirtyThresholdBytes)
+        ) {
+            copy.finalRound = true;
+            updateProgress(
+                migration,
+                80,
+                String.format(
+                    "Stop-and-copy after %d rounds (%d bytes dirty)",
+                    copy.round,
+                    bytes
+                )
+            );
+        } else {
+            updateProgress(
+                migration,
+                Math.min(30 + copy.round * 10, 70),
+                String.format(
+                    "Pre-copy round %d: %d variables changed (%d bytes)",
+                    copy.round,
+                    changed.size(),
+                    bytes
+                )
             );
+        }
+        sent.whenComplete((ignored, error) -> {
+            if (error != null) {
+                synchronized (migration) {
+                    if (!isFinished(migration)) {
+                        fail(
+                            migration,
+                            "Pre-copy transfer to target failed: " +
+                                error.getMessage()
+                        );
+                    }
+                }
+                return;
+            }
+            stepScheduler.schedule(
+                () -> {
+                    synchronized (migration) {
+                        if (
+                            !isFinished(migration) &&
+                            migration.getPhase() ==
+                            Migration.MigrationPhase.PRECOPYING
+                        ) {
+                            precopyRound(migration);
+                        }
+                    }
+                },
+                precopyRoundIntervalMs,
+                TimeUnit.MILLISECONDS
+            );
+        });
+    }
+
+    // Step 5: target đã có package -> chạy (hoặc trả kết quả đã memo)
+    private void startOnTarget(Migration migration) {
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        logService.logCodeReceive(
+            migration.getTargetNodeId(),
+            migration.getType() != Migration.MigrationType.WEAK
+        );
+
+        updateProgress(migration, 95, "Starting execution on target node");
+        logService.logExecutionStart(
+            migration.getTargetNodeId(),
+            codePackage.getId()
+        );
 
-            logService.logCodeReceive(
+        // Package deterministic đã chạy với cùng code + state -> dùng
+        // lại kết quả, không chiếm slot của worker
+        String peerMemoKey = peerMemoKeys.remove(migration.getId());
+        String memoKey = !isDeterministic(codePackage)
+            ? null
+            : peerMemoKey != null
+                ? peerMemoKey
+                : MemoCache.key(
+                    codePackage.getCode(),
+                    migration.getType() != Migration.MigrationType.WEAK
+                        ? codePackage.getState()
+                        : null
+                );
+        Map<String, Object> memoized = memoKey != null
+            ? resultMemo.get(memoKey)
+            : null;
+
+        if (memoized != null) {
+            publishMemoizedResult(
                 migration.getTargetNodeId(),
-                migration.getType() == Migration.MigrationType.STRONG
+                codePackage.getId(),
+                memoized
             );
+            complete(migration);
+            return;
+        }
 
-            // Step 5: Khởi động trên target
-            updateProgress(migration, 95, "Starting execution on target node");
-            logService.logExecutionStart(
-                migration.getTargetNodeId(),
-                codePackage.getId()
+        if (memoKey != null) {
+            pendingMemoKeys.put(
+                codePackage.getId(),
+                new PendingMemo(migration.getTargetNodeId(), memoKey)
             );
+        }
 
-            // Gửi lệnh execute đến Worker - Worker sẽ thực sự chạy code
-            // và gửi kết quả về qua /app/node/execution-complete
-            messagingTemplate.convertAndSend(
-                "/topic/node/" + migration.getTargetNodeId() + "/execute",
-                Map.of("codeId", codePackage.getId())
+        // Worker chạy code, ack "executing" khi đã nhận việc và gửi kết quả
+        // về qua /app/node/execution-complete khi chạy xong
+        enterPhase(migration, Migration.MigrationPhase.STARTING, ackTimeoutMs);
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + migration.getTargetNodeId() + "/execute",
+            Map.of("codeId", codePackage.getId(), "migrationId", migration.getId())
+        );
+        logService.info(
+            migration.getTargetNodeId(),
+            "WAITING",
+            "Waiting for execution result from worker..."
+        );
+    }
+
+    /**
+     * Ack của worker cho một bước di trú (gọi từ WebSocketHandler):
+     * "received" = target đã nhận package, "executing" = đã bắt đầu chạy,
+     * "rejected" = target đầy, không nhận việc; từ source (peer): "pushed" =
+     * target đã nhận package qua REST, "push-failed" = gửi không được
+     */
+    public void onMigrationAck(
+        String migrationId,
+        String nodeId,
+        String status,
+        Map<String, Object> details
+    ) {
+        Migration migration = migrations.get(migrationId);
+        if (migration == null) return;
+        synchronized (migration) {
+            if (isFinished(migration)) return;
+            Migration.MigrationPhase phase = migration.getPhase();
+            if (
+                "peer".equals(migration.getTransferMode()) &&
+                phase == Migration.MigrationPhase.TRANSFERRING &&
+                Objects.equals(nodeId, migration.getSourceNodeId())
+            ) {
+                if ("pushed".equals(status)) {
+                    step(migration, phase, () -> onPushed(migration, details));
+                } else if ("push-failed".equals(status)) {
+                    fallbackToRelay(migration, String.valueOf(details.get("error")));
+                }
+                return;
+            }
+            if (!Objects.equals(nodeId, migration.getTargetNodeId())) return;
+            if (
+                phase == Migration.MigrationPhase.TRANSFERRING &&
+                "received".equals(status)
+            ) {
+                codeStore.markPresent(
+                    nodeId,
+                    codePackages.get(migration.getCodeId()).getCodeHash()
+                );
+                step(migration, phase, () -> startOnTarget(migration));
+            } else if (phase == Migration.MigrationPhase.STARTING) {
+                if ("executing".equals(status)) {
+                    executingOn.put(migration.getCodeId(), nodeId);
+                    step(migration, phase, () -> complete(migration));
+                } else if ("rejected".equals(status)) {
+                    fail(migration, "Target node rejected execution (no free slot)");
+                }
+            }
+        }
+    }
+
+    // Hết thời gian chờ ack của target -> FAILED
+    @Scheduled(fixedDelay = 500)
+    public void checkMigrations() {
+        long now = System.currentTimeMillis();
+        for (Migration migration : activeMigrations.values()) {
+            synchronized (migration) {
+                Long deadline = phaseDeadlines.get(migration.getId());
+                if (isFinished(migration) || deadline == null || now < deadline) {
+                    continue;
+                }
+                phaseDeadlines.remove(migration.getId());
+                switch (migration.getPhase()) {
+                    case TRANSFERRING -> {
+                        if ("peer".equals(migration.getTransferMode())) {
+                            fallbackToRelay(
+                                migration,
+                                "no push ack within " + ackTimeoutMs + "ms"
+                            );
+                        } else {
+                            fail(
+                                migration,
+                                "Target node did not acknowledge the code package within " +
+                                    ackTimeoutMs +
+                                    "ms"
+                            );
+                        }
+                    }
+                    case STARTING -> fail(
+                        migration,
+                        "Target node did not start execution within " +
+                            ackTimeoutMs +
+                            "ms"
+                    );
+                    default -> {}
+                }
+            }
+        }
+    }
+
+    private void complete(Migration migration) {
+        // Target đã chạy package -> chắc chắn có code (kể cả pre-copy, không ack)
+        codeStore.markPresent(
+            migration.getTargetNodeId(),
+            codePackages.get(migration.getCodeId()).getCodeHash()
+        );
+        updateProgress(migration, 100, "Migration completed successfully");
+        enterPhase(migration, Migration.MigrationPhase.DONE, 0);
+        migration.setStatus(Migration.MigrationStatus.COMPLETED);
+        migration.setEndTime(Instant.now());
+        // Downtime: từ lúc source dừng/pause tới lúc target bắt đầu chạy
+        Long stoppedAt = downtimeStartedAt.get(migration.getId());
+        if (stoppedAt != null) {
+            migration.setDowntimeMs(
+                migration.getEndTime().toEpochMilli() - stoppedAt
             );
+        }
+        finish(migration);
 
-            // Không fake result nữa - kết quả thực sẽ được Worker gửi về
-            // và WebSocketHandler sẽ broadcast ra frontend
+        long duration =
+            migration.getEndTime().toEpochMilli() -
+            migration.getStartTime().toEpochMilli();
+        logService.logMigrationComplete(migration.getId(), duration);
+        if (migration.getType() == Migration.MigrationType.PRECOPY) {
             logService.info(
-                migration.getTargetNodeId(),
-                "WAITING",
-                "Waiting for execution result from worker..."
+                "MIGRATION",
+                "PRECOPY",
+                String.format(
+                    "%s: %d rounds, %d state bytes, downtime %dms of %dms",
+                    migration.getId(),
+                    migration.getPrecopyRounds(),
+                    migration.getStateBytes(),
+                    migration.getDowntimeMs(),
+                    duration
+                )
             );
+        }
+    }
 
-            // Complete
-            updateProgress(migration, 100, "Migration completed successfully");
-            migration.setStatus(Migration.MigrationStatus.COMPLETED);
-            migration.setEndTime(Instant.now());
-            broadcastMigrationUpdate(migration);
+    private void fail(Migration migration, String message) {
+        enterPhase(migration, Migration.MigrationPhase.DONE, 0);
+        migration.setStatus(Migration.MigrationStatus.FAILED);
+        migration.setErrorMessage(message);
+        migration.setEndTime(Instant.now());
+        finish(migration);
 
-            // Reset node status
-            coordinatorService.updateNodeStatus(
-                migration.getSourceNodeId(),
-                Node.NodeStatus.ONLINE
-            );
-            coordinatorService.updateNodeStatus(
-                migration.getTargetNodeId(),
-                Node.NodeStatus.ONLINE
-            );
+        logService.logMigrationFailed(migration.getId(), message);
+    }
 
-            long duration =
-                migration.getEndTime().toEpochMilli() -
-                migration.getStartTime().toEpochMilli();
-            logService.logMigrationComplete(migration.getId(), duration);
-        } catch (Exception e) {
-            migration.setStatus(Migration.MigrationStatus.FAILED);
-            migration.setErrorMessage(e.getMessage());
-            migration.setEndTime(Instant.now());
-            broadcastMigrationUpdate(migration);
-
-            // Reset node status
-            coordinatorService.updateNodeStatus(
-                migration.getSourceNodeId(),
-                Node.NodeStatus.ONLINE
-            );
-            coordinatorService.updateNodeStatus(
-                migration.getTargetNodeId(),
-                Node.NodeStatus.ONLINE
-            );
+    private void finish(Migration migration) {
+        activeMigrations.remove(migration.getCodeId(), migration);
+        phaseDeadlines.remove(migration.getId());
+        downtimeStartedAt.remove(migration.getId());
+        preCopies.remove(migration.getId());
+        peerMemoKeys.remove(migration.getId());
+        stateReassembler.forget(
+            migration.getSourceNodeId(),
+            migration.getCodeId()
+        );
+        // State chỉ dùng cho lần migration này (target đã nhận hoặc đã hủy):
+        // migration sau không được gửi lại state cũ
+        CodePackage codePackage = codePackages.get(migration.getCodeId());
+        if (codePackage != null) {
+            codePackage.setState(null);
+        }
+        broadcastMigrationUpdate(migration);
+
+        // Reset node status
+        coordinatorService.updateNodeStatus(
+            migration.getSourceNodeId(),
+            Node.NodeStatus.ONLINE
+        );
+        coordinatorService.updateNodeStatus(
+            migration.getTargetNodeId(),
+            Node.NodeStatus.ONLINE
+        );
+    }
 
-            logService.logMigrationFailed(migration.getId(), e.getMessage());
+    // Ghi thời gian của bước vừa xong, đặt hạn chờ cho bước mới (0 = không)
+    private void enterPhase(
+        Migration migration,
+        Migration.MigrationPhase phase,
+        long timeoutMs
+    ) {
+        long now = System.currentTimeMillis();
+        Long since = phaseStartedAt.put(migration.getId(), now);
+        if (since != null) {
+            migration
+                .getPhaseDurations()
+                .merge(migration.getPhase().name(), now - since, Long::sum);
+        }
+        if (phase == Migration.MigrationPhase.DONE) {
+            phaseStartedAt.remove(migration.getId());
         }
+        migration.setPhase(phase);
+        if (timeoutMs > 0) {
+            phaseDeadlines.put(migration.getId(), now + timeoutMs);
+        } else {
+            phaseDeadlines.remove(migration.getId());
+        }
+    }
+
+    // Chạy bước tiếp theo ngay, hoặc sau step-delay-ms nếu bật nhịp demo.
+    // expected: bước hiện tại lúc lên lịch; đã đổi thì bỏ (vd. đã timeout)
+    private void step(
+        Migration migration,
+        Migration.MigrationPhase expected,
+        Runnable next
+    ) {
+        if (stepDelayMs <= 0) {
+            next.run();
+            return;
+        }
+        phaseDeadlines.remove(migration.getId());
+        stepScheduler.schedule(
+            () -> {
+                synchronized (migration) {
+                    if (!isFinished(migration) && migration.getPhase() == expected) {
+                        next.run();
+                    }
+                }
+            },
+            stepDelayMs,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    // Khóa memo chỉ nhận kết quả từ node được giao chạy
+    private record PendingMemo(String nodeId, String memoKey) {}
+
+    // Tiến độ pre-copy của một migration (gọi trong synchronized(migration))
+    private static class PreCopy {
+
+        int round;
+        boolean finalRound;
+        // Fingerprint các biến target đang giữ
+        Map<String, Long> sent = Map.of();
+    }
+
+    private static boolean isFinished(Migration migration) {
+        return (
+            migration.getStatus() == Migration.MigrationStatus.COMPLETED ||
+            migration.getStatus() == Migration.MigrationStatus.FAILED ||
+            migration.getStatus() == Migration.MigrationStatus.CANCELLED
+        );
     }
 
     private void updateProgress(
@@ -308,13 +1199,6 @@ public class MigrationService {
 
         // Also broadcast full migration update
         broadcastMigrationUpdate(migration);
-
-        // Simulate network delay for demo visualization
-        try {
-            Thread.sleep(800);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
     }
 
     private void broadcastMigrationUpdate(Migration migration) {
@@ -324,21 +1208,19 @@ public class MigrationService {
     // Upload code
     public CodePackage uploadCode(CodeDTO dto) {
         String codeId = UUID.randomUUID().toString().substring(0, 8);
+        // Cùng nội dung code -> cùng hash, dùng chung một bản trong kho
+        // (code lớn hơn giới hạn của kho thì không được giữ trong kho)
+        String codeHash = codeStore.put(dto.getCode());
+        String code = codeStore.get(codeHash);
 
         CodePackage codePackage = CodePackage.builder()
             .id(codeId)
             .name(dto.getName())
-            .code(dto.getCode())
+            .code(code != null ? code : dto.getCode())
+            .codeHash(codeHash)
             .entryPoint(dto.getEntryPoint())
             .currentNodeId(dto.getInitialNodeId())
-            .metadata(
-                Map.of(
-                    "createdAt",
-                    System.currentTimeMillis(),
-                    "version",
-                    "1.0"
-                )
-            )
+            .metadata(packageMetadata(dto))
             .build();
 
         codePackages.put(codeId, codePackage);
@@ -347,8 +1229,12 @@ public class MigrationService {
         if (dto.getInitialNodeId() != null) {
             messagingTemplate.convertAndSend(
                 "/topic/node/" + dto.getInitialNodeId() + "/code-uploaded",
-                codePackage
+                WirePackage.payload(
+                    codePackage,
+                    codeStore.needsCode(dto.getInitialNodeId(), codeHash)
+                )
             );
+            codeStore.markPresent(dto.getInitialNodeId(), codeHash);
         }
 
         // Log code upload
@@ -357,6 +1243,127 @@ public class MigrationService {
         return codePackage;
     }
 
+    // Gọi khi worker gửi kết quả; chỉ kết quả completed được memo lại
+    public void recordExecutionResult(
+        String codeId,
+        String status,
+        Map<String, Object> execution
+    ) {
+        // Kết quả của node khác (vd. source vừa bị stop) không xóa target
+        executingOn.remove(codeId, execution.get("nodeId"));
+        PendingMemo pending = pendingMemoKeys.get(codeId);
+        if (
+            pending != null &&
+            pending.nodeId().equals(execution.get("nodeId")) &&
+            pendingMemoKeys.remove(codeId, pending) &&
+            "completed".equals(status)
+        ) {
+            resultMemo.put(pending.memoKey(), execution);
+        }
+
+        // Kết thúc trước khi target ack "executing" -> code không chạy được
+        // trên target (vd. package không tới nơi)
+        Migration migration = activeMigrations.get(codeId);
+        if (migration != null) {
+            synchronized (migration) {
+                if (
+                    !isFinished(migration) &&
+                    migration.getPhase() == Migration.MigrationPhase.STARTING &&
+                    Objects.equals(execution.get("nodeId"), migration.getTargetNodeId())
+                ) {
+                    Object error = execution.get("error");
+                    fail(
+                        migration,
+                        "Execution on target ended before start: " +
+                            (error != null && !error.toString().isEmpty()
+                                ? error
+                                : status)
+                    );
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> getResultMemoStats() {
+        return resultMemo.getStats();
+    }
+
+    // Phát lại kết quả đã lưu như thể target vừa thực thi xong
+    private void publishMemoizedResult(
+        String nodeId,
+        String codeId,
+        Map<String, Object> memoized
+    ) {
+        Map<String, Object> execution = new HashMap<>(memoized);
+        execution.put("nodeId", nodeId);
+        execution.put("memoized", true);
+        execution.put("timestamp", System.currentTimeMillis());
+
+        String consoleOutput = (String) execution.get("consoleOutput");
+        if (consoleOutput != null && !consoleOutput.isEmpty()) {
+            logService.logConsoleOutput(nodeId, consoleOutput);
+        }
+        logService.success(
+            nodeId,
+            "EXEC_RESULT",
+            "Return: " + execution.get("result") + " (memoized)"
+        );
+        messagingTemplate.convertAndSend("/topic/execution/" + codeId, execution);
+        log.info("Result of deterministic code {} served from memo", codeId);
+    }
+
+    private static boolean isDeterministic(CodePackage codePackage) {
+        Object flag = codePackage.getMetadata() != null
+            ? codePackage.getMetadata().get("deterministic")
+            : null;
+        return (
+            Boolean.TRUE.equals(flag) ||
+            (flag instanceof String str && Boolean.parseBoolean(str.trim()))
+        );
+    }
+
+    // Ước lượng byte: chủ yếu là chuỗi result/consoleOutput (UTF-16)
+    private static long resultWeight(Map<String, Object> execution) {
+        long weight = 256;
+        for (Object value : execution.values()) {
+            if (value instanceof String str) {
+                weight += 2L * str.length();
+            }
+        }
+        return weight;
+    }
+
+    // Tùy chọn thực thi do client gửi (compileStatic, timeoutMs, ...) +
+    // thông tin hệ thống; khóa hệ thống không bị client ghi đè
+    private Map<String, Object> packageMetadata(CodeDTO dto) {
+        Map<String, Object> metadata = new HashMap<>();
+        if (dto.getMetadata() != null) {
+            metadata.putAll(dto.getMetadata());
+        }
+        metadata.put("createdAt", System.currentTimeMillis());
+        metadata.put("version", "1.0");
+        return metadata;
+    }
+
+    // Code đang có migration chạy (migration mới của code đó sẽ bị từ chối)
+    public boolean isMigrating(String codeId) {
+        return activeMigrations.containsKey(codeId);
+    }
+
+    // Code đang thực thi trên node (rebalancer chỉ chuyển package đang chạy)
+    public boolean isExecutingOn(String codeId, String nodeId) {
+        return nodeId.equals(executingOn.get(codeId));
+    }
+
+    // Số migration đang chạy tới một node (giới hạn tải lên target khi drain)
+    public int countActiveMigrationsTo(String nodeId) {
+        return (int) activeMigrations
+            .values()
+            .stream()
+            .filter(m -> Objects.equals(m.getTargetNodeId(), nodeId))
+            .count();
+    }
+
     public Migration getMigration(String id) {
         return migrations.get(id);
     }
@@ -374,14 +1381,42 @@ public class MigrationService {
     }
 
     /**
-     * Lưu state được capture từ Worker (gọi từ WebSocketHandler)
+     * State được capture từ Worker (gọi từ WebSocketHandler): trả cho đúng
+     * request đã yêu cầu nó theo requestId
      */
-    public void saveCapturedState(String codeId, CodePackage.CodeState state) {
-        capturedStates.put(codeId, state);
+    public void saveCapturedState(
+        String codeId,
+        CodePackage.CodeState state,
+        String requestId
+    ) {
+        boolean matched = requestCorrelator.complete(requestId, state);
         log.info(
-            "State saved for code {}: {} variables",
+            "State received for code {}: {} variables (request {}{})",
             codeId,
-            state.getVariables() != null ? state.getVariables().size() : 0
+            state.getVariables() != null ? state.getVariables().size() : 0,
+            requestId,
+            matched ? "" : ", no longer pending"
         );
     }
+
+    public Map<String, Object> getRequestStats() {
+        return requestCorrelator.getStats();
+    }
+
+    public Map<String, Object> getCodeStoreStats() {
+        return codeStore.getStats();
+    }
+
+    public Map<String, Object> getTransferStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", transferMode);
+        stats.put("peerTransfers", peerTransfers.get());
+        stats.put("peerStateBytes", peerStateBytes.get());
+        stats.put("relayTransfers", relayTransfers.get());
+        stats.put("relayStateBytes", relayStateBytes.get());
+        stats.put("peerFallbacks", peerFallbacks.get());
+        // Package / state lớn truyền theo chunk qua STOMP
+        stats.put("chunked", chunkTransferService.getStats());
+        return stats;
+    }
 }
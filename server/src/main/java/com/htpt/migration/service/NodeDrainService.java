@@ -0,0 +1,429 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.dto.DrainRequest;
+import com.htpt.migration.dto.MigrationRequest;
+import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.model.Migration;
+import com.htpt.migration.model.Node;
+import com.htpt.migration.model.NodeDrain;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Drain một worker: đánh dấu draining (CoordinatorService không chọn node
+ * làm target nữa) rồi migrate mọi code package đang ở node đó.
+ *
+ * Tối đa maxConcurrent migration của lần drain chạy cùng lúc; mỗi target
+ * chỉ nhận tối đa maxPerTarget migration đang chạy (tính cả migration
+ * không thuộc drain), target ít migration / tải thấp được chọn trước.
+ * Migration lỗi được thử lại (node.drain.max-attempts, ưu tiên target
+ * khác). Tiến độ và ETA (theo tốc độ từ đầu drain) gửi qua /topic/drains.
+ * Node vẫn draining sau khi drain xong cho tới khi bỏ drain (DELETE).
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+@RequiredArgsConstructor
+public class NodeDrainService {
+
+    private final CoordinatorService coordinatorService;
+    private final MigrationService migrationService;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final LogBroadcastService logService;
+
+    // STRONG: package đang chạy chuyển kèm state, package không chạy thì
+    // state rỗng như migration thường
+    @Value("${node.drain.type:STRONG}")
+    private Migration.MigrationType defaultType;
+
+    @Value("${node.drain.max-concurrent:4}")
+    private int defaultMaxConcurrent;
+
+    @Value("${node.drain.max-per-target:2}")
+    private int defaultMaxPerTarget;
+
+    @Value("${node.drain.max-attempts:2}")
+    private int maxAttempts;
+
+    // nodeId -> lần drain gần nhất của node
+    private final Map<String, NodeDrain> drains = new ConcurrentHashMap<>();
+
+    public NodeDrain drain(String nodeId, DrainRequest request) {
+        if (coordinatorService.getNode(nodeId) == null) {
+            throw new IllegalArgumentException("Node not found: " + nodeId);
+        }
+        NodeDrain running = drains.get(nodeId);
+        if (running != null) {
+            synchronized (running) {
+                if (running.getStatus() == NodeDrain.DrainStatus.RUNNING) {
+                    return running;
+                }
+            }
+        }
+
+        DrainRequest options = request != null ? request : new DrainRequest();
+        NodeDrain drain = NodeDrain.builder()
+            .id("drain-" + UUID.randomUUID().toString().substring(0, 8))
+            .nodeId(nodeId)
+            .status(NodeDrain.DrainStatus.RUNNING)
+            .type(options.getType() != null ? options.getType() : defaultType)
+            .maxConcurrent(
+                Math.max(
+                    1,
+                    options.getMaxConcurrent() != null
+                        ? options.getMaxConcurrent()
+                        : defaultMaxConcurrent
+                )
+            )
+            .maxPerTarget(
+                Math.max(
+                    1,
+                    options.getMaxPerTarget() != null
+                        ? options.getMaxPerTarget()
+                        : defaultMaxPerTarget
+                )
+            )
+            .items(new ArrayList<>())
+            .etaMs(-1)
+            .startTime(Instant.now())
+            .build();
+        coordinatorService.setDraining(nodeId, true);
+        drains.put(nodeId, drain);
+
+        synchronized (drain) {
+            collectPackages(drain);
+            log.info(
+                "Draining node {}: {} packages (max {} concurrent, {} per target)",
+                nodeId,
+                drain.getItems().size(),
+                drain.getMaxConcurrent(),
+                drain.getMaxPerTarget()
+            );
+            logService.info(
+                nodeId,
+                "DRAIN",
+                String.format(
+                    "Draining node: moving %d code packages off",
+                    drain.getItems().size()
+                )
+            );
+            pump(drain);
+        }
+        return drain;
+    }
+
+    /**
+     * Bỏ drain: node nhận việc lại, package chưa bắt đầu thì ở lại (migration
+     * đang chạy vẫn chạy tiếp)
+     */
+    public NodeDrain undrain(String nodeId) {
+        coordinatorService.setDraining(nodeId, false);
+        NodeDrain drain = drains.get(nodeId);
+        if (drain == null) return null;
+        synchronized (drain) {
+            if (drain.getStatus() == NodeDrain.DrainStatus.RUNNING) {
+                for (NodeDrain.Item item : drain.getItems()) {
+                    if (item.getStatus() == NodeDrain.ItemStatus.PENDING) {
+                        item.setStatus(NodeDrain.ItemStatus.SKIPPED);
+                        item.setError("Drain cancelled");
+                    }
+                }
+                updateProgress(drain);
+                drain.setStatus(NodeDrain.DrainStatus.CANCELLED);
+                drain.setEndTime(Instant.now());
+                logService.info(nodeId, "DRAIN", "Drain cancelled");
+            }
+            broadcast(drain);
+        }
+        return drain;
+    }
+
+    public NodeDrain getDrain(String nodeId) {
+        return drains.get(nodeId);
+    }
+
+    public Collection<NodeDrain> getAllDrains() {
+        return drains.values();
+    }
+
+    // Theo dõi migration của các drain đang chạy, bắt đầu migration tiếp theo
+    @Scheduled(fixedDelay = 500)
+    public void checkDrains() {
+        for (NodeDrain drain : drains.values()) {
+            synchronized (drain) {
+                if (drain.getStatus() == NodeDrain.DrainStatus.RUNNING) {
+                    pump(drain);
+                }
+            }
+        }
+    }
+
+    // ========== Internal (gọi trong synchronized(drain)) ==========
+
+    private void pump(NodeDrain drain) {
+        boolean changed = collectPackages(drain);
+        changed |= updateItems(drain);
+        changed |= startMigrations(drain);
+        changed |= updateProgress(drain);
+
+        if (drain.getDone() == drain.getTotal()) {
+            boolean failed = drain
+                .getItems()
+                .stream()
+                .anyMatch(i -> i.getStatus() == NodeDrain.ItemStatus.FAILED);
+            drain.setStatus(
+                failed
+                    ? NodeDrain.DrainStatus.PARTIAL
+                    : NodeDrain.DrainStatus.COMPLETED
+            );
+            drain.setEndTime(Instant.now());
+            drain.setWaitingReason(null);
+            long duration =
+                drain.getEndTime().toEpochMilli() -
+                drain.getStartTime().toEpochMilli();
+            log.info(
+                "Drain of {} finished: {} ({} packages, {}ms)",
+                drain.getNodeId(),
+                drain.getStatus(),
+                drain.getTotal(),
+                duration
+            );
+            logService.info(
+                drain.getNodeId(),
+                "DRAIN",
+                String.format(
+                    "Drain %s: %d packages in %dms",
+                    drain.getStatus().name().toLowerCase(),
+                    drain.getTotal(),
+                    duration
+                )
+            );
+            changed = true;
+        }
+        if (changed) {
+            broadcast(drain);
+        }
+    }
+
+    // Package mới tới node trong lúc drain (vd. migration khác) cũng được chuyển
+    private boolean collectPackages(NodeDrain drain) {
+        Set<String> known = new HashSet<>();
+        for (NodeDrain.Item item : drain.getItems()) {
+            known.add(item.getCodeId());
+        }
+        boolean added = false;
+        for (CodePackage codePackage : migrationService.getAllCodePackages()) {
+            if (
+                drain.getNodeId().equals(codePackage.getCurrentNodeId()) &&
+                known.add(codePackage.getId())
+            ) {
+                drain
+                    .getItems()
+                    .add(
+                        NodeDrain.Item.builder()
+                            .codeId(codePackage.getId())
+                            .status(NodeDrain.ItemStatus.PENDING)
+                            .build()
+                    );
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    // Cập nhật item theo migration của nó; lỗi thì thử lại nếu còn lượt
+    private boolean updateItems(NodeDrain drain) {
+        boolean changed = false;
+        for (NodeDrain.Item item : drain.getItems()) {
+            if (item.getStatus() != NodeDrain.ItemStatus.MIGRATING) continue;
+            Migration migration = migrationService.getMigration(
+                item.getMigrationId()
+            );
+            if (migration == null) continue;
+            switch (migration.getStatus()) {
+                case COMPLETED -> {
+                    item.setStatus(NodeDrain.ItemStatus.COMPLETED);
+                    item.setError(null);
+                    item.setDurationMs(durationMs(migration));
+                    changed = true;
+                }
+                case FAILED, CANCELLED -> {
+                    item.setError(migration.getErrorMessage());
+                    item.setDurationMs(durationMs(migration));
+                    item.setStatus(
+                        item.getAttempts() < maxAttempts
+                            ? NodeDrain.ItemStatus.PENDING
+                            : NodeDrain.ItemStatus.FAILED
+                    );
+                    log.warn(
+                        "Drain of {}: migration {} of {} failed ({}), attempt {}/{}",
+                        drain.getNodeId(),
+                        migration.getId(),
+                        item.getCodeId(),
+                        migration.getErrorMessage(),
+                        item.getAttempts(),
+                        maxAttempts
+                    );
+                    changed = true;
+                }
+                default -> {}
+            }
+        }
+        return changed;
+    }
+
+    private boolean startMigrations(NodeDrain drain) {
+        int inFlight = (int) drain
+            .getItems()
+            .stream()
+            .filter(i -> i.getStatus() == NodeDrain.ItemStatus.MIGRATING)
+            .count();
+        List<Node> targets = coordinatorService.findMigrationTargets(
+            drain.getNodeId()
+        );
+        String waitingReason = null;
+        boolean changed = false;
+
+        for (NodeDrain.Item item : drain.getItems()) {
+            if (inFlight >= drain.getMaxConcurrent()) break;
+            if (item.getStatus() != NodeDrain.ItemStatus.PENDING) continue;
+
+            CodePackage codePackage = migrationService.getCodePackage(
+                item.getCodeId()
+            );
+            if (
+                codePackage == null ||
+                !drain.getNodeId().equals(codePackage.getCurrentNodeId())
+            ) {
+                // Đã bị xóa hoặc đã được chuyển đi bằng migration khác
+                item.setStatus(NodeDrain.ItemStatus.SKIPPED);
+                changed = true;
+                continue;
+            }
+            if (migrationService.isMigrating(item.getCodeId())) {
+                waitingReason = "Waiting for running migrations of the same code";
+                continue;
+            }
+
+            Node target = pickTarget(targets, drain, item);
+            if (target == null) {
+                waitingReason = targets.isEmpty()
+                    ? "No online target node"
+                    : "All targets have " +
+                    drain.getMaxPerTarget() +
+                    " migrations in progress";
+                break;
+            }
+
+            item.setAttempts(item.getAttempts() + 1);
+            item.setTargetNodeId(target.getId());
+            item.setStatus(NodeDrain.ItemStatus.MIGRATING);
+            Migration migration = migrationService.initiateMigration(
+                new MigrationRequest(
+                    item.getCodeId(),
+                    drain.getNodeId(),
+                    target.getId(),
+                    drain.getType()
+                )
+            );
+            item.setMigrationId(migration.getId());
+            inFlight++;
+            changed = true;
+        }
+        drain.setInFlight(inFlight);
+        if (!Objects.equals(waitingReason, drain.getWaitingReason())) {
+            drain.setWaitingReason(waitingReason);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Target còn chỗ (số migration đang tới < maxPerTarget): ít migration
+     * đang tới nhất, rồi tải thấp nhất; lần thử lại tránh target vừa lỗi
+     */
+    private Node pickTarget(
+        List<Node> targets,
+        NodeDrain drain,
+        NodeDrain.Item item
+    ) {
+        Node best = null;
+        int bestActive = 0;
+        boolean bestRetried = false;
+        for (Node target : targets) {
+            int active = migrationService.countActiveMigrationsTo(target.getId());
+            if (active >= drain.getMaxPerTarget()) continue;
+            boolean retried =
+                item.getAttempts() > 0 &&
+                target.getId().equals(item.getTargetNodeId());
+            if (
+                best == null ||
+                (!retried && bestRetried) ||
+                (retried == bestRetried && active < bestActive)
+            ) {
+                best = target;
+                bestActive = active;
+                bestRetried = retried;
+            }
+        }
+        return best;
+    }
+
+    // Trả về true nếu tiến độ thay đổi
+    private boolean updateProgress(NodeDrain drain) {
+        int total = drain.getItems().size();
+        int done = (int) drain
+            .getItems()
+            .stream()
+            .filter(
+                i ->
+                    i.getStatus() != NodeDrain.ItemStatus.PENDING &&
+                    i.getStatus() != NodeDrain.ItemStatus.MIGRATING
+            )
+            .count();
+        long elapsed =
+            System.currentTimeMillis() - drain.getStartTime().toEpochMilli();
+        // Tốc độ từ đầu drain (đã gồm việc chạy song song)
+        drain.setEtaMs(
+            done == 0 ? -1 : done == total ? 0 : elapsed * (total - done) / done
+        );
+        if (total == drain.getTotal() && done == drain.getDone()) {
+            return false;
+        }
+        drain.setTotal(total);
+        drain.setDone(done);
+        drain.setProgress(total > 0 ? done * 100 / total : 100);
+        if (done > 0 && done < total) {
+            logService.info(
+                drain.getNodeId(),
+                "DRAIN",
+                String.format(
+                    "Drained %d/%d packages, ETA %ds",
+                    done,
+                    total,
+                    (drain.getEtaMs() + 999) / 1000
+                )
+            );
+        }
+        return true;
+    }
+
+    private void broadcast(NodeDrain drain) {
+        messagingTemplate.convertAndSend("/topic/drains", drain);
+    }
+
+    private static long durationMs(Migration migration) {
+        Instant end = migration.getEndTime() != null
+            ? migration.getEndTime()
+            : Instant.now();
+        return end.toEpochMilli() - migration.getStartTime().toEpochMilli();
+    }
+}
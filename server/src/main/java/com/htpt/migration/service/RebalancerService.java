@@ -0,0 +1,522 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.dto.MigrationRequest;
+import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.model.Migration;
+import com.htpt.migration.model.Node;
+import com.htpt.migration.model.NodeMetrics;
+import com.htpt.migration.model.RebalanceMove;
+import jakarta.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Tự cân bằng tải: chuyển code package từ node tải cao sang node tải thấp.
+ *
+ * Load score (NodeMetrics.getLoadScore) của mỗi worker được làm mượt bằng
+ * EWMA theo từng lần worker gửi metrics. Chênh lệch max - min >= trigger-spread
+ * liên tục trong sustain-ms thì coi là mất cân bằng, tới khi chênh lệch
+ * < clear-spread (hysteresis). Mỗi chu kỳ (interval-ms) lập tối đa
+ * max-moves-per-cycle lần chuyển: node nóng nhất -> node nguội nhất, mỗi
+ * package ước lượng mang theo loadScore / số package của node nguồn, bỏ qua
+ * lần chuyển làm target nóng hơn source. Node vừa tham gia chuyển và package
+ * vừa được chuyển có cooldown. Node draining không tham gia.
+ *
+ * Mode: off | dry-run (chỉ lập kế hoạch, xem qua /api/rebalancer) | auto.
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+@RequiredArgsConstructor
+public class RebalancerService {
+
+    public enum Mode {
+        OFF,
+        DRY_RUN,
+        AUTO;
+
+        public static Mode parse(String value) {
+            if (value == null || value.isBlank()) return OFF;
+            try {
+                return Mode.valueOf(
+                    value.trim().toUpperCase().replace('-', '_')
+                );
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "Unknown rebalance mode: " + value
+                );
+            }
+        }
+
+        public String id() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /** Kế hoạch của một chu kỳ; reason giải thích khi không có lần chuyển */
+    public record Plan(List<RebalanceMove> moves, String reason) {}
+
+    private final CoordinatorService coordinatorService;
+    private final MigrationService migrationService;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final LogBroadcastService logService;
+
+    @Value("${node.rebalance.mode:dry-run}")
+    private String configuredMode;
+
+    @Value("${node.rebalance.interval-ms:5000}")
+    private long intervalMs;
+
+    // Trọng số của mẫu mới trong EWMA (0-1, lớn = phản ứng nhanh hơn)
+    @Value("${node.rebalance.ewma-alpha:0.3}")
+    private double alpha;
+
+    @Value("${node.rebalance.trigger-spread:25}")
+    private double triggerSpread;
+
+    @Value("${node.rebalance.clear-spread:10}")
+    private double clearSpread;
+
+    @Value("${node.rebalance.sustain-ms:15000}")
+    private long sustainMs;
+
+    // Node có load thấp hơn ngưỡng này không bị chuyển package đi
+    @Value("${node.rebalance.min-source-load:40}")
+    private double minSourceLoad;
+
+    @Value("${node.rebalance.max-moves-per-cycle:1}")
+    private int maxMovesPerCycle;
+
+    // Số migration của rebalancer chạy cùng lúc
+    @Value("${node.rebalance.max-in-flight:2}")
+    private int maxInFlight;
+
+    @Value("${node.rebalance.node-cooldown-ms:30000}")
+    private long nodeCooldownMs;
+
+    @Value("${node.rebalance.code-cooldown-ms:120000}")
+    private long codeCooldownMs;
+
+    @Value("${node.rebalance.type:STRONG}")
+    private Migration.MigrationType type;
+
+    @Value("${node.rebalance.history-size:50}")
+    private int historySize;
+
+    private volatile Mode mode;
+
+    // nodeId -> load score đã làm mượt / metrics của mẫu gần nhất
+    private final Map<String, Double> ewma = new ConcurrentHashMap<>();
+    private final Map<String, NodeMetrics> lastSamples =
+        new ConcurrentHashMap<>();
+
+    // nodeId / codeId -> thời điểm hết cooldown
+    private final Map<String, Long> nodeCooldowns = new ConcurrentHashMap<>();
+    private final Map<String, Long> codeCooldowns = new ConcurrentHashMap<>();
+
+    // Các field dưới được truy cập trong synchronized(this)
+    private final Deque<RebalanceMove> history = new ArrayDeque<>();
+    private final Set<String> inFlight = new HashSet<>(); // migrationId
+    private double spread;
+    private Long imbalancedSince;
+    private long lastCycle;
+    private Plan lastPlan = new Plan(List.of(), "No cycle yet");
+    private long movesStarted;
+    private long movesPlanned;
+
+    @PostConstruct
+    public void init() {
+        mode = Mode.parse(configuredMode);
+        log.info(
+            "Rebalancer {} (trigger spread {}, clear {}, sustain {}ms)",
+            mode.id(),
+            triggerSpread,
+            clearSpread,
+            sustainMs
+        );
+    }
+
+    public synchronized void setMode(Mode mode) {
+        if (this.mode == mode) return;
+        log.info("Rebalancer mode: {} -> {}", this.mode.id(), mode.id());
+        logService.info(
+            "coordinator",
+            "REBALANCE",
+            "Rebalancer mode set to " + mode.id()
+        );
+        this.mode = mode;
+        lastCycle = 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public synchronized void tick() {
+        long now = System.currentTimeMillis();
+        sample();
+        updateImbalance(now);
+        if (mode == Mode.OFF || now - lastCycle < intervalMs) return;
+        lastCycle = now;
+
+        inFlight.removeIf(id -> {
+            Migration migration = migrationService.getMigration(id);
+            return migration == null || isFinished(migration);
+        });
+        if (!isSustained(now)) {
+            lastPlan = new Plan(
+                List.of(),
+                imbalancedSince == null
+                    ? "Balanced"
+                    : "Imbalance not sustained yet"
+            );
+            return;
+        }
+
+        Plan plan = plan(now);
+        boolean sameAsLast = samePlan(plan, lastPlan);
+        lastPlan = plan;
+        if (plan.moves().isEmpty() || (mode == Mode.DRY_RUN && sameAsLast)) {
+            return;
+        }
+        for (RebalanceMove move : plan.moves()) {
+            if (mode == Mode.AUTO) {
+                execute(move, now);
+            } else {
+                move.setDryRun(true);
+                movesPlanned++;
+                logService.info(
+                    move.getSourceNodeId(),
+                    "REBALANCE",
+                    String.format(
+                        "[dry-run] Would move %s to %s (load %.1f -> %.1f)",
+                        move.getCodeName(),
+                        move.getTargetNodeId(),
+                        move.getSourceLoad(),
+                        move.getProjectedSourceLoad()
+                    )
+                );
+            }
+            history.addFirst(move);
+            while (history.size() > historySize) {
+                history.removeLast();
+            }
+        }
+        messagingTemplate.convertAndSend("/topic/rebalancer", getStatus());
+    }
+
+    /** Kế hoạch nếu chạy chu kỳ ngay bây giờ (không chờ sustain-ms) */
+    public synchronized Plan previewPlan() {
+        long now = System.currentTimeMillis();
+        inFlight.removeIf(id -> {
+            Migration migration = migrationService.getMigration(id);
+            return migration == null || isFinished(migration);
+        });
+        Plan plan = plan(now);
+        plan.moves().forEach(move -> move.setDryRun(true));
+        return plan;
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (Node node : coordinatorService.getAllNodes()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("nodeId", node.getId());
+            entry.put(
+                "load",
+                node.getMetrics() != null
+                    ? node.getMetrics().getLoadScore()
+                    : null
+            );
+            entry.put("ewma", ewma.get(node.getId()));
+            entry.put("draining", node.isDraining());
+            entry.put("cooldownMs", remaining(nodeCooldowns, node.getId(), now));
+            nodes.add(entry);
+        }
+        nodes.sort(Comparator.comparing(n -> (String) n.get("nodeId")));
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("mode", mode.id());
+        status.put("spread", spread);
+        status.put("triggerSpread", triggerSpread);
+        status.put("clearSpread", clearSpread);
+        status.put("imbalanced", imbalancedSince != null);
+        status.put(
+            "imbalancedForMs",
+            imbalancedSince != null ? now - imbalancedSince : 0
+        );
+        status.put("sustained", isSustained(now));
+        status.put("nodes", nodes);
+        status.put("lastPlan", lastPlan);
+        status.put("inFlight", inFlight.size());
+        status.put("movesStarted", movesStarted);
+        status.put("movesPlanned", movesPlanned);
+        status.put("history", new ArrayList<>(history));
+        return status;
+    }
+
+    // ========== Internal (gọi trong synchronized(this)) ==========
+
+    // Chỉ lấy mẫu khi worker gửi metrics mới (mỗi ~3s)
+    private void sample() {
+        Set<String> present = new HashSet<>();
+        for (Node node : coordinatorService.getAllNodes()) {
+            present.add(node.getId());
+            NodeMetrics metrics = node.getMetrics();
+            if (metrics == null || metrics == lastSamples.get(node.getId())) {
+                continue;
+            }
+            lastSamples.put(node.getId(), metrics);
+            ewma.merge(
+                node.getId(),
+                metrics.getLoadScore(),
+                (previous, load) -> alpha * load + (1 - alpha) * previous
+            );
+        }
+        ewma.keySet().retainAll(present);
+        lastSamples.keySet().retainAll(present);
+    }
+
+    private void updateImbalance(long now) {
+        List<Node> nodes = candidates();
+        if (nodes.size() < 2) {
+            spread = 0;
+        } else {
+            DoubleSummaryStatistics loads = nodes
+                .stream()
+                .mapToDouble(n -> ewma.get(n.getId()))
+                .summaryStatistics();
+            spread = loads.getMax() - loads.getMin();
+        }
+        if (spread >= triggerSpread && imbalancedSince == null) {
+            imbalancedSince = now;
+            log.info("Load imbalance detected: spread {}", round(spread));
+        } else if (spread < clearSpread && imbalancedSince != null) {
+            imbalancedSince = null;
+            log.info("Load balanced again: spread {}", round(spread));
+        }
+    }
+
+    private boolean isSustained(long now) {
+        return imbalancedSince != null && now - imbalancedSince >= sustainMs;
+    }
+
+    // Worker có thể tham gia: online / đang migrate, không draining, có EWMA
+    private List<Node> candidates() {
+        return coordinatorService
+            .getAllNodes()
+            .stream()
+            .filter(
+                n ->
+                    n.getStatus() == Node.NodeStatus.ONLINE ||
+                    n.getStatus() == Node.NodeStatus.MIGRATING
+            )
+            .filter(n -> !n.isDraining())
+            .filter(n -> ewma.containsKey(n.getId()))
+            .toList();
+    }
+
+    private Plan plan(long now) {
+        List<Node> nodes = candidates();
+        if (nodes.size() < 2) {
+            return new Plan(List.of(), "Fewer than 2 nodes with load data");
+        }
+        int budget = Math.min(maxMovesPerCycle, maxInFlight - inFlight.size());
+        if (budget <= 0) {
+            return new Plan(
+                List.of(),
+                "Waiting for " + inFlight.size() + " rebalance migrations"
+            );
+        }
+
+        Map<String, Double> projected = new HashMap<>();
+        for (Node node : nodes) {
+            projected.put(node.getId(), ewma.get(node.getId()));
+        }
+        // Chỉ package đang thực thi mới tạo tải (package đã chạy xong vẫn giữ
+        // currentNodeId)
+        Map<String, List<CodePackage>> packages = new HashMap<>();
+        for (CodePackage codePackage : migrationService.getAllCodePackages()) {
+            String nodeId = codePackage.getCurrentNodeId();
+            if (
+                nodeId != null &&
+                migrationService.isExecutingOn(codePackage.getId(), nodeId)
+            ) {
+                packages
+                    .computeIfAbsent(nodeId, id -> new ArrayList<>())
+                    .add(codePackage);
+            }
+        }
+
+        Set<String> used = new HashSet<>();
+        List<RebalanceMove> moves = new ArrayList<>();
+        // Lý do bỏ qua, theo thứ tự node nóng nhất trước
+        List<String> reasons = new ArrayList<>();
+        while (moves.size() < budget) {
+            Node source = nodes
+                .stream()
+                .filter(n -> !used.contains(n.getId()))
+                .max(Comparator.comparingDouble(n -> projected.get(n.getId())))
+                .orElse(null);
+            if (source == null || projected.get(source.getId()) < minSourceLoad) {
+                reasons.add("No node above " + minSourceLoad + " load");
+                break;
+            }
+            used.add(source.getId());
+            long cooldown = remaining(nodeCooldowns, source.getId(), now);
+            if (cooldown > 0) {
+                reasons.add(source.getId() + " cooling down for " + cooldown + "ms");
+                continue;
+            }
+
+            Node target = coordinatorService
+                .findMigrationTargets(source.getId())
+                .stream()
+                .filter(n -> projected.containsKey(n.getId()))
+                .filter(n -> !used.contains(n.getId()))
+                .filter(n -> remaining(nodeCooldowns, n.getId(), now) == 0)
+                .filter(n -> migrationService.countActiveMigrationsTo(n.getId()) == 0)
+                .min(Comparator.comparingDouble(n -> projected.get(n.getId())))
+                .orElse(null);
+            double sourceLoad = projected.get(source.getId());
+            if (target == null) {
+                reasons.add("No available target for " + source.getId());
+                continue;
+            }
+            double targetLoad = projected.get(target.getId());
+            if (sourceLoad - targetLoad < clearSpread) {
+                reasons.add("Spread below " + clearSpread);
+                continue;
+            }
+
+            List<CodePackage> running = packages.getOrDefault(
+                source.getId(),
+                List.of()
+            );
+            CodePackage codePackage = running
+                .stream()
+                .filter(p -> !migrationService.isMigrating(p.getId()))
+                .filter(p -> remaining(codeCooldowns, p.getId(), now) == 0)
+                .min(Comparator.comparing(CodePackage::getId))
+                .orElse(null);
+            if (codePackage == null) {
+                reasons.add("No movable running package on " + source.getId());
+                continue;
+            }
+            // Ước lượng: tải của node chia đều cho các package đang chạy
+            double share = sourceLoad / running.size();
+            if (targetLoad + share > sourceLoad - share) {
+                reasons.add(
+                    String.format(
+                        "Moving %s would overload %s",
+                        codePackage.getName(),
+                        target.getId()
+                    )
+                );
+                continue;
+            }
+
+            used.add(target.getId());
+            projected.put(source.getId(), sourceLoad - share);
+            projected.put(target.getId(), targetLoad + share);
+            moves.add(
+                RebalanceMove.builder()
+                    .codeId(codePackage.getId())
+                    .codeName(codePackage.getName())
+                    .sourceNodeId(source.getId())
+                    .targetNodeId(target.getId())
+                    .sourceLoad(round(sourceLoad))
+                    .targetLoad(round(targetLoad))
+                    .projectedSourceLoad(round(sourceLoad - share))
+                    .projectedTargetLoad(round(targetLoad + share))
+                    .plannedAt(Instant.ofEpochMilli(now))
+                    .build()
+            );
+        }
+        return new Plan(moves, moves.isEmpty() ? reasons.get(0) : null);
+    }
+
+    private void execute(RebalanceMove move, long now) {
+        Migration migration = migrationService.initiateMigration(
+            new MigrationRequest(
+                move.getCodeId(),
+                move.getSourceNodeId(),
+                move.getTargetNodeId(),
+                type
+            )
+        );
+        move.setMigrationId(migration.getId());
+        inFlight.add(migration.getId());
+        movesStarted++;
+        // Chờ metrics của cả hai node phản ánh lần chuyển trước khi dùng lại
+        nodeCooldowns.put(move.getSourceNodeId(), now + nodeCooldownMs);
+        nodeCooldowns.put(move.getTargetNodeId(), now + nodeCooldownMs);
+        codeCooldowns.put(move.getCodeId(), now + codeCooldownMs);
+        codeCooldowns.values().removeIf(until -> until <= now);
+
+        log.info(
+            "Rebalancing {} from {} ({}) to {} ({}): migration {}",
+            move.getCodeId(),
+            move.getSourceNodeId(),
+            move.getSourceLoad(),
+            move.getTargetNodeId(),
+            move.getTargetLoad(),
+            migration.getId()
+        );
+        logService.info(
+            move.getSourceNodeId(),
+            "REBALANCE",
+            String.format(
+                "Moving %s to %s (load %.1f vs %.1f)",
+                move.getCodeName(),
+                move.getTargetNodeId(),
+                move.getSourceLoad(),
+                move.getTargetLoad()
+            )
+        );
+    }
+
+    // Dry-run chỉ log khi kế hoạch đổi (cùng package, cùng source / target)
+    private static boolean samePlan(Plan a, Plan b) {
+        if (a.moves().size() != b.moves().size()) return false;
+        for (int i = 0; i < a.moves().size(); i++) {
+            RebalanceMove x = a.moves().get(i);
+            RebalanceMove y = b.moves().get(i);
+            if (
+                !x.getCodeId().equals(y.getCodeId()) ||
+                !x.getSourceNodeId().equals(y.getSourceNodeId()) ||
+                !x.getTargetNodeId().equals(y.getTargetNodeId())
+            ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long remaining(Map<String, Long> cooldowns, String id, long now) {
+        Long until = cooldowns.get(id);
+        return until != null && until > now ? until - now : 0;
+    }
+
+    private static boolean isFinished(Migration migration) {
+        return (
+            migration.getStatus() == Migration.MigrationStatus.COMPLETED ||
+            migration.getStatus() == Migration.MigrationStatus.FAILED ||
+            migration.getStatus() == Migration.MigrationStatus.CANCELLED
+        );
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.htpt.migration.service;
+
+import jakarta.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Request/response qua STOMP theo correlation id.
+ *
+ * Coordinator tạo requestId, gửi kèm lệnh tới worker và nhận một future;
+ * worker trả requestId trong message trả lời, WebSocketHandler gọi
+ * complete(requestId, ...) -> future hoàn thành ngay khi message tới.
+ * Mỗi request có timeout riêng (lùi được bằng extend khi trả lời đang tới
+ * theo chunk); request hết hạn hoặc đã xong bị bỏ khỏi registry, trả lời
+ * tới muộn (id không còn) bị bỏ qua.
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+public class RequestCorrelator {
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timeouts =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "request-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final AtomicLong roundTripMs = new AtomicLong();
+
+    public String newRequestId(String prefix) {
+        return prefix + "-" + UUID.randomUUID().toString().substring(0, 12);
+    }
+
+    /**
+     * Đăng ký chờ trả lời cho requestId; future lỗi TimeoutException nếu
+     * không có trả lời trong timeoutMs (0 = không giới hạn).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> expect(String requestId, long timeoutMs) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        long now = System.currentTimeMillis();
+        Pending request = new Pending(
+            future,
+            now,
+            new AtomicLong(timeoutMs > 0 ? now + timeoutMs : 0)
+        );
+        pending.put(requestId, request);
+        if (timeoutMs > 0) {
+            scheduleTimeout(request, timeoutMs);
+        }
+        future.whenComplete((value, error) -> {
+            pending.remove(requestId);
+            if (error instanceof TimeoutException) {
+                timedOut.incrementAndGet();
+                log.warn(
+                    "Request {} timed out after {}ms",
+                    requestId,
+                    System.currentTimeMillis() - now
+                );
+            }
+        });
+        return (CompletableFuture<T>) (CompletableFuture<?>) future;
+    }
+
+    // Trả về false nếu không có ai chờ (đã timeout, hủy hoặc id lạ)
+    public boolean complete(String requestId, Object response) {
+        Pending request = requestId != null ? pending.get(requestId) : null;
+        if (request == null || !request.future().complete(response)) {
+            unmatched.incrementAndGet();
+            log.debug("No pending request for response {}", requestId);
+            return false;
+        }
+        completed.incrementAndGet();
+        roundTripMs.addAndGet(System.currentTimeMillis() - request.sentAt());
+        return true;
+    }
+
+    /**
+     * Trả lời đang tới (vd. state lớn truyền theo chunk) -> hạn timeout ít
+     * nhất là timeoutMs kể từ bây giờ; false nếu request không còn chờ
+     */
+    public boolean extend(String requestId, long timeoutMs) {
+        Pending request = requestId != null ? pending.get(requestId) : null;
+        if (request == null || request.deadline().get() == 0) return false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        request.deadline().accumulateAndGet(deadline, Math::max);
+        return true;
+    }
+
+    public void cancel(String requestId) {
+        Pending request = pending.get(requestId);
+        if (request != null) {
+            request.future().cancel(false);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long done = completed.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", pending.size());
+        stats.put("completed", done);
+        stats.put("timedOut", timedOut.get());
+        stats.put("unmatched", unmatched.get());
+        stats.put("avgRoundTripMs", done > 0 ? (double) roundTripMs.get() / done : 0.0);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timeouts.shutdownNow();
+    }
+
+    // Tới hạn mà đã được extend thì hẹn lại tới hạn mới
+    private void scheduleTimeout(Pending request, long delayMs) {
+        timeouts.schedule(
+            () -> {
+                if (request.future().isDone()) return;
+                long remaining =
+                    request.deadline().get() - System.currentTimeMillis();
+                if (remaining > 0) {
+                    scheduleTimeout(request, remaining);
+                } else {
+                    request
+                        .future()
+                        .completeExceptionally(new TimeoutException());
+                }
+            },
+            delayMs,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private record Pending(
+        CompletableFuture<Object> future,
+        long sentAt,
+        AtomicLong deadline
+    ) {}
+}
@@ -0,0 +1,384 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.util.StateCodec;
+import groovy.lang.Binding;
+import groovy.lang.Closure;
+import groovy.lang.Script;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Runtime cho các checkpoint được CheckpointCustomizer chèn vào script.
+ *
+ * Execution point = chỉ số câu lệnh top-level của script; với vòng lặp
+ * top-level còn có loopIteration = số lần thân vòng lặp đã được vào.
+ * Các điểm này là safepoint: khi có yêu cầu capture, snapshot được chụp
+ * ngay trên thread của script nên binding luôn nhất quán.
+ *
+ * Snapshot gồm biến binding và các local top-level script đã đăng ký qua
+ * locals() / loopLocals(); khi resume, local lấy lại giá trị qua restored().
+ *
+ * Các method public static được gọi từ bytecode của script; nếu thread
+ * không có Tracker (script chạy ngoài CodeExecutorService) thì no-op.
+ */
+@Slf4j
+public final class ScriptCheckpoints {
+
+    private static final ThreadLocal<Tracker> CURRENT = new ThreadLocal<>();
+
+    private ScriptCheckpoints() {}
+
+    static void bind(Tracker tracker) {
+        CURRENT.set(tracker);
+    }
+
+    static void unbind() {
+        CURRENT.remove();
+    }
+
+    // ========== Gọi từ script đã instrument ==========
+
+    // Trước câu lệnh top-level thứ index: false = bỏ qua (đã chạy ở node
+    // nguồn); với khai báo local, false = lấy giá trị từ state (restored)
+    public static boolean shouldRun(
+        Script script,
+        int index,
+        String declaredVariable
+    ) {
+        Tracker tracker = CURRENT.get();
+        return tracker == null || tracker.enter(script, index, declaredVariable);
+    }
+
+    // Sau câu lệnh top-level thứ index
+    public static void completed(Script script, int index)
+        throws InterruptedException {
+        Tracker tracker = CURRENT.get();
+        if (tracker != null) {
+            tracker.completed(script, index);
+        }
+    }
+
+    // Đầu thân vòng lặp top-level thứ index (mỗi iteration)
+    public static void iteration(Script script, int index)
+        throws InterruptedException {
+        Tracker tracker = CURRENT.get();
+        if (tracker != null) {
+            tracker.iteration(script, index);
+        }
+    }
+
+    // Vòng for(init; cond; update): true = đang resume giữa vòng lặp -> bỏ init
+    public static boolean resumingLoop(Script script, int index) {
+        Tracker tracker = CURRENT.get();
+        return tracker != null && tracker.consumeLoopResume(index) > 0;
+    }
+
+    // Vòng for(T i = init; ...): true = đang resume giữa vòng lặp và state có
+    // biến đếm -> lấy lại bằng restored() thay vì chạy init
+    public static boolean resumingLoopVariable(
+        Script script,
+        int index,
+        String name
+    ) {
+        Tracker tracker = CURRENT.get();
+        return (
+            tracker != null && tracker.resumeLoopVariable(script, index, name)
+        );
+    }
+
+    // Giá trị của local lấy từ state: gỡ khỏi binding để biến chỉ còn là local
+    public static Object restored(Script script, String name) {
+        Binding binding = script.getBinding();
+        Object value = binding.getVariable(name);
+        binding.removeVariable(name);
+        return value;
+    }
+
+    // Các local top-level đã khai báo tới hiện tại: { -> [a: a, b: b] }
+    public static void locals(Script script, Closure<?> values) {
+        Tracker tracker = CURRENT.get();
+        if (tracker != null) {
+            tracker.locals = values;
+        }
+    }
+
+    // Biến đếm của vòng for top-level đang chạy (hết hiệu lực ở completed)
+    public static void loopLocals(Script script, Closure<?> values) {
+        Tracker tracker = CURRENT.get();
+        if (tracker != null) {
+            tracker.loopLocals = values;
+        }
+    }
+
+    // Vòng for-in: bỏ qua các phần tử đã xử lý ở node nguồn
+    public static Object resumeIterable(
+        Script script,
+        int index,
+        Object collection
+    ) {
+        Tracker tracker = CURRENT.get();
+        long skip = tracker != null ? tracker.consumeLoopResume(index) : 0;
+        if (skip <= 0) return collection;
+
+        Iterator<?> iterator = InvokerHelper.asIterator(collection);
+        for (long i = 0; i < skip && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        return iterator;
+    }
+
+    /**
+     * Snapshot tại một safepoint
+     */
+    public record Checkpoint(
+        int executionPoint,
+        long loopIteration,
+        Map<String, Object> variables
+    ) {}
+
+    /**
+     * Trạng thái checkpoint của một execution
+     */
+    public static final class Tracker {
+
+        private final int resumePoint;
+        private final long resumeIteration;
+        private final Predicate<Object> capturable;
+        private final long pauseTimeoutMs;
+        // Tên biến trong state đầu vào: local trùng tên được gỡ khỏi binding
+        private final Set<String> restoredVariables;
+
+        private volatile int statement = 0;
+        private volatile long iteration = 0;
+        private boolean loopResumePending = false;
+
+        private volatile SnapshotRequest request;
+        private volatile SnapshotRequest holding;
+        private volatile boolean closed = false;
+
+        private volatile Closure<?> locals;
+        private volatile Closure<?> loopLocals;
+
+        Tracker(
+            int resumePoint,
+            long resumeIteration,
+            Predicate<Object> capturable,
+            long pauseTimeoutMs,
+            Set<String> restoredVariables
+        ) {
+            this.resumePoint = Math.max(0, resumePoint);
+            this.resumeIteration = Math.max(0, resumeIteration);
+            this.capturable = capturable;
+            this.pauseTimeoutMs = pauseTimeoutMs;
+            this.restoredVariables = restoredVariables;
+        }
+
+        boolean enter(Script script, int index, String declaredVariable) {
+            if (index < resumePoint) {
+                // Khai báo top-level có giá trị không serialize được (vd. Random)
+                // -> không có trong state, chạy lại để tạo lại biến
+                return (
+                    declaredVariable != null &&
+                    !script.getBinding().hasVariable(declaredVariable)
+                );
+            }
+            if (declaredVariable != null) {
+                forget(script, declaredVariable);
+            }
+            boolean resumeHere =
+                index == resumePoint && resumeIteration > 0;
+            statement = index;
+            iteration = resumeHere ? resumeIteration : 0;
+            loopResumePending = resumeHere;
+            return true;
+        }
+
+        void completed(Script script, int index) throws InterruptedException {
+            statement = index + 1;
+            iteration = 0;
+            loopResumePending = false;
+            loopLocals = null;
+            safepoint(script);
+        }
+
+        void iteration(Script script, int index) throws InterruptedException {
+            // Snapshot chụp TRƯỚC khi tăng: iteration = số lần đã vào thân
+            // vòng lặp trước lần này -> resume sẽ chạy lại đúng lần này
+            safepoint(script);
+            iteration++;
+        }
+
+        boolean resumeLoopVariable(Script script, int index, String name) {
+            if (
+                consumeLoopResume(index) > 0 &&
+                script.getBinding().hasVariable(name)
+            ) {
+                return true;
+            }
+            forget(script, name);
+            return false;
+        }
+
+        // Khai báo chạy lại từ đầu: bỏ giá trị cũ của local khỏi binding
+        // để method của script không thấy biến (như khi chạy bình thường)
+        private void forget(Script script, String name) {
+            if (restoredVariables.contains(name)) {
+                script.getBinding().removeVariable(name);
+            }
+        }
+
+        long consumeLoopResume(int index) {
+            if (loopResumePending && index == resumePoint) {
+                loopResumePending = false;
+                return resumeIteration;
+            }
+            return 0;
+        }
+
+        // Yêu cầu snapshot tại safepoint kế tiếp; pause = giữ script đứng
+        // yên sau snapshot cho tới khi release()/stop hoặc hết pauseTimeout.
+        // Request chưa xong thì dùng chung (pause gộp bằng OR) thay vì thay thế
+        synchronized CompletableFuture<Checkpoint> requestSnapshot(boolean pause) {
+            // Script đang bị giữ tại checkpoint -> trả luôn snapshot đó
+            SnapshotRequest held = holding;
+            if (held != null) {
+                return held.future;
+            }
+            SnapshotRequest pending = request;
+            if (pending != null && !pending.future.isDone()) {
+                pending.pause |= pause;
+                return pending.future;
+            }
+            pending = new SnapshotRequest(pause);
+            request = pending;
+            if (closed) {
+                pending.future.complete(null);
+            }
+            return pending.future;
+        }
+
+        void release() {
+            SnapshotRequest held = holding;
+            if (held != null) {
+                held.released.countDown();
+            }
+        }
+
+        // Execution kết thúc: không còn safepoint nào nữa
+        void close() {
+            closed = true;
+            SnapshotRequest pending = request;
+            if (pending != null) {
+                pending.future.complete(null);
+                pending.released.countDown();
+            }
+        }
+
+        int getStatement() {
+            return statement;
+        }
+
+        long getIteration() {
+            return iteration;
+        }
+
+        private void safepoint(Script script) throws InterruptedException {
+            SnapshotRequest pending = request;
+            if (pending == null || pending.future.isDone()) return;
+
+            Checkpoint checkpoint = new Checkpoint(
+                statement,
+                iteration,
+                copyVariables(script.getBinding())
+            );
+            // Lấy request cùng cờ pause trong lock: requestSnapshot không gộp
+            // thêm pause vào request đã được xử lý
+            boolean pause;
+            synchronized (this) {
+                if (request == pending) {
+                    request = null;
+                }
+                pause = pending.pause;
+                if (pause) {
+                    holding = pending;
+                }
+            }
+            if (!pause) {
+                pending.future.complete(checkpoint);
+                return;
+            }
+
+            pending.future.complete(checkpoint);
+            try {
+                // Bị stop() trong lúc chờ -> InterruptedException kết thúc script
+                if (
+                    !pending.released.await(
+                        pauseTimeoutMs,
+                        TimeUnit.MILLISECONDS
+                    )
+                ) {
+                    log.warn(
+                        "Checkpoint pause timed out after {}ms, resuming script",
+                        pauseTimeoutMs
+                    );
+                }
+            } finally {
+                holding = null;
+            }
+        }
+
+        // Biến binding + local đã đăng ký (local đè biến binding trùng tên),
+        // sao chép sâu: List/Map script sửa tiếp sau safepoint không làm đổi
+        // snapshot đang được mã hóa / fingerprint ở thread khác
+        Map<String, Object> copyVariables(Binding binding) {
+            Map<String, Object> variables = new HashMap<>();
+            for (int attempt = 0; attempt < 3; attempt++) {
+                try {
+                    variables.clear();
+                    copyCapturable(binding.getVariables(), variables);
+                    copyLocals(locals, variables);
+                    copyLocals(loopLocals, variables);
+                    return StateCodec.copyVariables(variables);
+                } catch (ConcurrentModificationException e) {
+                    // Binding bị ghi từ thread khác (chỉ xảy ra khi copy ngoài safepoint)
+                }
+            }
+            log.warn("Binding kept changing while copying, capturing no variables");
+            return Map.of();
+        }
+
+        private void copyLocals(Closure<?> values, Map<String, Object> target) {
+            if (values != null && values.call() instanceof Map<?, ?> map) {
+                copyCapturable(map, target);
+            }
+        }
+
+        private void copyCapturable(Map<?, ?> source, Map<String, Object> target) {
+            new HashMap<Object, Object>(source).forEach((k, v) -> {
+                if (capturable.test(v)) {
+                    target.put(k.toString(), v);
+                }
+            });
+        }
+    }
+
+    private static final class SnapshotRequest {
+
+        boolean pause; // Đổi trong synchronized(tracker)
+        final CompletableFuture<Checkpoint> future = new CompletableFuture<>();
+        final CountDownLatch released = new CountDownLatch(1);
+
+        SnapshotRequest(boolean pause) {
+            this.pause = pause;
+        }
+    }
+}
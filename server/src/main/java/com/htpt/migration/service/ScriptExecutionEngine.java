@@ -0,0 +1,325 @@
+package com.htpt.migration.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Engine thực thi script có giới hạn.
+ *
+ * Số slot chạy đồng thời cố định + hàng đợi có giới hạn. Khi cả slot và
+ * hàng đợi đều đầy, lệnh mới bị từ chối ngay (RejectedExecutionException)
+ * thay vì tạo thêm thread - coordinator thấy queue/rejected qua metrics.
+ *
+ * Hai chế độ (node.executor.mode):
+ *   platform - thread pool cố định, mỗi slot là một platform thread
+ *   virtual  - mỗi execution chạy trên một virtual thread riêng, số slot
+ *              giới hạn bằng Semaphore; script block (sleep, I/O) chỉ
+ *              park virtual thread nên có thể giữ hàng nghìn slot
+ *
+ * Task còn trong hàng đợi có thể rút ra (Submission.withdraw): platform bỏ
+ * khỏi queue của pool, virtual interrupt thread đang park trên Semaphore -
+ * chỗ trong hàng đợi được trả lại ngay, không đợi tới lượt chạy.
+ */
+@Service
+@Slf4j
+public class ScriptExecutionEngine {
+
+    @Value("${node.executor.slots:0}")
+    private int configuredSlots;
+
+    @Value("${node.executor.queue-capacity:64}")
+    private int queueCapacity;
+
+    @Value("${node.executor.mode:platform}")
+    private String mode;
+
+    @Value("${node.executor.virtual-slots:10000}")
+    private int virtualSlots;
+
+    private boolean virtual;
+    private int slots;
+
+    // Chế độ platform
+    private ThreadPoolExecutor pool;
+
+    // Chế độ virtual
+    private ExecutorService virtualExecutor;
+    private Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong withdrawn = new AtomicLong();
+    private final AtomicLong totalWaitMs = new AtomicLong();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        virtual = "virtual".equalsIgnoreCase(mode);
+        if (virtual) {
+            initVirtual();
+            return;
+        }
+
+        // slots <= 0: mặc định bằng số CPU core
+        slots = configuredSlots > 0
+            ? configuredSlots
+            : Runtime.getRuntime().availableProcessors();
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "script-exec-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        pool = new ThreadPoolExecutor(
+            slots,
+            slots,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+            threadFactory,
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        pool.allowCoreThreadTimeOut(true);
+
+        log.info(
+            "Script execution engine: {} slots, queue capacity {}",
+            slots,
+            queueCapacity
+        );
+    }
+
+    private void initVirtual() {
+        slots = configuredSlots > 0 ? configuredSlots : virtualSlots;
+        permits = new Semaphore(slots);
+        virtualExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("script-vt-", 1).factory()
+        );
+
+        log.info(
+            "Script execution engine (virtual threads): {} slots, queue capacity {}",
+            slots,
+            queueCapacity
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (virtual) {
+            virtualExecutor.shutdownNow();
+        } else {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Task đã vào engine: result hoàn tất khi task chạy xong, hoặc bằng
+     * ifWithdrawn nếu được rút khỏi hàng đợi trước khi chạy
+     */
+    public final class Submission<T> {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Supplier<T> ifWithdrawn;
+        // Lấy bởi lần chạy hoặc lần rút ra, chỉ một trong hai
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile Runnable dequeue;
+        // Virtual: thread đang chờ slot (interrupt khi rút ra)
+        private volatile Thread waiter;
+
+        private Submission(Supplier<T> ifWithdrawn) {
+            this.ifWithdrawn = ifWithdrawn;
+        }
+
+        public CompletableFuture<T> result() {
+            return result;
+        }
+
+        /**
+         * Rút task khỏi hàng đợi; false nếu task đã bắt đầu chạy (người gọi
+         * tự dừng nó)
+         */
+        public boolean withdraw() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            dequeue.run();
+            withdrawn.incrementAndGet();
+            result.complete(ifWithdrawn.get());
+            return true;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        private void run(Supplier<T> task, long enqueuedAt) {
+            recordWait(System.currentTimeMillis() - enqueuedAt);
+            try {
+                result.complete(task.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Đưa task vào engine.
+     *
+     * @param ifWithdrawn kết quả khi task được rút khỏi hàng đợi (gọi trên
+     *                    thread của withdraw)
+     * @throws RejectedExecutionException khi slot và hàng đợi đều đầy
+     */
+    public <T> Submission<T> submit(Supplier<T> task, Supplier<T> ifWithdrawn) {
+        if (virtual) {
+            return submitVirtual(task, ifWithdrawn);
+        }
+
+        long enqueuedAt = System.currentTimeMillis();
+        Submission<T> submission = new Submission<>(ifWithdrawn);
+        Runnable job = () -> {
+            if (submission.claim()) {
+                submission.run(task, enqueuedAt);
+            }
+        };
+        submission.dequeue = () -> pool.remove(job);
+        try {
+            pool.execute(job);
+            submitted.incrementAndGet();
+            return submission;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.warn(
+                "Execution rejected: {} running, {} queued (capacity {})",
+                pool.getActiveCount(),
+                pool.getQueue().size(),
+                queueCapacity
+            );
+            throw e;
+        }
+    }
+
+    // Virtual thread được tạo ngay; nếu hết slot thì park trên Semaphore
+    // (đó chính là hàng đợi) - giới hạn số thread đang chờ = queueCapacity
+    private <T> Submission<T> submitVirtual(
+        Supplier<T> task,
+        Supplier<T> ifWithdrawn
+    ) {
+        long enqueuedAt = System.currentTimeMillis();
+        boolean admitted = permits.tryAcquire();
+        if (!admitted && waiting.incrementAndGet() > queueCapacity) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            log.warn(
+                "Execution rejected: {} running, {} queued (capacity {})",
+                slots,
+                waiting.get(),
+                queueCapacity
+            );
+            throw new RejectedExecutionException("Execution queue is full");
+        }
+
+        submitted.incrementAndGet();
+        Submission<T> submission = new Submission<>(ifWithdrawn);
+        // Thread chưa kịp chạy thì tự thấy claimed; đang park thì bị interrupt
+        submission.dequeue = () -> {
+            Thread waiter = submission.waiter;
+            if (waiter != null) {
+                waiter.interrupt();
+            }
+        };
+        virtualExecutor.execute(() -> {
+            submission.waiter = Thread.currentThread();
+            boolean holdsPermit = admitted;
+            try {
+                if (!admitted) {
+                    try {
+                        if (submission.claimed.get()) {
+                            return;
+                        }
+                        permits.acquire();
+                        holdsPermit = true;
+                    } catch (InterruptedException e) {
+                        // withdraw() đã lấy task thì không còn gì để làm
+                        if (submission.claim()) {
+                            submission.result.completeExceptionally(
+                                new CompletionException(e)
+                            );
+                        }
+                        return;
+                    } finally {
+                        waiting.decrementAndGet();
+                    }
+                }
+                if (submission.claim()) {
+                    submission.run(task, enqueuedAt);
+                }
+            } finally {
+                if (holdsPermit) {
+                    permits.release();
+                }
+            }
+        });
+        return submission;
+    }
+
+    private int activeCount() {
+        return virtual
+            ? slots - permits.availablePermits()
+            : pool.getActiveCount();
+    }
+
+    private int queueDepth() {
+        return virtual ? waiting.get() : pool.getQueue().size();
+    }
+
+    private void recordWait(long waitMs) {
+        totalWaitMs.addAndGet(waitMs);
+        maxWaitMs.accumulateAndGet(waitMs, Math::max);
+    }
+
+    public boolean isSaturated() {
+        return activeCount() >= slots && queueDepth() >= queueCapacity;
+    }
+
+    public Map<String, Object> getStats() {
+        int active = activeCount();
+        long started = completed.get() + active;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", virtual ? "virtual" : "platform");
+        stats.put("slots", slots);
+        stats.put("active", active);
+        stats.put("queueDepth", queueDepth());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("submitted", submitted.get());
+        stats.put("completed", completed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("withdrawn", withdrawn.get());
+        stats.put("avgWaitMs", started > 0 ? totalWaitMs.get() / started : 0);
+        stats.put("maxWaitMs", maxWaitMs.get());
+        return stats;
+    }
+}
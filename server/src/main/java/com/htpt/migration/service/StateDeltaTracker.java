@@ -0,0 +1,134 @@
+package com.htpt.migration.service;
+
+import com.htpt.migration.util.ValueFingerprint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Phía Worker: đánh version cho các lần capture state và chỉ gửi những
+ * biến đã thay đổi so với version mà Coordinator đã ack gần nhất.
+ *
+ * Mỗi version lưu fingerprint của từng biến; khi Coordinator ack version
+ * v thì v trở thành base cho các lần capture sau. Chưa có base (lần đầu,
+ * sau resync) -> gửi toàn bộ.
+ */
+@Service
+@Profile("worker")
+@Slf4j
+public class StateDeltaTracker {
+
+    // Số version chưa ack được giữ lại cho mỗi code
+    private static final int MAX_PENDING_VERSIONS = 8;
+
+    private final Map<String, Versions> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Tạo version mới cho biến hiện tại của code, trả về phần thay đổi
+     * so với base đã ack
+     */
+    public StateDelta diff(String codeId, Map<String, Object> variables) {
+        Versions state = versions.computeIfAbsent(codeId, k -> new Versions());
+        synchronized (state) {
+            Map<String, Long> fingerprints = new HashMap<>();
+            Map<String, Object> changed = new HashMap<>();
+            variables.forEach((name, value) -> {
+                long fingerprint = ValueFingerprint.of(value);
+                fingerprints.put(name, fingerprint);
+                Long base = state.baseFingerprints != null
+                    ? state.baseFingerprints.get(name)
+                    : null;
+                if (base == null || base != fingerprint) {
+                    changed.put(name, value);
+                }
+            });
+
+            List<String> removed = new ArrayList<>();
+            if (state.baseFingerprints != null) {
+                state.baseFingerprints.keySet().forEach(name -> {
+                    if (!fingerprints.containsKey(name)) {
+                        removed.add(name);
+                    }
+                });
+            }
+
+            long version = ++state.lastVersion;
+            state.pending.put(version, fingerprints);
+
+            return StateDelta.builder()
+                .version(version)
+                .baseVersion(
+                    state.baseFingerprints != null ? state.baseVersion : 0
+                )
+                .changed(changed)
+                .removed(removed)
+                .totalVariables(variables.size())
+                .build();
+        }
+    }
+
+    // Coordinator đã dựng lại version này -> làm base cho delta kế tiếp
+    public void acknowledge(String codeId, long version) {
+        Versions state = versions.get(codeId);
+        if (state == null) return;
+        synchronized (state) {
+            Map<String, Long> fingerprints = state.pending.get(version);
+            if (fingerprints == null || version <= state.baseVersion) return;
+            state.baseVersion = version;
+            state.baseFingerprints = fingerprints;
+            // Các version cũ hơn không bao giờ được dùng làm base nữa
+            state.pending.keySet().removeIf(v -> v <= version);
+        }
+        log.debug("State of {} acknowledged at version {}", codeId, version);
+    }
+
+    // Coordinator không còn base (vd. restart) -> lần capture sau gửi toàn bộ
+    public void reset(String codeId) {
+        Versions state = versions.get(codeId);
+        if (state == null) return;
+        synchronized (state) {
+            state.baseVersion = 0;
+            state.baseFingerprints = null;
+            state.pending.clear();
+        }
+    }
+
+    public void forget(String codeId) {
+        versions.remove(codeId);
+    }
+
+    private static class Versions {
+
+        long lastVersion = 0;
+        long baseVersion = 0;
+        Map<String, Long> baseFingerprints;
+
+        final Map<Long, Map<String, Long>> pending = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Long, Map<String, Long>> eldest
+            ) {
+                return size() > MAX_PENDING_VERSIONS;
+            }
+        };
+    }
+
+    @Data
+    @Builder
+    public static class StateDelta {
+
+        private long version;
+        private long baseVersion; // 0 = changed chứa toàn bộ biến
+        private Map<String, Object> changed;
+        private List<String> removed;
+        private int totalVariables;
+    }
+}
@@ -0,0 +1,96 @@
+package com.htpt.migration.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Phía Coordinator: dựng lại biến đầy đủ từ các delta state của Worker.
+ *
+ * Giữ vài version gần nhất đã dựng được cho mỗi (node, code) - Worker có
+ * thể gửi delta kế tiếp trước khi nhận ack của version trước. Delta có
+ * baseVersion còn giữ thì áp lên bản đó; baseVersion = 0 là bản đầy đủ;
+ * không có -> trả về null để caller yêu cầu Worker gửi lại toàn bộ.
+ * Bản đã dựng được bỏ khi migration kết thúc hoặc node hủy đăng ký
+ * (delta sau đó của Worker sẽ rơi vào trường hợp gửi lại toàn bộ).
+ */
+@Service
+@Profile({ "coordinator", "demo" })
+@Slf4j
+public class StateReassembler {
+
+    private static final int RETAINED_VERSIONS = 4;
+
+    private final Map<String, Map<Long, Map<String, Object>>> states =
+        new ConcurrentHashMap<>();
+
+    public Map<String, Object> apply(
+        String nodeId,
+        String codeId,
+        long version,
+        long baseVersion,
+        Map<String, Object> changed,
+        Collection<String> removed
+    ) {
+        Map<Long, Map<String, Object>> versions = states.computeIfAbsent(
+            key(nodeId, codeId),
+            k -> new LinkedHashMap<>() {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<Long, Map<String, Object>> eldest
+                ) {
+                    return size() > RETAINED_VERSIONS;
+                }
+            }
+        );
+
+        synchronized (versions) {
+            Map<String, Object> variables;
+            if (baseVersion == 0) {
+                // Bản đầy đủ: Worker đã bắt đầu lại chuỗi version
+                versions.clear();
+                variables = new HashMap<>();
+            } else if (versions.containsKey(baseVersion)) {
+                variables = new HashMap<>(versions.get(baseVersion));
+            } else {
+                log.warn(
+                    "State delta for {} on {} is based on unknown version {} (have {})",
+                    codeId,
+                    nodeId,
+                    baseVersion,
+                    versions.keySet()
+                );
+                return null;
+            }
+
+            if (changed != null) {
+                variables.putAll(changed);
+            }
+            if (removed != null) {
+                removed.forEach(variables::remove);
+            }
+            versions.put(version, variables);
+            return new HashMap<>(variables);
+        }
+    }
+
+    // Migration của code kết thúc (xong, lỗi, hủy): source không còn gửi delta
+    public void forget(String nodeId, String codeId) {
+        states.remove(key(nodeId, codeId));
+    }
+
+    // Node hủy đăng ký: Worker mới (khởi động lại) bắt đầu lại từ bản đầy đủ
+    public void forgetNode(String nodeId) {
+        String prefix = key(nodeId, "");
+        states.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private static String key(String nodeId, String codeId) {
+        return nodeId + ":" + codeId;
+    }
+}
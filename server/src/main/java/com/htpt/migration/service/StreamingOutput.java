@@ -0,0 +1,172 @@
+package com.htpt.migration.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Console output của một execution.
+ *
+ * Output được gom thành chunk và đẩy ra sink khi đủ chunkBytes hoặc khi
+ * flusher gọi flushIfDue() (mỗi vài chục ms). Bản thân stream chỉ giữ
+ * phần đuôi (tailBytes) cho consoleOutput cuối cùng -> bộ nhớ không tăng
+ * theo lượng script in ra.
+ */
+public class StreamingOutput extends OutputStream {
+
+    /**
+     * Nơi nhận chunk output (vd. gửi về Coordinator qua STOMP)
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void onChunk(long seq, String text);
+    }
+
+    private final Sink sink;
+    private final int chunkBytes;
+    private final long flushIntervalMs;
+
+    // Bytes chưa gửi cho sink (tối đa ~chunkBytes)
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    // Ring buffer giữ phần đuôi của output
+    private final byte[] tail;
+    private int tailStart = 0;
+    private int tailLength = 0;
+
+    private long totalBytes = 0;
+    private long seq = 0;
+    private long lastFlushAt = System.currentTimeMillis();
+
+    StreamingOutput(
+        Sink sink,
+        int chunkBytes,
+        long flushIntervalMs,
+        int tailBytes
+    ) {
+        this.sink = sink;
+        this.chunkBytes = Math.max(256, chunkBytes);
+        this.flushIntervalMs = flushIntervalMs;
+        this.tail = new byte[Math.max(1024, tailBytes)];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        appendTail((byte) b);
+        totalBytes++;
+        if (sink != null) {
+            pending.write(b);
+            if (pending.size() >= chunkBytes) {
+                emit(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            appendTail(buf[off + i]);
+        }
+        totalBytes += len;
+        if (sink != null) {
+            pending.write(buf, off, len);
+            if (pending.size() >= chunkBytes) {
+                emit(false);
+            }
+        }
+    }
+
+    // PrintStream autoflush gọi flush() sau mỗi println - không gửi chunk
+    // ở đây, việc gửi do kích thước hoặc flusher định kỳ quyết định
+    @Override
+    public void flush() {}
+
+    // Gọi định kỳ từ flusher
+    public synchronized void flushIfDue() {
+        if (
+            sink != null &&
+            pending.size() > 0 &&
+            System.currentTimeMillis() - lastFlushAt >= flushIntervalMs
+        ) {
+            emit(false);
+        }
+    }
+
+    // Gửi phần còn lại khi execution kết thúc
+    @Override
+    public synchronized void close() {
+        if (sink != null && pending.size() > 0) {
+            emit(true);
+        }
+    }
+
+    private void emit(boolean all) {
+        byte[] bytes = pending.toByteArray();
+        int cut = all ? bytes.length : cutPoint(bytes);
+        if (cut == 0) return;
+
+        pending.reset();
+        pending.write(bytes, cut, bytes.length - cut);
+        lastFlushAt = System.currentTimeMillis();
+
+        // Sink có thể chạy trên thread của script (flush theo kích thước):
+        // tạm gỡ routing để log/println bên trong sink không quay lại đây
+        PrintStream bound = ConsoleCapture.current();
+        ConsoleCapture.unbind();
+        try {
+            sink.onChunk(
+                seq++,
+                new String(bytes, 0, cut, StandardCharsets.UTF_8)
+            );
+        } finally {
+            if (bound != null) {
+                ConsoleCapture.bind(bound);
+            }
+        }
+    }
+
+    // Ưu tiên cắt sau dấu xuống dòng cuối; nếu không có thì cắt ở ranh giới
+    // ký tự UTF-8 để không tách đôi một ký tự nhiều byte
+    private int cutPoint(byte[] bytes) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') return i + 1;
+        }
+        int end = bytes.length;
+        int i = end - 1;
+        while (i >= 0 && (bytes[i] & 0xC0) == 0x80) {
+            i--; // byte tiếp nối
+        }
+        if (i < 0) return end;
+        int lead = bytes[i] & 0xFF;
+        int expected = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return end - i >= expected ? end : i;
+    }
+
+    private void appendTail(byte b) {
+        int index = (tailStart + tailLength) % tail.length;
+        tail[index] = b;
+        if (tailLength < tail.length) {
+            tailLength++;
+        } else {
+            tailStart = (tailStart + 1) % tail.length;
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // Phần đuôi của output (kèm ghi chú nếu phần đầu đã bị cắt)
+    public synchronized String tail() {
+        byte[] bytes = new byte[tailLength];
+        for (int i = 0; i < tailLength; i++) {
+            bytes[i] = tail[(tailStart + i) % tail.length];
+        }
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        long dropped = totalBytes - tailLength;
+        return dropped > 0
+            ? String.format("...[%d bytes truncated]%n%s", dropped, text)
+            : text;
+    }
+}
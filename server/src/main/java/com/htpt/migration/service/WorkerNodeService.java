@@ -2,28 +2,49 @@ package com.htpt.migration.service;
 
 import com.htpt.migration.model.CodePackage;
 import com.htpt.migration.model.Node;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.htpt.migration.model.NodeMetrics;
+import com.htpt.migration.util.ChunkedTransfers;
+import com.htpt.migration.util.CompressingMessageConverter;
+import com.htpt.migration.util.ContentHash;
+import com.htpt.migration.util.MemoCache;
+import com.htpt.migration.util.PayloadCompression;
+import com.htpt.migration.util.StateCodec;
+import com.htpt.migration.util.WirePackage;
 import com.sun.management.OperatingSystemMXBean;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.WebSocketContainer;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.lang.reflect.Type;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
-import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.messaging.simp.stomp.*;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.socket.WebSocketHttpHeaders;
 import org.springframework.web.socket.client.standard.StandardWebSocketClient;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
 
@@ -53,11 +74,82 @@ public class WorkerNodeService {
     @Value("${server.port:8081}")
     private int nodePort;
 
+    // Nhãn của node (vd. "gpu,zone-a") để coordinator chọn nhóm khi broadcast
+    @Value("${node.labels:}")
+    private String nodeLabels;
+
     @Value("${node.coordinator-url:http://localhost:8080}")
     private String coordinatorUrl;
 
+    // Gửi package trực tiếp tới worker target (migration kiểu peer)
+    @Value("${node.peer.connect-timeout-ms:2000}")
+    private int peerConnectTimeoutMs;
+
+    @Value("${node.peer.read-timeout-ms:30000}")
+    private int peerReadTimeoutMs;
+
+    private RestClient peerClient;
+
+    // Nén message STOMP với Coordinator: none | gzip | deflate
+    @Value("${node.compression.codec:gzip}")
+    private String compressionCodec;
+
+    @Value("${node.compression.threshold-bytes:1024}")
+    private int compressionThresholdBytes;
+
+    @Value("${node.compression.level:6}")
+    private int compressionLevel;
+
+    @Value("${node.compression.max-inflated-bytes:67108864}")
+    private long compressionMaxInflatedBytes;
+
+    private PayloadCompression payloadCompression;
+    private CompressingMessageConverter messageConverter;
+
+    // Payload lớn (package nhận về, state gửi đi) truyền theo chunk, ack
+    // theo cửa sổ, kết nối lại thì gửi tiếp từ chunk cuối đã ack
+    @Value("${node.transfer.chunk-size-bytes:32768}")
+    private int chunkSizeBytes;
+
+    @Value("${node.transfer.window:8}")
+    private int chunkWindow;
+
+    @Value("${node.transfer.retransmit-ms:2000}")
+    private long chunkRetransmitMs;
+
+    @Value("${node.transfer.max-retransmits:5}")
+    private int chunkMaxRetransmits;
+
+    @Value("${node.transfer.max-bytes:268435456}")
+    private long chunkMaxBytes;
+
+    @Value("${node.transfer.incoming-ttl-ms:60000}")
+    private long chunkIncomingTtlMs;
+
+    // Frame WebSocket lớn nhất nhận được (phải lớn hơn một chunk đã base64)
+    @Value("${node.transfer.max-frame-bytes:262144}")
+    private int maxFrameBytes;
+
+    // Kho code theo hash (codeByHash)
+    @Value("${node.code-store.max-entries:1024}")
+    private int codeStoreMaxEntries;
+
+    @Value("${node.code-store.max-bytes:33554432}")
+    private long codeStoreMaxBytes;
+
+    private static final String COORDINATOR = "coordinator";
+    private ChunkedTransfers chunkTransfers;
+    private final ObjectMapper objectMapper;
+
     private final CodeExecutorService codeExecutorService;
-    private StompSession stompSession;
+    private final CompiledScriptCache scriptCache;
+    private final ScriptExecutionEngine executionEngine;
+    private final StateDeltaTracker stateDeltaTracker;
+    private final ExecutionStateStore stateStore;
+    private volatile StompSession stompSession;
+    // Tomcat WebSocket client không cho hai thread gửi cùng lúc trên một
+    // session (TEXT_FULL_WRITING) -> mọi message lên Coordinator qua send()
+    private final Object sendLock = new Object();
     private volatile boolean running = true;
     private String detectedIp;
 
@@ -65,6 +157,11 @@ public class WorkerNodeService {
     private final Map<String, CodePackage> receivedCodePackages =
         new ConcurrentHashMap<>();
 
+    // Nội dung code theo SHA-256: package sau có cùng code chỉ mang hash.
+    // Giới hạn số entry / byte, bỏ ra theo LRU; package chỉ mang hash của
+    // code đã bị bỏ -> báo /node/code-missing, Coordinator gửi lại cả code
+    private MemoCache<String> codeByHash;
+
     // System metrics beans
     private final OperatingSystemMXBean osBean =
         (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
@@ -88,6 +185,42 @@ public class WorkerNodeService {
         log.info("  Port: {}", nodePort);
         log.info("  Coordinator: {}", coordinatorUrl);
         log.info("===========================================");
+
+        SimpleClientHttpRequestFactory requestFactory =
+            new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(peerConnectTimeoutMs);
+        requestFactory.setReadTimeout(peerReadTimeoutMs);
+        peerClient = RestClient.builder().requestFactory(requestFactory).build();
+
+        payloadCompression = new PayloadCompression(
+            compressionThresholdBytes,
+            compressionLevel,
+            compressionMaxInflatedBytes
+        );
+        messageConverter = new CompressingMessageConverter(payloadCompression);
+        codeByHash = new MemoCache<>(
+            codeStoreMaxEntries,
+            codeStoreMaxBytes,
+            0,
+            String::length
+        );
+
+        chunkTransfers = new ChunkedTransfers(
+            chunkSizeBytes,
+            chunkWindow,
+            chunkRetransmitMs,
+            chunkMaxRetransmits,
+            chunkMaxBytes,
+            chunkIncomingTtlMs,
+            (target, frame) -> {
+                // Mất kết nối -> bỏ qua, gửi lại sau khi đăng ký lại
+                if (stompSession != null && stompSession.isConnected()) {
+                    frame.put("nodeId", nodeId);
+                    send("/app/node/chunk", frame);
+                }
+            }
+        );
+
         connectToCoordinator();
     }
 
@@ -135,10 +268,7 @@ public class WorkerNodeService {
         running = false;
         if (stompSession != null && stompSession.isConnected()) {
             try {
-                stompSession.send(
-                    "/app/node/unregister",
-                    Map.of("nodeId", nodeId)
-                );
+                send("/app/node/unregister", Map.of("nodeId", nodeId));
                 log.info("Node {} unregistered from coordinator", nodeId);
             } catch (Exception e) {
                 log.warn("Failed to unregister node: {}", e.getMessage());
@@ -148,20 +278,39 @@ public class WorkerNodeService {
 
     private void connectToCoordinator() {
         try {
+            WebSocketContainer container =
+                ContainerProvider.getWebSocketContainer();
+            container.setDefaultMaxTextMessageBufferSize(maxFrameBytes);
+            container.setDefaultMaxBinaryMessageBufferSize(maxFrameBytes);
             WebSocketStompClient stompClient = new WebSocketStompClient(
-                new StandardWebSocketClient()
-            );
-            stompClient.setMessageConverter(
-                new MappingJackson2MessageConverter()
+                new StandardWebSocketClient(container)
             );
+            stompClient.setInboundMessageSizeLimit(maxFrameBytes);
+            // Gửi không nén cho tới khi Coordinator xác nhận codec (/registered)
+            messageConverter.setCodec(PayloadCompression.Codec.NONE);
+            stompClient.setMessageConverter(messageConverter);
 
             String wsUrl =
                 coordinatorUrl.replace("http://", "ws://") + "/ws/websocket";
             log.info("Connecting to coordinator: {}", wsUrl);
 
+            // Các codec worker giải nén được, codec của node đứng đầu
+            StompHeaders connectHeaders = new StompHeaders();
+            PayloadCompression.Codec codec = PayloadCompression.Codec.parse(
+                compressionCodec
+            );
+            if (codec != null && codec != PayloadCompression.Codec.NONE) {
+                connectHeaders.add(
+                    PayloadCompression.ACCEPT_HEADER,
+                    codec.id() + ", gzip, deflate"
+                );
+            }
+
             stompSession = stompClient
                 .connectAsync(
                     wsUrl,
+                    (WebSocketHttpHeaders) null,
+                    connectHeaders,
                     new StompSessionHandlerAdapter() {
                         @Override
                         public void afterConnected(
@@ -169,8 +318,12 @@ public class WorkerNodeService {
                             StompHeaders connectedHeaders
                         ) {
                             log.info("Connected to coordinator!");
-                            registerNode();
+                            // Callback có thể chạy trước khi connectAsync().get()
+                            // trả về -> gán session ngay để register không bị bỏ qua
+                            stompSession = session;
+                            // Subscribe trước để nhận được trả lời của register
                             subscribeToEvents();
+                            registerNode();
                         }
 
                         @Override
@@ -223,9 +376,21 @@ public class WorkerNodeService {
 
     private void registerNode() {
         if (stompSession != null && stompSession.isConnected()) {
-            stompSession.send(
+            send(
                 "/app/node/register",
-                Map.of("id", nodeId, "host", nodeHost, "port", nodePort)
+                Map.of(
+                    "id",
+                    nodeId,
+                    "host",
+                    nodeHost,
+                    "port",
+                    nodePort,
+                    "labels",
+                    Arrays.stream(nodeLabels.split(","))
+                        .map(String::trim)
+                        .filter(label -> !label.isEmpty())
+                        .toList()
+                )
             );
             log.info("Node {} registered with coordinator", nodeId);
         }
@@ -234,9 +399,9 @@ public class WorkerNodeService {
     private void subscribeToEvents() {
         if (stompSession == null || !stompSession.isConnected()) return;
 
-        // Subscribe to receive code package
+        // Subscribe to registered - Coordinator báo các codec nén nó nhận được
         stompSession.subscribe(
-            "/topic/node/" + nodeId + "/receive",
+            "/topic/node/" + nodeId + "/registered",
             new StompFrameHandler() {
                 @Override
                 public Type getPayloadType(StompHeaders headers) {
@@ -244,130 +409,74 @@ public class WorkerNodeService {
                 }
 
                 @Override
-                @SuppressWarnings("unchecked")
                 public void handleFrame(StompHeaders headers, Object payload) {
-                    Map<String, Object> data = (Map<String, Object>) payload;
+                    Map<?, ?> data = (Map<?, ?>) payload;
+                    PayloadCompression.Codec codec =
+                        PayloadCompression.Codec.parse(compressionCodec);
+                    if (
+                        codec != null &&
+                        data.get("compression") instanceof List<?> accepted &&
+                        accepted.contains(codec.id())
+                    ) {
+                        messageConverter.setCodec(codec);
+                        log.info(
+                            "Compressing messages to coordinator with {}",
+                            codec.id()
+                        );
+                    }
+                    // Đã đăng ký lại -> gửi tiếp các transfer đang dở
+                    chunkTransfers.resume(COORDINATOR);
+                }
+            }
+        );
 
-                    // Parse code package từ payload
-                    String codeId = (String) data.get("id");
-                    String codeName = (String) data.get("name");
-                    String code = (String) data.get("code");
-                    String entryPoint = (String) data.get("entryPoint");
+        // Chunk của package lớn từ Coordinator; đủ chunk thì xử lý như /receive
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/chunk",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
 
-                    // Lưu state nếu có (strong mobility)
-                    Map<String, Object> stateData = (Map<
-                        String,
-                        Object
-                    >) data.get("state");
-                    CodePackage.CodeState state = null;
-                    if (stateData != null) {
-                        Map<String, Object> variables = (Map<
-                            String,
-                            Object
-                        >) stateData.get("variables");
-                        state = CodePackage.CodeState.builder()
-                            .variables(variables)
-                            .executionPoint(
-                                stateData.get("executionPoint") != null
-                                    ? ((Number) stateData.get(
-                                              "executionPoint"
-                                          )).intValue()
-                                    : 0
-                            )
-                            .output((String) stateData.get("output"))
-                            .build();
-                    }
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    receiveChunk((Map<String, Object>) payload);
+                }
+            }
+        );
 
-                    CodePackage codePackage = CodePackage.builder()
-                        .id(codeId)
-                        .name(codeName)
-                        .code(code)
-                        .entryPoint(entryPoint)
-                        .currentNodeId(nodeId)
-                        .state(state)
-                        .build();
+        // Coordinator ack chunk của state worker gửi lên
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/chunk-ack",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
 
-                    receivedCodePackages.put(codeId, codePackage);
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    chunkTransfers.onAck((Map<String, Object>) payload);
+                }
+            }
+        );
 
-                    // ========== LOG CHI TIẾT CODE PACKAGE NHẬN ĐƯỢC ==========
-                    log.info(
-                        "╔══════════════════════════════════════════════════════════════╗"
-                    );
-                    log.info(
-                        "║          RECEIVED CODE PACKAGE FROM COORDINATOR              ║"
-                    );
-                    log.info(
-                        "╠══════════════════════════════════════════════════════════════╣"
-                    );
-                    log.info("║ Code ID    : {}", codeId);
-                    log.info("║ Code Name  : {}", codeName);
-                    log.info("║ Entry Point: {}", entryPoint);
-                    log.info("║ Target Node: {}", nodeId);
-                    log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
-                    );
-                    log.info("║ CODE CONTENT:");
-                    log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
-                    );
-                    String[] codeLines = code.split("\n");
-                    for (int i = 0; i < codeLines.length; i++) {
-                        log.info(
-                            "║ {} │ {}",
-                            String.format("%3d", i + 1),
-                            codeLines[i]
-                        );
-                    }
-                    log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
-                    );
-                    log.info("║ MIGRATED STATE:");
-                    log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
-                    );
-                    if (state != null) {
-                        log.info(
-                            "║   [STRONG MOBILITY - State transferred from source]"
-                        );
-                        log.info(
-                            "║   Execution Point: {}",
-                            state.getExecutionPoint()
-                        );
-                        log.info("║   Variables:");
-                        if (
-                            state.getVariables() != null &&
-                            !state.getVariables().isEmpty()
-                        ) {
-                            for (Map.Entry<String, Object> entry : state
-                                .getVariables()
-                                .entrySet()) {
-                                log.info(
-                                    "║     - {} = {} ({})",
-                                    entry.getKey(),
-                                    entry.getValue(),
-                                    entry.getValue() != null
-                                        ? entry
-                                              .getValue()
-                                              .getClass()
-                                              .getSimpleName()
-                                        : "null"
-                                );
-                            }
-                        } else {
-                            log.info("║     (no variables)");
-                        }
-                        log.info(
-                            "║   Previous Output: {}",
-                            state.getOutput() != null
-                                ? state.getOutput()
-                                : "(none)"
-                        );
-                    } else {
-                        log.info("║   [WEAK MOBILITY - No state, fresh start]");
-                    }
-                    log.info(
-                        "╚══════════════════════════════════════════════════════════════╝"
-                    );
+        // Subscribe to receive code package
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/receive",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    acceptPackage((Map<String, Object>) payload);
                 }
             }
         );
@@ -438,8 +547,9 @@ public class WorkerNodeService {
                     if (codePackage.getState() != null) {
                         CodePackage.CodeState state = codePackage.getState();
                         log.info(
-                            "║   Execution Point: {}",
-                            state.getExecutionPoint()
+                            "║   Execution Point: {} (loop iteration {})",
+                            state.getExecutionPoint(),
+                            state.getLoopIteration()
                         );
                         log.info("║   Variables:");
                         if (
@@ -472,150 +582,57 @@ public class WorkerNodeService {
                     );
 
                     // Thực sự execute code bằng CodeExecutorService
-                    try {
-                        CodeExecutorService.ExecutionResult result;
-
-                        if (codePackage.getState() != null) {
-                            // Strong mobility - execute với state đã có
-                            log.info(
-                                ">>> Executing with RESTORED STATE (Strong Mobility)..."
-                            );
-                            result = codeExecutorService
-                                .executeWithState(
-                                    codeId,
-                                    codePackage.getCode(),
-                                    nodeId,
-                                    codePackage.getState()
-                                )
-                                .get(); // Block để lấy kết quả
-                        } else {
-                            // Weak mobility - execute từ đầu
-                            log.info(
-                                ">>> Executing from SCRATCH (Weak Mobility)..."
-                            );
-                            result = codeExecutorService
-                                .execute(codeId, codePackage.getCode(), nodeId)
-                                .get(); // Block để lấy kết quả
-                        }
+                    // Không block thread nhận STOMP frame: kết quả được xử lý
+                    // trong callback, nhờ vậy lệnh stop/capture-state vẫn tới
+                    // được worker trong lúc script đang chạy
+                    CodeExecutorService.ExecutionOptions options =
+                        executionOptions(codePackage);
+                    CompletableFuture<CodeExecutorService.ExecutionResult> execution;
 
-                        // ========== LOG SAU KHI THỰC THI ==========
-                        log.info(
-                            "╔══════════════════════════════════════════════════════════════╗"
-                        );
-                        log.info(
-                            "║            COORDINATOR DISPATCH - AFTER EXECUTION            ║"
-                        );
-                        log.info(
-                            "╠══════════════════════════════════════════════════════════════╣"
-                        );
-                        log.info("║ Code ID    : {}", codeId);
-                        log.info("║ Status     : {}", result.getStatus());
-                        log.info(
-                            "║ Exec Time  : {}ms",
-                            result.getExecutionTime()
-                        );
-                        log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
-                        );
-                        log.info("║ EXECUTION RESULT:");
-                        log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
-                        );
-                        log.info("║   Return Value: {}", result.getResult());
-                        if (
-                            result.getError() != null &&
-                            !result.getError().isEmpty()
-                        ) {
-                            log.error("║   Error: {}", result.getError());
-                        }
-                        log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
-                        );
-                        log.info("║ CONSOLE OUTPUT:");
-                        log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
-                        );
-                        if (
-                            result.getConsoleOutput() != null &&
-                            !result.getConsoleOutput().isEmpty()
-                        ) {
-                            String[] outputLines = result
-                                .getConsoleOutput()
-                                .split("\n");
-                            for (String line : outputLines) {
-                                log.info("║   > {}", line);
-                            }
-                        } else {
-                            log.info("║   (no console output)");
-                        }
+                    if (codePackage.getState() != null) {
+                        // Strong mobility - execute với state đã có
                         log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
+                            ">>> Executing with RESTORED STATE (Strong Mobility)..."
                         );
-                        log.info("║ STATE AFTER EXECUTION:");
-                        log.info(
-                            "╠──────────────────────────────────────────────────────────────╣"
+                        execution = codeExecutorService.executeWithState(
+                            codeId,
+                            codePackage.getCode(),
+                            nodeId,
+                            codePackage.getState(),
+                            options
                         );
-                        CodePackage.CodeState stateAfter =
-                            codeExecutorService.getState(codeId);
-                        if (stateAfter != null) {
-                            log.info("║   Variables:");
-                            if (
-                                stateAfter.getVariables() != null &&
-                                !stateAfter.getVariables().isEmpty()
-                            ) {
-                                for (Map.Entry<
-                                    String,
-                                    Object
-                                > entry : stateAfter
-                                    .getVariables()
-                                    .entrySet()) {
-                                    log.info(
-                                        "║     - {} = {}",
-                                        entry.getKey(),
-                                        entry.getValue()
-                                    );
-                                }
-                            } else {
-                                log.info("║     (no variables captured)");
-                            }
-                            log.info(
-                                "║   Output: {}",
-                                stateAfter.getOutput() != null
-                                    ? stateAfter.getOutput()
-                                    : "(none)"
-                            );
-                        } else {
-                            log.info("║   (no state captured)");
-                        }
+                    } else {
+                        // Weak mobility - execute từ đầu
                         log.info(
-                            "╚══════════════════════════════════════════════════════════════╝"
+                            ">>> Executing from SCRATCH (Weak Mobility)..."
                         );
-
-                        // Gửi kết quả về Coordinator
-                        sendExecutionResult(
+                        execution = codeExecutorService.execute(
                             codeId,
-                            result.getResult(),
-                            result.getError(),
-                            result.getConsoleOutput()
-                        );
-                    } catch (Exception e) {
-                        log.error(
-                            "╔══════════════════════════════════════════════════════════════╗"
+                            codePackage.getCode(),
+                            nodeId,
+                            options
                         );
-                        log.error(
-                            "║                    EXECUTION FAILED                          ║"
-                        );
-                        log.error(
-                            "╠══════════════════════════════════════════════════════════════╣"
-                        );
-                        log.error("║ Code ID: {}", codeId);
-                        log.error("║ Error  : {}", e.getMessage());
-                        log.error(
-                            "╚══════════════════════════════════════════════════════════════╝",
-                            e
-                        );
-                        sendExecutionResult(codeId, null, e.getMessage(), null);
                     }
+
+                    // Ack trước khi đăng ký callback -> coordinator luôn nhận
+                    // ack trước execution-complete, kể cả khi script xong ngay
+                    boolean rejected =
+                        execution.isDone() &&
+                        !execution.isCompletedExceptionally() &&
+                        "rejected".equals(execution.join().getStatus());
+                    sendMigrationAck(
+                        data.get("migrationId"),
+                        codeId,
+                        rejected ? "rejected" : "executing"
+                    );
+
+                    execution.whenComplete((result, error) -> {
+                        if (error != null) {
+                            onExecutionFailed(codeId, error);
+                        } else {
+                            onExecutionFinished(codeId, result);
+                        }
+                    });
                 }
             }
         );
@@ -636,13 +653,19 @@ public class WorkerNodeService {
                     String codeId = (String) data.get("codeId");
                     log.info("Stop command received for code: {}", codeId);
                     codeExecutorService.stop(codeId);
+                    stateDeltaTracker.forget(codeId);
+                    // release: package tạm (vd. partition của scatter job)
+                    // không còn dùng nữa -> bỏ luôn code + dữ liệu
+                    if (Boolean.TRUE.equals(data.get("release"))) {
+                        receivedCodePackages.remove(codeId);
+                    }
                 }
             }
         );
 
-        // Subscribe to capture-state command - Capture state thực từ execution context
+        // Subscribe to state-ack - Coordinator đã dựng lại version state này
         stompSession.subscribe(
-            "/topic/node/" + nodeId + "/capture-state",
+            "/topic/node/" + nodeId + "/state-ack",
             new StompFrameHandler() {
                 @Override
                 public Type getPayloadType(StompHeaders headers) {
@@ -654,88 +677,157 @@ public class WorkerNodeService {
                 public void handleFrame(StompHeaders headers, Object payload) {
                     Map<String, Object> data = (Map<String, Object>) payload;
                     String codeId = (String) data.get("codeId");
+                    if (Boolean.TRUE.equals(data.get("resync"))) {
+                        stateDeltaTracker.reset(codeId);
+                    } else if (data.get("version") instanceof Number version) {
+                        stateDeltaTracker.acknowledge(
+                            codeId,
+                            version.longValue()
+                        );
+                    }
+                }
+            }
+        );
+
+        // Subscribe to state-delta - pre-copy: cập nhật state của package đã
+        // nhận (chưa chạy) bằng các biến thay đổi trên source
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/state-delta",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
 
-                    // Lấy state thực từ CodeExecutorService
-                    CodePackage.CodeState realState =
-                        codeExecutorService.getState(codeId);
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    Map<String, Object> data = (Map<String, Object>) payload;
+                    String codeId = (String) data.get("codeId");
+                    CodePackage codePackage = receivedCodePackages.get(codeId);
+                    if (codePackage == null) {
+                        log.warn("State delta for unknown code {}", codeId);
+                        return;
+                    }
 
-                    // ========== LOG CAPTURE STATE ==========
-                    log.info(
-                        "╔══════════════════════════════════════════════════════════════╗"
-                    );
-                    log.info(
-                        "║         CAPTURE STATE COMMAND FROM COORDINATOR               ║"
-                    );
-                    log.info(
-                        "╠══════════════════════════════════════════════════════════════╣"
+                    CodePackage.CodeState delta = StateCodec.decodeBase64(
+                        (String) data.get("state")
                     );
-                    log.info("║ Code ID    : {}", codeId);
-                    log.info("║ Source Node: {}", nodeId);
-                    log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
+                    List<String> removed = (List<String>) data.get("removed");
+                    CodePackage.CodeState current = codePackage.getState();
+                    Map<String, Object> variables = new HashMap<>();
+                    if (current != null && current.getVariables() != null) {
+                        variables.putAll(current.getVariables());
+                    }
+                    if (delta.getVariables() != null) {
+                        variables.putAll(delta.getVariables());
+                    }
+                    if (removed != null) {
+                        removed.forEach(variables::remove);
+                    }
+                    codePackage.setState(
+                        CodePackage.CodeState.builder()
+                            .variables(variables)
+                            .executionPoint(delta.getExecutionPoint())
+                            .loopIteration(delta.getLoopIteration())
+                            .output(delta.getOutput())
+                            .build()
                     );
-                    log.info("║ CAPTURED STATE (to be sent to target):");
                     log.info(
-                        "╠──────────────────────────────────────────────────────────────╣"
+                        "Pre-copy round {} for {}: {} changed, {} removed",
+                        data.get("round"),
+                        codeId,
+                        delta.getVariables() != null
+                            ? delta.getVariables().size()
+                            : 0,
+                        removed != null ? removed.size() : 0
                     );
+                }
+            }
+        );
 
-                    if (realState != null) {
-                        log.info(
-                            "║   Execution Point: {}",
-                            realState.getExecutionPoint()
-                        );
-                        log.info("║   Variables:");
-                        if (
-                            realState.getVariables() != null &&
-                            !realState.getVariables().isEmpty()
-                        ) {
-                            for (Map.Entry<String, Object> entry : realState
-                                .getVariables()
-                                .entrySet()) {
-                                log.info(
-                                    "║     - {} = {} ({})",
-                                    entry.getKey(),
-                                    entry.getValue(),
-                                    entry.getValue() != null
-                                        ? entry
-                                              .getValue()
-                                              .getClass()
-                                              .getSimpleName()
-                                        : "null"
+        // Subscribe to capture-state command - Capture state thực từ execution context
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/capture-state",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    Map<String, Object> data = (Map<String, Object>) payload;
+                    String codeId = (String) data.get("codeId");
+                    // Gửi lại trong state-captured để coordinator ghép đúng request
+                    String requestId = (String) data.get("requestId");
+                    // pause = giữ script tại checkpoint cho tới lệnh stop
+                    boolean pause = Boolean.TRUE.equals(data.get("pause"));
+                    // full = Coordinator mất base -> gửi toàn bộ biến thay vì delta
+                    if (Boolean.TRUE.equals(data.get("full"))) {
+                        stateDeltaTracker.reset(codeId);
+                    }
+
+                    // Lấy state thực từ CodeExecutorService (chụp tại checkpoint).
+                    // Chờ safepoint có thể mất tới checkpoint wait-ms -> trả lời
+                    // trong callback, không chặn thread nhận message của session
+                    codeExecutorService
+                        .captureState(codeId, pause)
+                        .whenComplete((realState, error) -> {
+                            if (error != null) {
+                                log.warn(
+                                    "Capture state of {} failed: {}",
+                                    codeId,
+                                    error.getMessage()
                                 );
                             }
-                        } else {
-                            log.info("║     (no variables)");
-                        }
-                        log.info(
-                            "║   Console Output: {}",
-                            realState.getOutput() != null
-                                ? realState.getOutput()
-                                : "(none)"
-                        );
-                        log.info(
-                            "╚══════════════════════════════════════════════════════════════╝"
-                        );
+                            replyCapturedState(
+                                codeId,
+                                error == null ? realState : null,
+                                requestId
+                            );
+                        });
+                }
+            }
+        );
 
-                        // Gửi state thực về Coordinator
-                        sendCapturedState(codeId, realState);
-                    } else {
-                        log.warn("║   [WARNING] No execution context found!");
-                        log.warn("║   Sending empty state...");
-                        log.info(
-                            "╚══════════════════════════════════════════════════════════════╝"
-                        );
+        // Subscribe to push - gửi package trực tiếp tới worker target
+        stompSession.subscribe(
+            "/topic/node/" + nodeId + "/push",
+            new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Map.class;
+                }
 
-                        // Gửi empty state
-                        sendCapturedState(
-                            codeId,
-                            CodePackage.CodeState.builder()
-                                .variables(Map.of())
-                                .executionPoint(0)
-                                .output("")
-                                .build()
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    Map<String, Object> data = (Map<String, Object>) payload;
+                    String codeId = (String) data.get("codeId");
+                    Object migrationId = data.get("migrationId");
+                    String targetUrl = (String) data.get("targetUrl");
+                    boolean captureState = Boolean.TRUE.equals(
+                        data.get("captureState")
+                    );
+                    // Target đã có code (theo hash) -> chỉ gửi hash
+                    boolean targetHasCode = Boolean.TRUE.equals(
+                        data.get("targetHasCode")
+                    );
+                    // Capture + HTTP có thể mất vài giây -> không chặn
+                    // thread nhận message của STOMP session
+                    Thread.ofVirtual()
+                        .name("peer-push-" + codeId)
+                        .start(() ->
+                            pushToPeer(
+                                codeId,
+                                migrationId,
+                                targetUrl,
+                                captureState,
+                                targetHasCode
+                            )
                         );
-                    }
                 }
             }
         );
@@ -755,8 +847,12 @@ public class WorkerNodeService {
                     Map<String, Object> data = (Map<String, Object>) payload;
                     String codeId = (String) data.get("id");
                     String codeName = (String) data.get("name");
-                    String code = (String) data.get("code");
+                    String code = resolveCode(data);
                     String entryPoint = (String) data.get("entryPoint");
+                    if (code == null) {
+                        sendCodeMissing(codeId, data.get("codeHash"), null);
+                        return;
+                    }
 
                     log.info("=== CODE UPLOADED TO THIS NODE ===");
                     log.info("  Code ID: {}", codeId);
@@ -766,41 +862,49 @@ public class WorkerNodeService {
                         .id(codeId)
                         .name(codeName)
                         .code(code)
+                        .codeHash((String) data.get("codeHash"))
                         .entryPoint(entryPoint)
                         .currentNodeId(nodeId)
+                        .metadata((Map<String, Object>) data.get("metadata"))
                         .build();
 
                     receivedCodePackages.put(codeId, codePackage);
 
-                    // Tự động execute code khi được upload
+                    // Tự động execute code khi được upload (không block thread STOMP)
                     log.info("  Auto-executing uploaded code...");
-                    try {
-                        CodeExecutorService.ExecutionResult result =
-                            codeExecutorService
-                                .execute(codeId, code, nodeId)
-                                .get();
-
-                        log.info(
-                            "  Initial execution completed: {}",
-                            result.getStatus()
-                        );
-                        if (
-                            result.getConsoleOutput() != null &&
-                            !result.getConsoleOutput().isEmpty()
-                        ) {
+                    log.info("==================================");
+                    codeExecutorService
+                        .execute(
+                            codeId,
+                            code,
+                            nodeId,
+                            executionOptions(codePackage)
+                        )
+                        .whenComplete((result, error) -> {
+                            if (error != null) {
+                                log.error(
+                                    "Initial execution of {} failed: {}",
+                                    codeId,
+                                    error.getMessage()
+                                );
+                                return;
+                            }
                             log.info(
-                                "  Console:\n{}",
-                                result.getConsoleOutput()
+                                "Initial execution of {} completed: {}",
+                                codeId,
+                                result.getStatus()
                             );
-                        }
-                        log.info("  Result: {}", result.getResult());
-                    } catch (Exception e) {
-                        log.error(
-                            "  Initial execution failed: {}",
-                            e.getMessage()
-                        );
-                    }
-                    log.info("==================================");
+                            if (
+                                result.getConsoleOutput() != null &&
+                                !result.getConsoleOutput().isEmpty()
+                            ) {
+                                log.info(
+                                    "  Console:\n{}",
+                                    result.getConsoleOutput()
+                                );
+                            }
+                            log.info("  Result: {}", result.getResult());
+                        });
                 }
             }
         );
@@ -808,34 +912,742 @@ public class WorkerNodeService {
         log.info("Subscribed to node events");
     }
 
+    // Tùy chọn thực thi từ metadata + stream console output về Coordinator
+    private CodeExecutorService.ExecutionOptions executionOptions(
+        CodePackage codePackage
+    ) {
+        CodeExecutorService.ExecutionOptions options =
+            CodeExecutorService.ExecutionOptions.fromMetadata(
+                codePackage.getMetadata()
+            );
+        String codeId = codePackage.getId();
+        options.setOutputSink((seq, text) ->
+            sendExecutionOutput(codeId, seq, text)
+        );
+        return options;
+    }
+
+    // Log kết quả và gửi về Coordinator sau khi execution kết thúc
+    private void onExecutionFinished(
+        String codeId,
+        CodeExecutorService.ExecutionResult result
+    ) {
+        // ========== LOG SAU KHI THỰC THI ==========
+        log.info(
+            "╔══════════════════════════════════════════════════════════════╗"
+        );
+        log.info(
+            "║            COORDINATOR DISPATCH - AFTER EXECUTION            ║"
+        );
+        log.info(
+            "╠══════════════════════════════════════════════════════════════╣"
+        );
+        log.info("║ Code ID    : {}", codeId);
+        log.info("║ Status     : {}", result.getStatus());
+        log.info(
+            "║ Exec Time  : {}ms",
+            result.getExecutionTime()
+        );
+        log.info(
+            "║ Resources  : cpu {}ms, allocated {} bytes, gc {}ms ({} collections)",
+            result.getCpuTimeMs(),
+            result.getAllocatedBytes(),
+            result.getGcTimeMs(),
+            result.getGcCount()
+        );
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ EXECUTION RESULT:");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║   Return Value: {}", result.getResult());
+        if (
+            result.getError() != null &&
+            !result.getError().isEmpty()
+        ) {
+            log.error("║   Error: {}", result.getError());
+        }
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ CONSOLE OUTPUT:");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        if (
+            result.getConsoleOutput() != null &&
+            !result.getConsoleOutput().isEmpty()
+        ) {
+            String[] outputLines = result
+                .getConsoleOutput()
+                .split("\n");
+            for (String line : outputLines) {
+                log.info("║   > {}", line);
+            }
+        } else {
+            log.info("║   (no console output)");
+        }
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ STATE AFTER EXECUTION:");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        CodePackage.CodeState stateAfter =
+            codeExecutorService.getState(codeId);
+        if (stateAfter != null) {
+            log.info("║   Variables:");
+            if (
+                stateAfter.getVariables() != null &&
+                !stateAfter.getVariables().isEmpty()
+            ) {
+                for (Map.Entry<
+                    String,
+                    Object
+                > entry : stateAfter
+                    .getVariables()
+                    .entrySet()) {
+                    log.info(
+                        "║     - {} = {}",
+                        entry.getKey(),
+                        entry.getValue()
+                    );
+                }
+            } else {
+                log.info("║     (no variables captured)");
+            }
+            log.info(
+                "║   Output: {}",
+                stateAfter.getOutput() != null
+                    ? stateAfter.getOutput()
+                    : "(none)"
+            );
+        } else {
+            log.info("║   (no state captured)");
+        }
+        log.info(
+            "╚══════════════════════════════════════════════════════════════╝"
+        );
+
+        // Gửi kết quả về Coordinator
+        sendExecutionResult(
+            codeId,
+            result.getResult(),
+            result.getError(),
+            result.getConsoleOutput(),
+            result.getStatus(),
+            Map.of(
+                "wallTimeMs",
+                result.getExecutionTime(),
+                "cpuTimeMs",
+                result.getCpuTimeMs(),
+                "allocatedBytes",
+                result.getAllocatedBytes(),
+                "gcTimeMs",
+                result.getGcTimeMs(),
+                "gcCount",
+                result.getGcCount(),
+                "compilation",
+                result.getCompilation() != null
+                    ? result.getCompilation()
+                    : "dynamic",
+                "memoized",
+                result.isMemoized()
+            ),
+            !result.isMemoized(),
+            result.getValue()
+        );
+    }
+
+    private void onExecutionFailed(String codeId, Throwable e) {
+        log.error(
+            "╔══════════════════════════════════════════════════════════════╗"
+        );
+        log.error(
+            "║                    EXECUTION FAILED                          ║"
+        );
+        log.error(
+            "╠══════════════════════════════════════════════════════════════╣"
+        );
+        log.error("║ Code ID: {}", codeId);
+        log.error("║ Error  : {}", e.getMessage());
+        log.error(
+            "╚══════════════════════════════════════════════════════════════╝",
+            e
+        );
+        sendExecutionResult(codeId, null, e.getMessage(), null);
+    }
+
     /**
-     * Gửi state đã capture về Coordinator
+     * Đọc state trong CodePackage nhận được: dạng mã hóa của StateCodec
+     * ({encoding, data}) hoặc dạng JSON cũ (variables, executionPoint...)
      */
-    private void sendCapturedState(String codeId, CodePackage.CodeState state) {
+    @SuppressWarnings("unchecked")
+    private CodePackage.CodeState parseState(Object payload) {
+        if (!(payload instanceof Map)) return null;
+        Map<String, Object> stateData = (Map<String, Object>) payload;
+
+        if (StateCodec.ENCODING.equals(stateData.get("encoding"))) {
+            return StateCodec.decodeBase64((String) stateData.get("data"));
+        }
+
+        return CodePackage.CodeState.builder()
+            .variables((Map<String, Object>) stateData.get("variables"))
+            .executionPoint(
+                stateData.get("executionPoint") instanceof Number point
+                    ? point.intValue()
+                    : 0
+            )
+            .loopIteration(
+                stateData.get("loopIteration") instanceof Number iteration
+                    ? iteration.longValue()
+                    : 0
+            )
+            .output((String) stateData.get("output"))
+            .build();
+    }
+
+    // Trả lời capture-state: log state đã chụp rồi gửi về Coordinator
+    private void replyCapturedState(
+        String codeId,
+        CodePackage.CodeState realState,
+        String requestId
+    ) {
+        // ========== LOG CAPTURE STATE ==========
+        log.info(
+            "╔══════════════════════════════════════════════════════════════╗"
+        );
+        log.info(
+            "║         CAPTURE STATE COMMAND FROM COORDINATOR               ║"
+        );
+        log.info(
+            "╠══════════════════════════════════════════════════════════════╣"
+        );
+        log.info("║ Code ID    : {}", codeId);
+        log.info("║ Source Node: {}", nodeId);
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ CAPTURED STATE (to be sent to target):");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+
+        if (realState != null) {
+            log.info(
+                "║   Execution Point: {} (loop iteration {})",
+                realState.getExecutionPoint(),
+                realState.getLoopIteration()
+            );
+            log.info("║   Variables:");
+            if (
+                realState.getVariables() != null &&
+                !realState.getVariables().isEmpty()
+            ) {
+                for (Map.Entry<String, Object> entry : realState
+                    .getVariables()
+                    .entrySet()) {
+                    log.info(
+                        "║     - {} = {} ({})",
+                        entry.getKey(),
+                        entry.getValue(),
+                        entry.getValue() != null
+                            ? entry.getValue().getClass().getSimpleName()
+                            : "null"
+                    );
+                }
+            } else {
+                log.info("║     (no variables)");
+            }
+            log.info(
+                "║   Console Output: {}",
+                realState.getOutput() != null ? realState.getOutput() : "(none)"
+            );
+            log.info(
+                "╚══════════════════════════════════════════════════════════════╝"
+            );
+
+            // Gửi state thực về Coordinator
+            sendCapturedState(codeId, realState, requestId);
+        } else {
+            log.warn("║   [WARNING] No execution context found!");
+            log.warn("║   Sending empty state...");
+            log.info(
+                "╚══════════════════════════════════════════════════════════════╝"
+            );
+
+            // Gửi empty state
+            sendCapturedState(
+                codeId,
+                CodePackage.CodeState.builder()
+                    .variables(Map.of())
+                    .executionPoint(0)
+                    .output("")
+                    .build(),
+                requestId
+            );
+        }
+    }
+
+    /**
+     * Gửi state đã capture về Coordinator - chỉ các biến thay đổi so với
+     * version Coordinator đã ack (baseVersion = 0 -> toàn bộ)
+     */
+    private void sendCapturedState(
+        String codeId,
+        CodePackage.CodeState state,
+        String requestId
+    ) {
         if (stompSession != null && stompSession.isConnected()) {
-            stompSession.send(
+            StateDeltaTracker.StateDelta delta = stateDeltaTracker.diff(
+                codeId,
+                state.getVariables() != null ? state.getVariables() : Map.of()
+            );
+            sendToCoordinator(
+                "state-captured",
                 "/app/node/state-captured",
                 Map.of(
                     "nodeId",
                     nodeId,
                     "codeId",
                     codeId,
-                    "variables",
-                    state.getVariables() != null
-                        ? state.getVariables()
-                        : Map.of(),
-                    "executionPoint",
-                    state.getExecutionPoint(),
-                    "output",
-                    state.getOutput() != null ? state.getOutput() : "",
+                    "version",
+                    delta.getVersion(),
+                    "baseVersion",
+                    delta.getBaseVersion(),
+                    "removed",
+                    delta.getRemoved(),
+                    // Biến thay đổi + execution point, mã hóa nhị phân (base64)
+                    "state",
+                    StateCodec.encodeBase64(
+                        CodePackage.CodeState.builder()
+                            .variables(delta.getChanged())
+                            .executionPoint(state.getExecutionPoint())
+                            .loopIteration(state.getLoopIteration())
+                            .output(state.getOutput())
+                            .build()
+                    ),
+                    "stateEncoding",
+                    StateCodec.ENCODING,
+                    "requestId",
+                    requestId != null ? requestId : ""
+                ),
+                // Coordinator lùi hạn chờ capture khi state đang về theo chunk
+                requestId != null
+                    ? Map.of("codeId", codeId, "requestId", requestId)
+                    : Map.of("codeId", codeId)
+            );
+            log.info(
+                "Captured state v{} sent to coordinator ({} of {} variables, base v{})",
+                delta.getVersion(),
+                delta.getChanged().size(),
+                delta.getTotalVariables(),
+                delta.getBaseVersion()
+            );
+        }
+    }
+
+    private void send(String destination, Object payload) {
+        StompSession session = stompSession;
+        synchronized (sendLock) {
+            session.send(destination, payload);
+        }
+    }
+
+    /**
+     * Gửi message về Coordinator; lớn hơn một chunk thì gửi theo chunk (kind
+     * cho Coordinator biết xử lý như destination nào, headers đi kèm mỗi chunk)
+     */
+    private void sendToCoordinator(
+        String kind,
+        String destination,
+        Map<String, Object> message,
+        Map<String, Object> headers
+    ) {
+        byte[] data;
+        try {
+            data = objectMapper.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(
+                "Message is not serializable",
+                e
+            );
+        }
+        if (!chunkTransfers.needsChunking(data.length)) {
+            send(destination, message);
+            return;
+        }
+        log.info(
+            "Sending {} ({} bytes) to coordinator in chunks",
+            kind,
+            data.length
+        );
+        chunkTransfers
+            .send(COORDINATOR, kind, data, headers, null)
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    log.warn("Chunked {} failed: {}", kind, error.getMessage());
+                }
+            });
+    }
+
+    // Chunk từ Coordinator: đủ package thì nhận như /receive rồi mới ack
+    private void receiveChunk(Map<String, Object> frame) {
+        ChunkedTransfers.Received received = chunkTransfers.onChunk(
+            frame,
+            COORDINATOR
+        );
+        Map<String, Object> ack = new HashMap<>(received.ack());
+        ack.put("nodeId", nodeId);
+        ChunkedTransfers.Completed completed = received.completed();
+        if (completed != null) {
+            try {
+                if (!"receive".equals(completed.kind())) {
+                    throw new IllegalArgumentException(
+                        "Unknown chunked message kind: " + completed.kind()
+                    );
+                }
+                acceptPackage(
+                    objectMapper.readValue(
+                        completed.data(),
+                        new TypeReference<Map<String, Object>>() {}
+                    )
+                );
+                chunkTransfers.markHandled(completed);
+            } catch (IOException | RuntimeException e) {
+                log.error(
+                    "Failed to accept chunked package: {}",
+                    e.getMessage()
+                );
+                ack.put("error", e.getMessage());
+            }
+        }
+        if (stompSession != null && stompSession.isConnected()) {
+            send("/app/node/chunk-ack", ack);
+        }
+    }
+
+    @Scheduled(fixedDelay = 500)
+    public void checkTransfers() {
+        chunkTransfers.checkTimeouts();
+    }
+
+    /**
+     * Gửi một chunk console output (đang chạy) về Coordinator
+     */
+    private void sendExecutionOutput(String codeId, long seq, String text) {
+        if (stompSession != null && stompSession.isConnected()) {
+            send(
+                "/app/node/execution-output",
+                Map.of(
+                    "nodeId",
+                    nodeId,
+                    "codeId",
+                    codeId,
+                    "seq",
+                    seq,
+                    "text",
+                    text,
                     "timestamp",
                     System.currentTimeMillis()
                 )
             );
-            log.info("Captured state sent to coordinator");
         }
     }
 
+    /**
+     * Lưu code package nhận được - từ Coordinator (/receive) hoặc từ worker
+     * khác (POST /api/peer/packages). Trả về false nếu package chỉ mang
+     * codeHash mà node không có code đó (đã báo /node/code-missing).
+     */
+    @SuppressWarnings("unchecked")
+    public boolean acceptPackage(Map<String, Object> data) {
+        // Parse code package từ payload
+        String codeId = (String) data.get("id");
+        String codeName = (String) data.get("name");
+        String code = resolveCode(data);
+        String entryPoint = (String) data.get("entryPoint");
+        if (code == null) {
+            sendCodeMissing(
+                codeId,
+                data.get("codeHash"),
+                data.get("migrationId")
+            );
+            return false;
+        }
+
+        // Lưu state nếu có (strong mobility)
+        CodePackage.CodeState state = parseState(data.get("state"));
+
+        CodePackage codePackage = CodePackage.builder()
+            .id(codeId)
+            .name(codeName)
+            .code(code)
+            .codeHash((String) data.get("codeHash"))
+            .entryPoint(entryPoint)
+            .currentNodeId(nodeId)
+            .state(state)
+            .metadata((Map<String, Object>) data.get("metadata"))
+            .build();
+
+        receivedCodePackages.put(codeId, codePackage);
+        // Package của migration -> báo coordinator để sang bước start
+        sendMigrationAck(data.get("migrationId"), codeId, "received");
+
+        // ========== LOG CHI TIẾT CODE PACKAGE NHẬN ĐƯỢC ==========
+        log.info(
+            "╔══════════════════════════════════════════════════════════════╗"
+        );
+        log.info(
+            "║               RECEIVED CODE PACKAGE                          ║"
+        );
+        log.info(
+            "╠══════════════════════════════════════════════════════════════╣"
+        );
+        log.info("║ Code ID    : {}", codeId);
+        log.info("║ Code Name  : {}", codeName);
+        log.info("║ Entry Point: {}", entryPoint);
+        log.info("║ Target Node: {}", nodeId);
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ CODE CONTENT:");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        String[] codeLines = code.split("\n");
+        for (int i = 0; i < codeLines.length; i++) {
+            log.info(
+                "║ {} │ {}",
+                String.format("%3d", i + 1),
+                codeLines[i]
+            );
+        }
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        log.info("║ MIGRATED STATE:");
+        log.info(
+            "╠──────────────────────────────────────────────────────────────╣"
+        );
+        if (state != null) {
+            log.info(
+                "║   [STRONG MOBILITY - State transferred from source]"
+            );
+            log.info(
+                "║   Execution Point: {} (loop iteration {})",
+                state.getExecutionPoint(),
+                state.getLoopIteration()
+            );
+            log.info("║   Variables:");
+            if (
+                state.getVariables() != null &&
+                !state.getVariables().isEmpty()
+            ) {
+                for (Map.Entry<String, Object> entry : state
+                    .getVariables()
+                    .entrySet()) {
+                    log.info(
+                        "║     - {} = {} ({})",
+                        entry.getKey(),
+                        entry.getValue(),
+                        entry.getValue() != null
+                            ? entry
+                                  .getValue()
+                                  .getClass()
+                                  .getSimpleName()
+                            : "null"
+                    );
+                }
+            } else {
+                log.info("║     (no variables)");
+            }
+            log.info(
+                "║   Previous Output: {}",
+                state.getOutput() != null
+                    ? state.getOutput()
+                    : "(none)"
+            );
+        } else {
+            log.info("║   [WEAK MOBILITY - No state, fresh start]");
+        }
+        log.info(
+            "╚══════════════════════════════════════════════════════════════╝"
+        );
+        return true;
+    }
+
+    /**
+     * Code của package: lấy từ payload (và lưu theo hash), hoặc từ kho theo
+     * codeHash khi bên gửi biết node đã có; null nếu không có cả hai.
+     * Ghi lại codeHash vào payload (bên gửi cũ không kèm hash).
+     */
+    private String resolveCode(Map<String, Object> data) {
+        String code = (String) data.get("code");
+        if (code != null) {
+            String hash = ContentHash.sha256(code);
+            String stored = codeByHash.get(hash);
+            if (stored == null) {
+                codeByHash.put(hash, code);
+            }
+            data.put("codeHash", hash);
+            return stored != null ? stored : code;
+        }
+        String hash = (String) data.get("codeHash");
+        return hash != null ? codeByHash.get(hash) : null;
+    }
+
+    // Coordinator tưởng node có code này -> báo để lần sau gửi cả code
+    private void sendCodeMissing(
+        String codeId,
+        Object codeHash,
+        Object migrationId
+    ) {
+        log.warn(
+            "Package {} has no code and hash {} is not stored here",
+            codeId,
+            codeHash
+        );
+        if (stompSession == null || !stompSession.isConnected()) return;
+        Map<String, Object> message = new HashMap<>();
+        message.put("nodeId", nodeId);
+        message.put("codeId", codeId);
+        message.put("codeHash", codeHash);
+        if (migrationId != null) {
+            message.put("migrationId", migrationId);
+        }
+        send("/app/node/code-missing", message);
+    }
+
+    // Ack một bước migration (chỉ khi lệnh đến từ migration)
+    private void sendMigrationAck(Object migrationId, String codeId, String status) {
+        sendMigrationAck(migrationId, codeId, status, Map.of());
+    }
+
+    private void sendMigrationAck(
+        Object migrationId,
+        String codeId,
+        String status,
+        Map<String, Object> details
+    ) {
+        if (
+            migrationId == null ||
+            stompSession == null ||
+            !stompSession.isConnected()
+        ) {
+            return;
+        }
+        Map<String, Object> ack = new HashMap<>(details);
+        ack.put("nodeId", nodeId);
+        ack.put("migrationId", migrationId);
+        ack.put("codeId", codeId);
+        ack.put("status", status);
+        send("/app/node/migration-ack", ack);
+    }
+
+    /**
+     * Migration kiểu peer: capture state (pause tại checkpoint nếu cần) rồi
+     * POST package thẳng tới worker target. Coordinator chỉ nhận ack
+     * "pushed" (kèm số byte state, khóa memo) hoặc "push-failed" để quay về
+     * relay; script trên source được thả ra nếu gửi lỗi. Gửi chỉ hash mà
+     * target không có code (409) thì gửi lại kèm code.
+     */
+    private void pushToPeer(
+        String codeId,
+        Object migrationId,
+        String targetUrl,
+        boolean captureState,
+        boolean targetHasCode
+    ) {
+        CodePackage codePackage = receivedCodePackages.get(codeId);
+        if (codePackage == null) {
+            sendMigrationAck(
+                migrationId,
+                codeId,
+                "push-failed",
+                Map.of("error", "Code package not found on " + nodeId)
+            );
+            return;
+        }
+        long startedAt = System.currentTimeMillis();
+        try {
+            CodePackage.CodeState state = captureState
+                ? codeExecutorService.getState(codeId, true)
+                : null;
+            CodePackage outgoing = CodePackage.builder()
+                .id(codePackage.getId())
+                .name(codePackage.getName())
+                .code(codePackage.getCode())
+                .codeHash(codePackage.getCodeHash())
+                .entryPoint(codePackage.getEntryPoint())
+                .metadata(codePackage.getMetadata())
+                .state(state)
+                .build();
+            Map<String, Object> payload = WirePackage.payload(
+                outgoing,
+                !targetHasCode
+            );
+            try {
+                postToPeer(targetUrl, payload);
+            } catch (HttpClientErrorException.Conflict e) {
+                payload = WirePackage.payload(outgoing, true);
+                postToPeer(targetUrl, payload);
+            }
+
+            long bytes = WirePackage.stateBytes(payload);
+            log.info(
+                "Code {} pushed to {} ({} state bytes, {}ms)",
+                codeId,
+                targetUrl,
+                bytes,
+                System.currentTimeMillis() - startedAt
+            );
+            sendMigrationAck(
+                migrationId,
+                codeId,
+                "pushed",
+                Map.of(
+                    "bytes",
+                    bytes,
+                    "codeBytes",
+                    WirePackage.codeBytes(payload),
+                    "memoKey",
+                    MemoCache.key(outgoing.getCode(), state)
+                )
+            );
+        } catch (Exception e) {
+            log.warn(
+                "Push of code {} to {} failed: {}",
+                codeId,
+                targetUrl,
+                e.getMessage()
+            );
+            codeExecutorService.releaseCheckpoint(codeId);
+            sendMigrationAck(
+                migrationId,
+                codeId,
+                "push-failed",
+                Map.of(
+                    "error",
+                    e.getMessage() != null ? e.getMessage() : e.toString()
+                )
+            );
+        }
+    }
+
+    private void postToPeer(String targetUrl, Map<String, Object> payload) {
+        peerClient
+            .post()
+            .uri(targetUrl + "/api/peer/packages")
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(payload)
+            .retrieve()
+            .toBodilessEntity();
+    }
+
     /**
      * Gửi kết quả execution về Coordinator
      */
@@ -844,9 +1656,31 @@ public class WorkerNodeService {
         String result,
         String error,
         String consoleOutput
+    ) {
+        sendExecutionResult(
+            codeId,
+            result,
+            error,
+            consoleOutput,
+            error == null ? "completed" : "error",
+            Map.of(),
+            true,
+            null
+        );
+    }
+
+    private void sendExecutionResult(
+        String codeId,
+        String result,
+        String error,
+        String consoleOutput,
+        String status,
+        Map<String, Object> resources,
+        boolean streamed,
+        Object value
     ) {
         if (stompSession != null && stompSession.isConnected()) {
-            stompSession.send(
+            send(
                 "/app/node/execution-complete",
                 Map.of(
                     "nodeId",
@@ -860,7 +1694,17 @@ public class WorkerNodeService {
                     "consoleOutput",
                     consoleOutput != null ? consoleOutput : "",
                     "status",
-                    error == null ? "completed" : "error",
+                    status,
+                    // Console output đã được stream theo chunk trong lúc chạy;
+                    // consoleOutput ở đây chỉ là phần đuôi (trừ kết quả từ memo)
+                    "streamed",
+                    streamed,
+                    // Tài nguyên execution đã dùng (CPU, bytes cấp phát, GC)
+                    "resources",
+                    resources,
+                    // Giá trị trả về nguyên kiểu (StateCodec), rỗng nếu không có
+                    "value",
+                    value != null ? StateCodec.encodeValueBase64(value) : "",
                     "timestamp",
                     System.currentTimeMillis()
                 )
@@ -895,8 +1739,7 @@ public class WorkerNodeService {
             // Lấy uptime thực (thời gian JVM đã chạy, tính bằng giây)
             long uptimeSeconds = runtimeBean.getUptime() / 1000;
 
-            stompSession.send(
-                "/app/node/metrics",
+            Map<String, Object> metrics = new HashMap<>(
                 Map.of(
                     "nodeId",
                     nodeId,
@@ -907,9 +1750,27 @@ public class WorkerNodeService {
                     "processes",
                     Thread.activeCount(),
                     "uptime",
-                    uptimeSeconds
+                    uptimeSeconds,
+                    "scriptCache",
+                    scriptCache.getStats(),
+                    "executor",
+                    executionEngine.getStats(),
+                    "stateStore",
+                    stateStore.getStats(),
+                    "resources",
+                    codeExecutorService.getResourceStats(),
+                    "resultMemo",
+                    codeExecutorService.getMemoStats()
                 )
             );
+            // Nén message gửi Coordinator: codec đang dùng, tỉ lệ, CPU
+            Map<String, Object> compression = new HashMap<>(
+                payloadCompression.getStats()
+            );
+            compression.put("codec", messageConverter.getCodec().id());
+            metrics.put("compression", compression);
+
+            send("/app/node/metrics", metrics);
         }
     }
 
@@ -917,7 +1778,7 @@ public class WorkerNodeService {
     @Scheduled(fixedRate = 10000)
     public void sendHeartbeat() {
         if (stompSession != null && stompSession.isConnected()) {
-            stompSession.send("/app/node/heartbeat", Map.of("nodeId", nodeId));
+            send("/app/node/heartbeat", Map.of("nodeId", nodeId));
         }
     }
 }
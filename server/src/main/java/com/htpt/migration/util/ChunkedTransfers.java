@@ -0,0 +1,567 @@
+package com.htpt.migration.util;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Truyền payload lớn qua STOMP theo chunk (dùng ở cả Coordinator và worker).
+ *
+ * Bên gửi chia payload thành chunk kích thước cố định, mỗi chunk kèm CRC32C,
+ * cả payload kèm SHA-256; chỉ gửi tối đa window chunk chưa được ack. Bên
+ * nhận ack tích lũy (số chunk liên tiếp đã có từ đầu), chunk hỏng thì nack
+ * -> bên gửi gửi lại từ chunk đó (go-back-N). Không có ack trong
+ * retransmit-ms (vd. mất kết nối) hoặc khi kết nối lại (resume) thì gửi
+ * lại từ chunk cuối cùng đã ack; bên nhận bỏ qua chunk trùng. Đủ chunk và
+ * đúng SHA-256 thì bên nhận xử lý payload rồi ack "complete".
+ */
+public final class ChunkedTransfers {
+
+    // Chunk nhỏ hơn thì từ chối: giới hạn số chunk (mảng bên nhận) theo maxBytes
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    /** Gửi một frame chunk tới target (Coordinator: nodeId, worker: bỏ qua) */
+    @FunctionalInterface
+    public interface ChunkSink {
+        void send(String target, Map<String, Object> frame);
+    }
+
+    /** Byte đã được bên nhận ack / tổng byte */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(long ackedBytes, long totalBytes);
+    }
+
+    /** Payload đã nhận đủ và đúng checksum */
+    public record Completed(
+        String transferId,
+        String kind,
+        String source,
+        byte[] data
+    ) {}
+
+    /**
+     * Ack cần gửi lại cho bên gửi, header của transfer, số byte đã nhận, kèm
+     * payload nếu chunk này là chunk cuối
+     */
+    public record Received(
+        String source,
+        Map<String, Object> ack,
+        Map<String, Object> headers,
+        long receivedBytes,
+        long totalBytes,
+        Completed completed
+    ) {}
+
+    private final int chunkSize;
+    private final int window;
+    private final long retransmitMs;
+    private final int maxRetransmits;
+    private final long maxBytes;
+    private final long incomingTtlMs;
+    private final ChunkSink sink;
+
+    private final Map<String, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+    // Transfer đã nhận xong -> chunk gửi lại muộn chỉ cần ack "complete"
+    private final Map<String, Completed> recentlyCompleted =
+        new ConcurrentHashMap<>();
+    private final Map<String, Long> completedAt = new ConcurrentHashMap<>();
+
+    private final AtomicLong chunksSent = new AtomicLong();
+    private final AtomicLong chunksResent = new AtomicLong();
+    private final AtomicLong bytesAcked = new AtomicLong();
+    private final AtomicLong chunksReceived = new AtomicLong();
+    private final AtomicLong duplicateChunks = new AtomicLong();
+    private final AtomicLong corruptChunks = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong completedTransfers = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+
+    public ChunkedTransfers(
+        int chunkSize,
+        int window,
+        long retransmitMs,
+        int maxRetransmits,
+        long maxBytes,
+        long incomingTtlMs,
+        ChunkSink sink
+    ) {
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.window = Math.max(1, window);
+        this.retransmitMs = retransmitMs;
+        this.maxRetransmits = maxRetransmits;
+        this.maxBytes = maxBytes;
+        this.incomingTtlMs = incomingTtlMs;
+        this.sink = sink;
+    }
+
+    // Payload lớn hơn một chunk thì mới chia
+    public boolean needsChunking(int size) {
+        return size > chunkSize;
+    }
+
+    // ========== Bên gửi ==========
+
+    /**
+     * headers (có thể null) đi kèm mọi chunk - bên nhận biết payload thuộc về
+     * ai trước khi nhận đủ (vd. requestId)
+     */
+    public CompletableFuture<Void> send(
+        String target,
+        String kind,
+        byte[] data,
+        Map<String, Object> headers,
+        ProgressListener listener
+    ) {
+        Outgoing transfer = new Outgoing(
+            kind + "-" + UUID.randomUUID().toString().substring(0, 12),
+            kind,
+            target,
+            data,
+            headers,
+            listener
+        );
+        outgoing.put(transfer.id, transfer);
+        synchronized (transfer) {
+            pump(transfer);
+        }
+        return transfer.done;
+    }
+
+    public void onAck(Map<String, Object> ack) {
+        Outgoing transfer = outgoing.get((String) ack.get("transferId"));
+        if (transfer == null) return;
+        synchronized (transfer) {
+            if (transfer.done.isDone()) return;
+            if (ack.get("error") != null) {
+                fail(transfer, new IllegalStateException(
+                    "Transfer " + transfer.id + " rejected: " + ack.get("error")
+                ));
+                return;
+            }
+            int acked = number(ack, "acked");
+            if (acked > transfer.acked) {
+                bytesAcked.addAndGet(
+                    transfer.offset(Math.min(acked, transfer.count)) -
+                    transfer.offset(transfer.acked)
+                );
+                transfer.acked = Math.min(acked, transfer.count);
+                transfer.lastProgressAt = System.currentTimeMillis();
+                transfer.retransmits = 0;
+                if (transfer.listener != null) {
+                    transfer.listener.onProgress(
+                        transfer.offset(transfer.acked),
+                        transfer.data.length
+                    );
+                }
+            }
+            if (Boolean.TRUE.equals(ack.get("complete"))) {
+                outgoing.remove(transfer.id);
+                completedTransfers.incrementAndGet();
+                transfer.done.complete(null);
+                return;
+            }
+            // Chunk hỏng -> gửi lại từ chunk đó
+            if (ack.get("nack") instanceof Number nack) {
+                rewind(transfer, Math.max(transfer.acked, nack.intValue()));
+            }
+            pump(transfer);
+        }
+    }
+
+    // Kết nối tới target vừa được thiết lập lại -> gửi tiếp từ chunk đã ack
+    public void resume(String target) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (!transfer.target.equals(target)) continue;
+            synchronized (transfer) {
+                if (transfer.done.isDone()) continue;
+                resumes.incrementAndGet();
+                transfer.lastProgressAt = System.currentTimeMillis();
+                rewind(transfer, transfer.acked);
+                pump(transfer);
+            }
+        }
+    }
+
+    // Gọi định kỳ: gửi lại transfer không có ack, bỏ transfer nhận dở quá lâu
+    public void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        for (Outgoing transfer : outgoing.values()) {
+            synchronized (transfer) {
+                if (
+                    transfer.done.isDone() ||
+                    now - transfer.lastProgressAt < retransmitMs
+                ) {
+                    continue;
+                }
+                if (++transfer.retransmits > maxRetransmits) {
+                    fail(transfer, new TimeoutException(
+                        "Transfer " + transfer.id + " to " + transfer.target +
+                        ": no ack after " + maxRetransmits + " retransmits"
+                    ));
+                    continue;
+                }
+                transfer.lastProgressAt = now;
+                rewind(transfer, transfer.acked);
+                pump(transfer);
+            }
+        }
+        incoming
+            .values()
+            .removeIf(transfer -> now - transfer.lastChunkAt > incomingTtlMs);
+        Iterator<Map.Entry<String, Long>> done = completedAt
+            .entrySet()
+            .iterator();
+        while (done.hasNext()) {
+            Map.Entry<String, Long> entry = done.next();
+            if (now - entry.getValue() > incomingTtlMs) {
+                recentlyCompleted.remove(entry.getKey());
+                done.remove();
+            }
+        }
+    }
+
+    private void pump(Outgoing transfer) {
+        while (
+            transfer.next < transfer.count &&
+            transfer.next < transfer.acked + window
+        ) {
+            int index = transfer.next++;
+            if (index < transfer.highestSent) {
+                chunksResent.incrementAndGet();
+            } else {
+                transfer.highestSent = index + 1;
+                chunksSent.incrementAndGet();
+            }
+            sink.send(transfer.target, frame(transfer, index));
+        }
+    }
+
+    private void rewind(Outgoing transfer, int index) {
+        transfer.next = Math.min(transfer.next, index);
+    }
+
+    private void fail(Outgoing transfer, Exception error) {
+        outgoing.remove(transfer.id);
+        failedTransfers.incrementAndGet();
+        transfer.done.completeExceptionally(error);
+    }
+
+    private Map<String, Object> frame(Outgoing transfer, int index) {
+        int from = transfer.offset(index);
+        int to = transfer.offset(index + 1);
+        CRC32C crc = new CRC32C();
+        crc.update(transfer.data, from, to - from);
+
+        Map<String, Object> frame = new HashMap<>();
+        frame.put("transferId", transfer.id);
+        frame.put("kind", transfer.kind);
+        frame.put("index", index);
+        frame.put("count", transfer.count);
+        frame.put("chunkSize", chunkSize);
+        frame.put("totalBytes", transfer.data.length);
+        frame.put("sha256", transfer.sha256);
+        frame.put("crc", crc.getValue());
+        if (transfer.headers != null) {
+            frame.put("headers", transfer.headers);
+        }
+        frame.put(
+            "data",
+            Base64.getEncoder().encodeToString(
+                Arrays.copyOfRange(transfer.data, from, to)
+            )
+        );
+        return frame;
+    }
+
+    // ========== Bên nhận ==========
+
+    /**
+     * Lưu một chunk; trả về ack cần gửi lại cho source và payload nếu đã đủ.
+     * Người gọi xử lý payload trước, thành công thì gọi markHandled rồi mới
+     * gửi ack (ack "complete" nghĩa là payload đã được dùng).
+     */
+    @SuppressWarnings("unchecked")
+    public Received onChunk(Map<String, Object> frame, String source) {
+        String transferId = (String) frame.get("transferId");
+        int count = number(frame, "count");
+        int frameChunkSize = number(frame, "chunkSize");
+        long totalBytes = ((Number) frame.get("totalBytes")).longValue();
+        Map<String, Object> headers =
+            frame.get("headers") instanceof Map<?, ?> map
+                ? (Map<String, Object>) map
+                : Map.of();
+        Map<String, Object> ack = new HashMap<>();
+        ack.put("transferId", transferId);
+
+        if (recentlyCompleted.containsKey(transferId)) {
+            duplicateChunks.incrementAndGet();
+            ack.put("acked", count);
+            ack.put("complete", true);
+            return new Received(
+                source,
+                ack,
+                headers,
+                totalBytes,
+                totalBytes,
+                null
+            );
+        }
+
+        if (totalBytes > maxBytes) {
+            ack.put(
+                "error",
+                "Payload of " + totalBytes + " bytes exceeds " + maxBytes
+            );
+            return new Received(source, ack, headers, 0, totalBytes, null);
+        }
+        // count do bên gửi khai: phải khớp totalBytes / chunkSize trước khi
+        // cấp mảng chunk
+        if (
+            totalBytes < 0 ||
+            frameChunkSize < MIN_CHUNK_SIZE ||
+            count != expectedCount(totalBytes, frameChunkSize)
+        ) {
+            ack.put(
+                "error",
+                "Invalid chunk layout: " +
+                count +
+                " chunks of " +
+                frameChunkSize +
+                " bytes for " +
+                totalBytes +
+                " bytes"
+            );
+            return new Received(source, ack, headers, 0, totalBytes, null);
+        }
+        Incoming transfer = incoming.computeIfAbsent(transferId, id ->
+            new Incoming(
+                id,
+                (String) frame.get("kind"),
+                count,
+                frameChunkSize,
+                (int) totalBytes,
+                (String) frame.get("sha256")
+            )
+        );
+
+        synchronized (transfer) {
+            transfer.lastChunkAt = System.currentTimeMillis();
+            int index = number(frame, "index");
+            byte[] data = Base64.getDecoder().decode(
+                (String) frame.get("data")
+            );
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            if (
+                index < 0 ||
+                index >= transfer.chunks.length ||
+                data.length != transfer.length(index) ||
+                crc.getValue() != ((Number) frame.get("crc")).longValue()
+            ) {
+                corruptChunks.incrementAndGet();
+                ack.put("acked", transfer.contiguous);
+                ack.put("nack", index);
+                return new Received(
+                    source,
+                    ack,
+                    headers,
+                    transfer.receivedBytes,
+                    totalBytes,
+                    null
+                );
+            }
+
+            if (transfer.chunks[index] == null) {
+                transfer.chunks[index] = data;
+                transfer.received++;
+                transfer.receivedBytes += data.length;
+                chunksReceived.incrementAndGet();
+            } else {
+                duplicateChunks.incrementAndGet();
+            }
+            while (
+                transfer.contiguous < transfer.chunks.length &&
+                transfer.chunks[transfer.contiguous] != null
+            ) {
+                transfer.contiguous++;
+            }
+            ack.put("acked", transfer.contiguous);
+            if (transfer.received < transfer.chunks.length) {
+                return new Received(
+                    source,
+                    ack,
+                    headers,
+                    transfer.receivedBytes,
+                    totalBytes,
+                    null
+                );
+            }
+
+            incoming.remove(transferId);
+            byte[] payload = transfer.assemble();
+            if (!ContentHash.sha256(payload).equals(transfer.sha256)) {
+                corruptChunks.incrementAndGet();
+                ack.put("error", "SHA-256 mismatch");
+                return new Received(
+                    source,
+                    ack,
+                    headers,
+                    transfer.receivedBytes,
+                    totalBytes,
+                    null
+                );
+            }
+            Completed completed = new Completed(
+                transferId,
+                transfer.kind,
+                source,
+                payload
+            );
+            ack.put("complete", true);
+            return new Received(
+                source,
+                ack,
+                headers,
+                totalBytes,
+                totalBytes,
+                completed
+            );
+        }
+    }
+
+    /**
+     * Payload đã được người gọi xử lý xong: chunk gửi lại muộn chỉ cần ack
+     * "complete". Handler lỗi thì không gọi -> gửi lại sẽ nhận lại từ đầu.
+     */
+    public void markHandled(Completed completed) {
+        recentlyCompleted.put(completed.transferId(), completed);
+        completedAt.put(completed.transferId(), System.currentTimeMillis());
+        completedTransfers.incrementAndGet();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("chunkSize", chunkSize);
+        stats.put("window", window);
+        stats.put("sending", outgoing.size());
+        stats.put("receiving", incoming.size());
+        stats.put("chunksSent", chunksSent.get());
+        stats.put("chunksResent", chunksResent.get());
+        stats.put("bytesAcked", bytesAcked.get());
+        stats.put("chunksReceived", chunksReceived.get());
+        stats.put("duplicateChunks", duplicateChunks.get());
+        stats.put("corruptChunks", corruptChunks.get());
+        stats.put("resumes", resumes.get());
+        stats.put("completedTransfers", completedTransfers.get());
+        stats.put("failedTransfers", failedTransfers.get());
+        return stats;
+    }
+
+    private static int expectedCount(long totalBytes, int chunkSize) {
+        return (int) Math.max(1, (totalBytes + chunkSize - 1) / chunkSize);
+    }
+
+    private static int number(Map<String, Object> map, String key) {
+        return map.get(key) instanceof Number number ? number.intValue() : 0;
+    }
+
+    // Trạng thái bên gửi (truy cập trong synchronized(transfer))
+    private final class Outgoing {
+
+        final String id;
+        final String kind;
+        final String target;
+        final byte[] data;
+        final Map<String, Object> headers;
+        final String sha256;
+        final int count;
+        final ProgressListener listener;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        int acked; // Số chunk liên tiếp từ đầu bên nhận đã có
+        int next; // Chunk gửi tiếp theo
+        int highestSent;
+        int retransmits;
+        long lastProgressAt = System.currentTimeMillis();
+
+        Outgoing(
+            String id,
+            String kind,
+            String target,
+            byte[] data,
+            Map<String, Object> headers,
+            ProgressListener listener
+        ) {
+            this.id = id;
+            this.kind = kind;
+            this.target = target;
+            this.data = data;
+            this.headers = headers;
+            this.sha256 = ContentHash.sha256(data);
+            this.count = expectedCount(data.length, chunkSize);
+            this.listener = listener;
+        }
+
+        int offset(int index) {
+            return (int) Math.min((long) index * chunkSize, data.length);
+        }
+    }
+
+    // Trạng thái bên nhận (truy cập trong synchronized(transfer))
+    private static final class Incoming {
+
+        final String id;
+        final String kind;
+        final int chunkSize;
+        final int totalBytes;
+        final String sha256;
+        final byte[][] chunks;
+        int received;
+        long receivedBytes;
+        int contiguous;
+        long lastChunkAt = System.currentTimeMillis();
+
+        Incoming(
+            String id,
+            String kind,
+            int count,
+            int chunkSize,
+            int totalBytes,
+            String sha256
+        ) {
+            this.id = id;
+            this.kind = kind;
+            this.chunkSize = chunkSize;
+            this.totalBytes = totalBytes;
+            this.sha256 = sha256;
+            this.chunks = new byte[count][];
+        }
+
+        // Chunk cuối có thể ngắn hơn chunkSize
+        int length(int index) {
+            long from = (long) index * chunkSize;
+            return (int) Math.min(chunkSize, totalBytes - from);
+        }
+
+        byte[] assemble() {
+            byte[] payload = new byte[totalBytes];
+            int position = 0;
+            for (byte[] chunk : chunks) {
+                int length = Math.min(chunk.length, totalBytes - position);
+                System.arraycopy(chunk, 0, payload, position, length);
+                position += length;
+            }
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.htpt.migration.util;
+
+import com.htpt.migration.util.PayloadCompression.Codec;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.SmartMessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * JSON converter của STOMP client trên worker, có nén: message gửi đi lớn
+ * hơn ngưỡng được nén bằng codec đã thỏa thuận với Coordinator (NONE cho
+ * tới khi Coordinator xác nhận), message nhận về đã nén được giải nén
+ * trước khi đọc JSON.
+ */
+public class CompressingMessageConverter implements SmartMessageConverter {
+
+    private final MappingJackson2MessageConverter json =
+        new MappingJackson2MessageConverter();
+    private final PayloadCompression compression;
+    private volatile Codec codec = Codec.NONE;
+
+    public CompressingMessageConverter(PayloadCompression compression) {
+        this.compression = compression;
+    }
+
+    public void setCodec(Codec codec) {
+        this.codec = codec != null ? codec : Codec.NONE;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public Message<?> toMessage(Object payload, MessageHeaders headers) {
+        return toMessage(payload, headers, null);
+    }
+
+    @Override
+    public Message<?> toMessage(
+        Object payload,
+        MessageHeaders headers,
+        Object conversionHint
+    ) {
+        Message<?> message = json.toMessage(payload, headers, conversionHint);
+        Codec current = codec;
+        if (message == null || !(message.getPayload() instanceof byte[] body)) {
+            return message;
+        }
+        byte[] compressed = compression.compress(body, current);
+        if (compressed == null) {
+            return message;
+        }
+        MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(
+            message
+        );
+        accessor.setContentType(PayloadCompression.mimeType(current));
+        return MessageBuilder.createMessage(
+            compressed,
+            accessor.getMessageHeaders()
+        );
+    }
+
+    @Override
+    public Object fromMessage(Message<?> message, Class<?> targetClass) {
+        return fromMessage(message, targetClass, null);
+    }
+
+    @Override
+    public Object fromMessage(
+        Message<?> message,
+        Class<?> targetClass,
+        Object conversionHint
+    ) {
+        Codec received = PayloadCompression.codecOf(
+            json.getContentTypeResolver().resolve(message.getHeaders())
+        );
+        if (received != null && message.getPayload() instanceof byte[] body) {
+            MessageHeaderAccessor accessor = new MessageHeaderAccessor(message);
+            accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            message = MessageBuilder.createMessage(
+                compression.decompress(body, received),
+                accessor.getMessageHeaders()
+            );
+        }
+        return json.fromMessage(message, targetClass, conversionHint);
+    }
+}
@@ -0,0 +1,32 @@
+package com.htpt.migration.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Hash nội dung (SHA-256, hex) - dùng làm khóa cho code package
+ */
+public final class ContentHash {
+
+    private ContentHash() {}
+
+    public static String sha256(String content) {
+        return sha256(
+            content != null
+                ? content.getBytes(StandardCharsets.UTF_8)
+                : new byte[0]
+        );
+    }
+
+    public static String sha256(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 luôn có sẵn trong mọi JRE
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
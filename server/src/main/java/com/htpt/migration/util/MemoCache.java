@@ -0,0 +1,125 @@
+package com.htpt.migration.util;
+
+import com.htpt.migration.model.CodePackage;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache kết quả của package "deterministic": cùng code + cùng state đầu
+ * vào thì cho cùng kết quả, nên lần chạy lặp lại trả về ngay.
+ *
+ * Khóa = SHA-256 của code + fingerprint của state đầu vào. Giới hạn theo
+ * số entry, tổng byte (ước lượng bằng weigher) và TTL, bỏ ra theo LRU.
+ * Cũng dùng làm kho code theo hash (CodeStore, worker) với ttlMs = 0.
+ */
+public final class MemoCache<V> {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final ToLongFunction<V> weigher;
+
+    // Access-order = LRU; mọi truy cập đều synchronized(this)
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    );
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MemoCache(
+        int maxEntries,
+        long maxBytes,
+        long ttlMs,
+        ToLongFunction<V> weigher
+    ) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.weigher = weigher;
+    }
+
+    // State null (chạy từ đầu) và state rỗng là hai khóa khác nhau
+    public static String key(String code, CodePackage.CodeState state) {
+        long stateHash = state == null
+            ? 0
+            : ValueFingerprint.of(
+                Arrays.asList(
+                    state.getVariables(),
+                    state.getExecutionPoint(),
+                    state.getLoopIteration()
+                )
+            );
+        return ContentHash.sha256(code) + ":" + Long.toHexString(stateHash);
+    }
+
+    public synchronized V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(key);
+            bytes -= entry.size;
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public synchronized void put(String key, V value) {
+        long size = weigher.applyAsLong(value);
+        if (size > maxBytes) return;
+        Entry<V> previous = entries.put(
+            key,
+            new Entry<>(value, size, System.currentTimeMillis())
+        );
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+
+        Iterator<Entry<V>> lru = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && lru.hasNext()) {
+            Entry<V> eldest = lru.next();
+            lru.remove();
+            bytes -= eldest.size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("hitRate", lookups > 0 ? (double) hitCount / lookups : 0.0);
+        return stats;
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return ttlMs > 0 && now - entry.storedAt > ttlMs;
+    }
+
+    private record Entry<V>(V value, long size, long storedAt) {}
+}
@@ -0,0 +1,215 @@
+package com.htpt.migration.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.springframework.util.MimeType;
+
+/**
+ * Nén body của STOMP message giữa worker và Coordinator.
+ *
+ * Message đã nén có content-type application/octet-stream;codec=<codec>
+ * (gửi dạng binary frame); bên nhận giải nén rồi xử lý như JSON bình
+ * thường. Chỉ nén body từ threshold-bytes trở lên và khi nén xong thật sự
+ * nhỏ hơn. Đếm số message / byte trước-sau / thời gian CPU cho metrics.
+ */
+public final class PayloadCompression {
+
+    public static final String CODEC_PARAM = "codec";
+    // Header STOMP CONNECT: các codec worker giải nén được
+    public static final String ACCEPT_HEADER = "accept-encoding";
+
+    public enum Codec {
+        NONE,
+        GZIP,
+        DEFLATE;
+
+        public String id() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        // null nếu không biết
+        public static Codec parse(String value) {
+            if (value == null) return null;
+            for (Codec codec : values()) {
+                if (codec.id().equalsIgnoreCase(value.trim())) return codec;
+            }
+            return null;
+        }
+
+        // "gzip, deflate" -> [GZIP, DEFLATE] (bỏ giá trị lạ và none)
+        public static List<Codec> parseList(String value) {
+            List<Codec> codecs = new ArrayList<>();
+            if (value == null) return codecs;
+            for (String part : value.split(",")) {
+                Codec codec = parse(part);
+                if (codec != null && codec != NONE && !codecs.contains(codec)) {
+                    codecs.add(codec);
+                }
+            }
+            return codecs;
+        }
+    }
+
+    private final int thresholdBytes;
+    private final int level;
+    private final long maxInflatedBytes;
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong skippedMessages = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressedMessages = new AtomicLong();
+    private final AtomicLong inflatedBytes = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public PayloadCompression(
+        int thresholdBytes,
+        int level,
+        long maxInflatedBytes
+    ) {
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+        this.maxInflatedBytes = maxInflatedBytes;
+    }
+
+    public static MimeType mimeType(Codec codec) {
+        return new MimeType(
+            "application",
+            "octet-stream",
+            Map.of(CODEC_PARAM, codec.id())
+        );
+    }
+
+    // Codec của message đã nén, null nếu message không nén
+    public static Codec codecOf(MimeType contentType) {
+        if (
+            contentType == null ||
+            !"octet-stream".equals(contentType.getSubtype())
+        ) {
+            return null;
+        }
+        Codec codec = Codec.parse(contentType.getParameter(CODEC_PARAM));
+        return codec != Codec.NONE ? codec : null;
+    }
+
+    /**
+     * Body đã nén, hoặc null nếu không nên nén (nhỏ hơn ngưỡng, codec none,
+     * nén không nhỏ đi)
+     */
+    public byte[] compress(byte[] raw, Codec codec) {
+        if (
+            codec == null ||
+            codec == Codec.NONE ||
+            raw.length < thresholdBytes
+        ) {
+            return null;
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+            raw.length / 4 + 64
+        );
+        try (OutputStream out = openCompressor(buffer, codec)) {
+            out.write(raw);
+        } catch (IOException e) {
+            // ByteArrayOutputStream không ném IOException
+            throw new IllegalStateException(e);
+        }
+        compressNanos.addAndGet(System.nanoTime() - start);
+
+        byte[] compressed = buffer.toByteArray();
+        if (compressed.length >= raw.length) {
+            skippedMessages.incrementAndGet();
+            return null;
+        }
+        compressedMessages.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        compressedBytes.addAndGet(compressed.length);
+        return compressed;
+    }
+
+    public byte[] decompress(byte[] data, Codec codec) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream in = openDecompressor(data, codec)) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (buffer.size() + read > maxInflatedBytes) {
+                    throw new IllegalArgumentException(
+                        "Inflated payload exceeds " + maxInflatedBytes + " bytes"
+                    );
+                }
+                buffer.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Corrupt " + codec.id() + " payload: " + e.getMessage(),
+                e
+            );
+        }
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        decompressedMessages.incrementAndGet();
+        inflatedBytes.addAndGet(buffer.size());
+        return buffer.toByteArray();
+    }
+
+    public Map<String, Object> getStats() {
+        long raw = rawBytes.get();
+        long compressed = compressedBytes.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("thresholdBytes", thresholdBytes);
+        stats.put("level", level);
+        stats.put("compressedMessages", compressedMessages.get());
+        stats.put("skippedMessages", skippedMessages.get());
+        stats.put("rawBytes", raw);
+        stats.put("compressedBytes", compressed);
+        stats.put("savedBytes", raw - compressed);
+        stats.put("ratio", compressed > 0 ? (double) raw / compressed : 0.0);
+        stats.put("compressCpuMs", compressNanos.get() / 1_000_000);
+        stats.put("decompressedMessages", decompressedMessages.get());
+        stats.put("inflatedBytes", inflatedBytes.get());
+        stats.put("decompressCpuMs", decompressNanos.get() / 1_000_000);
+        return stats;
+    }
+
+    private OutputStream openCompressor(OutputStream out, Codec codec)
+        throws IOException {
+        if (codec == Codec.GZIP) {
+            return new GZIPOutputStream(out) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    private static InputStream openDecompressor(byte[] data, Codec codec)
+        throws IOException {
+        InputStream in = new ByteArrayInputStream(data);
+        return codec == Codec.GZIP
+            ? new GZIPInputStream(in)
+            : new InflaterInputStream(in);
+    }
+}
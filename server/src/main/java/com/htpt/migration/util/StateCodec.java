@@ -0,0 +1,638 @@
+package com.htpt.migration.util;
+
+import com.htpt.migration.model.CodePackage;
+import groovy.lang.IntRange;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Mã hóa nhị phân cho CodePackage.CodeState (thay cho JSON của Jackson).
+ *
+ * Định dạng (big-endian, varint = unsigned LEB128):
+ *   magic "HS" | version (1 byte) | executionPoint (varint)
+ *   | loopIteration (varint) | output (có/không + string)
+ *   | số biến (varint) | [tên biến | độ dài value (varint) | value]*
+ *
+ * Mỗi value có 1 byte tag kiểu; giữ nguyên kiểu số (int/long/BigDecimal...)
+ * và mảng primitive (int[], double[]...) - JSON sẽ biến chúng thành List.
+ * Value của từng biến có độ dài đi trước nên bản decode cũ gặp tag lạ chỉ
+ * bỏ qua biến đó thay vì hỏng cả state. Range số nguyên của Groovy (1..n)
+ * được ghi bằng hai biên thay vì từng phần tử.
+ */
+@Slf4j
+public final class StateCodec {
+
+    // Giá trị của trường encoding trong message
+    public static final String ENCODING = "htpt-state/1";
+
+    private static final byte MAGIC_0 = 'H';
+    private static final byte MAGIC_1 = 'S';
+    private static final byte FORMAT_VERSION = 1;
+
+    // Cấu trúc lồng sâu hơn mức này (hoặc vòng tham chiếu) không mã hóa được
+    private static final int MAX_DEPTH = 64;
+    // Collection / Map / Object[] nhiều phần tử hơn -> không đưa vào state
+    // (supports() không phải duyệt hết một collection khổng lồ)
+    private static final int MAX_ELEMENTS = 1 << 20;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte CHAR = 9;
+    private static final byte BIG_INTEGER = 10;
+    private static final byte BIG_DECIMAL = 11;
+    private static final byte STRING = 12;
+    private static final byte LIST = 13;
+    private static final byte SET = 14;
+    private static final byte MAP = 15;
+    private static final byte INT_ARRAY = 16;
+    private static final byte LONG_ARRAY = 17;
+    private static final byte DOUBLE_ARRAY = 18;
+    private static final byte FLOAT_ARRAY = 19;
+    private static final byte SHORT_ARRAY = 20;
+    private static final byte BYTE_ARRAY = 21;
+    private static final byte CHAR_ARRAY = 22;
+    private static final byte BOOLEAN_ARRAY = 23;
+    private static final byte STRING_ARRAY = 24;
+    private static final byte OBJECT_ARRAY = 25;
+    private static final byte INT_RANGE = 26;
+
+    private StateCodec() {}
+
+    // ========== API ==========
+
+    public static byte[] encode(CodePackage.CodeState state) {
+        Writer out = new Writer();
+        out.raw(MAGIC_0);
+        out.raw(MAGIC_1);
+        out.raw(FORMAT_VERSION);
+        out.varint(state.getExecutionPoint());
+        out.varint(state.getLoopIteration());
+        if (state.getOutput() != null) {
+            out.raw((byte) 1);
+            out.string(state.getOutput());
+        } else {
+            out.raw((byte) 0);
+        }
+
+        Map<String, Object> variables = state.getVariables() != null
+            ? state.getVariables()
+            : Map.of();
+        out.varint(variables.size());
+        Writer value = new Writer();
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            value.reset();
+            value.value(entry.getValue(), 0);
+            out.string(entry.getKey());
+            out.varint(value.size());
+            out.bytes(value.buffer(), 0, value.size());
+        }
+        return out.toByteArray();
+    }
+
+    public static CodePackage.CodeState decode(byte[] data) {
+        Reader in = new Reader(data);
+        if (in.raw() != MAGIC_0 || in.raw() != MAGIC_1) {
+            throw new IllegalArgumentException("Not an encoded CodeState");
+        }
+        int version = in.raw();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException(
+                "Unsupported CodeState format version " + version
+            );
+        }
+
+        int executionPoint = (int) in.varint();
+        long loopIteration = in.varint();
+        String output = in.raw() == 1 ? in.string() : null;
+
+        int count = (int) in.varint();
+        Map<String, Object> variables = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.string();
+            int length = (int) in.varint();
+            int end = in.position() + length;
+            try {
+                variables.put(name, in.value());
+            } catch (UnsupportedOperationException e) {
+                // Tag do phiên bản mới hơn ghi ra -> bỏ qua biến này
+                log.warn("Skipping state variable {}: {}", name, e.getMessage());
+            }
+            in.seek(end);
+        }
+
+        return CodePackage.CodeState.builder()
+            .variables(variables)
+            .executionPoint(executionPoint)
+            .loopIteration(loopIteration)
+            .output(output)
+            .build();
+    }
+
+    public static String encodeBase64(CodePackage.CodeState state) {
+        return Base64.getEncoder().encodeToString(encode(state));
+    }
+
+    public static CodePackage.CodeState decodeBase64(String data) {
+        return decode(Base64.getDecoder().decode(data));
+    }
+
+    // Một giá trị đơn lẻ (vd. giá trị trả về của script), mã hóa như state
+    // chỉ có một biến; value phải thỏa supports()
+    public static String encodeValueBase64(Object value) {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("value", value);
+        return encodeBase64(
+            CodePackage.CodeState.builder().variables(variables).build()
+        );
+    }
+
+    public static Object decodeValueBase64(String data) {
+        return decodeBase64(data).getVariables().get("value");
+    }
+
+    // Bản sao sâu của các biến (mã hóa rồi giải mã): snapshot không còn
+    // chung List/Map/mảng với script đang chạy; value phải thỏa supports()
+    public static Map<String, Object> copyVariables(
+        Map<String, Object> variables
+    ) {
+        return decode(
+            encode(CodePackage.CodeState.builder().variables(variables).build())
+        ).getVariables();
+    }
+
+    // Giá trị có mã hóa được không (dùng để lọc biến khi capture state)
+    public static boolean supports(Object value) {
+        return supports(value, 0);
+    }
+
+    private static boolean supports(Object value, int depth) {
+        if (depth > MAX_DEPTH) return false;
+        if (
+            value == null ||
+            value instanceof Boolean ||
+            value instanceof Integer ||
+            value instanceof Long ||
+            value instanceof Double ||
+            value instanceof Float ||
+            value instanceof Short ||
+            value instanceof Byte ||
+            value instanceof Character ||
+            value instanceof BigInteger ||
+            value instanceof BigDecimal ||
+            value instanceof CharSequence ||
+            isIntRange(value)
+        ) {
+            return true;
+        }
+        if (value instanceof Collection<?> collection) {
+            if (collection.size() > MAX_ELEMENTS) return false;
+            for (Object item : collection) {
+                if (!supports(item, depth + 1)) return false;
+            }
+            return true;
+        }
+        if (value instanceof Map<?, ?> map) {
+            if (map.size() > MAX_ELEMENTS) return false;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (
+                    !supports(entry.getKey(), depth + 1) ||
+                    !supports(entry.getValue(), depth + 1)
+                ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value.getClass().isArray()) {
+            if (value.getClass().getComponentType().isPrimitive()) return true;
+            if (value instanceof String[]) return true;
+            if (value.getClass() == Object[].class) {
+                if (((Object[]) value).length > MAX_ELEMENTS) return false;
+                for (Object item : (Object[]) value) {
+                    if (!supports(item, depth + 1)) return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Range rỗng (1..<1) không dựng lại được từ hai biên -> ghi như List
+    private static boolean isIntRange(Object value) {
+        return value instanceof IntRange range && !range.isEmpty();
+    }
+
+    // ========== Encoding ==========
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        Writer() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void raw(byte b) {
+            write(b);
+        }
+
+        void bytes(byte[] bytes, int off, int len) {
+            write(bytes, off, len);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        // ZigZag: số âm nhỏ vẫn mã hóa ngắn
+        void signed(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void fixed(long value, int width) {
+            for (int shift = (width - 1) * 8; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void value(Object value, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException(
+                    "State value nested deeper than " + MAX_DEPTH + " levels"
+                );
+            }
+            if (value == null) {
+                raw(NULL);
+            } else if (value instanceof Boolean bool) {
+                raw(bool ? TRUE : FALSE);
+            } else if (value instanceof Integer i) {
+                raw(INT);
+                signed(i);
+            } else if (value instanceof Long l) {
+                raw(LONG);
+                signed(l);
+            } else if (value instanceof Double d) {
+                raw(DOUBLE);
+                fixed(Double.doubleToRawLongBits(d), 8);
+            } else if (value instanceof Float f) {
+                raw(FLOAT);
+                fixed(Float.floatToRawIntBits(f), 4);
+            } else if (value instanceof Short s) {
+                raw(SHORT);
+                fixed(s, 2);
+            } else if (value instanceof Byte b) {
+                raw(BYTE);
+                raw(b);
+            } else if (value instanceof Character c) {
+                raw(CHAR);
+                fixed(c, 2);
+            } else if (value instanceof BigInteger big) {
+                raw(BIG_INTEGER);
+                byte[] bytes = big.toByteArray();
+                varint(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (value instanceof BigDecimal big) {
+                raw(BIG_DECIMAL);
+                signed(big.scale());
+                byte[] bytes = big.unscaledValue().toByteArray();
+                varint(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (value instanceof CharSequence text) {
+                // GString -> String
+                raw(STRING);
+                string(text.toString());
+            } else if (isIntRange(value)) {
+                // Biên đã chuẩn hóa (from <= to, inclusive) + chiều duyệt
+                IntRange range = (IntRange) value;
+                raw(INT_RANGE);
+                signed(range.getFromInt());
+                signed(range.getToInt());
+                raw((byte) (range.isReverse() ? 1 : 0));
+            } else if (value instanceof Map<?, ?> map) {
+                raw(MAP);
+                varint(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    value(entry.getKey(), depth + 1);
+                    value(entry.getValue(), depth + 1);
+                }
+            } else if (value instanceof Collection<?> collection) {
+                raw(collection instanceof Set ? SET : LIST);
+                varint(collection.size());
+                for (Object item : collection) {
+                    value(item, depth + 1);
+                }
+            } else if (value.getClass().isArray()) {
+                array(value, depth);
+            } else {
+                throw new IllegalArgumentException(
+                    "Unsupported state value type " + value.getClass().getName()
+                );
+            }
+        }
+
+        private void array(Object value, int depth) {
+            if (value instanceof int[] array) {
+                raw(INT_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 4);
+                buffer.asIntBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof long[] array) {
+                raw(LONG_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 8);
+                buffer.asLongBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof double[] array) {
+                raw(DOUBLE_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 8);
+                buffer.asDoubleBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof float[] array) {
+                raw(FLOAT_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 4);
+                buffer.asFloatBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof short[] array) {
+                raw(SHORT_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 2);
+                buffer.asShortBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof char[] array) {
+                raw(CHAR_ARRAY);
+                varint(array.length);
+                ByteBuffer buffer = ByteBuffer.allocate(array.length * 2);
+                buffer.asCharBuffer().put(array);
+                write(buffer.array(), 0, buffer.capacity());
+            } else if (value instanceof byte[] array) {
+                raw(BYTE_ARRAY);
+                varint(array.length);
+                write(array, 0, array.length);
+            } else if (value instanceof boolean[] array) {
+                raw(BOOLEAN_ARRAY);
+                varint(array.length);
+                for (boolean b : array) {
+                    write(b ? 1 : 0);
+                }
+            } else if (value instanceof String[] array) {
+                raw(STRING_ARRAY);
+                varint(array.length);
+                for (String s : array) {
+                    value(s, depth + 1);
+                }
+            } else if (value.getClass() == Object[].class) {
+                Object[] array = (Object[]) value;
+                raw(OBJECT_ARRAY);
+                varint(array.length);
+                for (Object item : array) {
+                    value(item, depth + 1);
+                }
+            } else {
+                throw new IllegalArgumentException(
+                    "Unsupported state array type " + value.getClass().getName()
+                );
+            }
+        }
+    }
+
+    // ========== Decoding ==========
+
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+
+        Reader(byte[] data) {
+            this.buffer = ByteBuffer.wrap(data);
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        void seek(int position) {
+            buffer.position(position);
+        }
+
+        byte raw() {
+            return buffer.get();
+        }
+
+        long varint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long signed() {
+            long raw = varint();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        int length() {
+            long length = varint();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException(
+                    "Length " + length + " exceeds remaining data"
+                );
+            }
+            return (int) length;
+        }
+
+        String string() {
+            int length = length();
+            String value = new String(
+                buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                length,
+                StandardCharsets.UTF_8
+            );
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        byte[] bytes() {
+            byte[] bytes = new byte[length()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        Object value() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case INT:
+                    return (int) signed();
+                case LONG:
+                    return signed();
+                case DOUBLE:
+                    return buffer.getDouble();
+                case FLOAT:
+                    return buffer.getFloat();
+                case SHORT:
+                    return buffer.getShort();
+                case BYTE:
+                    return buffer.get();
+                case CHAR:
+                    return buffer.getChar();
+                case BIG_INTEGER:
+                    return new BigInteger(bytes());
+                case BIG_DECIMAL: {
+                    int scale = (int) signed();
+                    return new BigDecimal(new BigInteger(bytes()), scale);
+                }
+                case STRING:
+                    return string();
+                case INT_RANGE: {
+                    int from = (int) signed();
+                    int to = (int) signed();
+                    return buffer.get() == 1
+                        ? new IntRange(true, to, from)
+                        : new IntRange(true, from, to);
+                }
+                case LIST: {
+                    int size = (int) varint();
+                    List<Object> list = new ArrayList<>(Math.min(size, 1024));
+                    for (int i = 0; i < size; i++) {
+                        list.add(value());
+                    }
+                    return list;
+                }
+                case SET: {
+                    int size = (int) varint();
+                    Set<Object> set = new LinkedHashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        set.add(value());
+                    }
+                    return set;
+                }
+                case MAP: {
+                    int size = (int) varint();
+                    Map<Object, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        Object key = value();
+                        map.put(key, value());
+                    }
+                    return map;
+                }
+                case INT_ARRAY: {
+                    int[] array = new int[elements(4)];
+                    buffer.asIntBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 4);
+                    return array;
+                }
+                case LONG_ARRAY: {
+                    long[] array = new long[elements(8)];
+                    buffer.asLongBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 8);
+                    return array;
+                }
+                case DOUBLE_ARRAY: {
+                    double[] array = new double[elements(8)];
+                    buffer.asDoubleBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 8);
+                    return array;
+                }
+                case FLOAT_ARRAY: {
+                    float[] array = new float[elements(4)];
+                    buffer.asFloatBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 4);
+                    return array;
+                }
+                case SHORT_ARRAY: {
+                    short[] array = new short[elements(2)];
+                    buffer.asShortBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 2);
+                    return array;
+                }
+                case CHAR_ARRAY: {
+                    char[] array = new char[elements(2)];
+                    buffer.asCharBuffer().get(array);
+                    buffer.position(buffer.position() + array.length * 2);
+                    return array;
+                }
+                case BYTE_ARRAY:
+                    return bytes();
+                case BOOLEAN_ARRAY: {
+                    boolean[] array = new boolean[elements(1)];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = buffer.get() != 0;
+                    }
+                    return array;
+                }
+                case STRING_ARRAY: {
+                    String[] array = new String[(int) varint()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = (String) value();
+                    }
+                    return array;
+                }
+                case OBJECT_ARRAY: {
+                    Object[] array = new Object[(int) varint()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = value();
+                    }
+                    return array;
+                }
+                default:
+                    throw new UnsupportedOperationException(
+                        "unknown value tag " + tag
+                    );
+            }
+        }
+
+        // Số phần tử của mảng primitive, kiểm tra đủ dữ liệu
+        private int elements(int width) {
+            long count = varint();
+            if (count < 0 || count * width > buffer.remaining()) {
+                throw new IllegalArgumentException(
+                    "Array of " + count + " elements exceeds remaining data"
+                );
+            }
+            return (int) count;
+        }
+    }
+}
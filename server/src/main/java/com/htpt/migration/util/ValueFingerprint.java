@@ -0,0 +1,113 @@
+package com.htpt.migration.util;
+
+import groovy.lang.IntRange;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Fingerprint 64-bit của giá trị biến (String/Number/Boolean/List/Map lồng
+ * nhau, mảng) - dùng để phát hiện biến thay đổi giữa hai lần capture state.
+ *
+ * Duyệt theo nội dung nên hai giá trị bằng nhau (equals) luôn có cùng
+ * fingerprint; Map không phụ thuộc thứ tự duyệt. Kiểu số được tính vào
+ * fingerprint (1 và 1L khác nhau) để đổi kiểu cũng được coi là thay đổi.
+ * Range số nguyên của Groovy tính theo biên (như StateCodec), không duyệt
+ * từng phần tử - khác fingerprint với List cùng phần tử.
+ */
+public final class ValueFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ValueFingerprint() {}
+
+    public static long of(Object value) {
+        return hash(FNV_OFFSET, value);
+    }
+
+    private static long hash(long h, Object value) {
+        if (value == null) {
+            return mix(h, 0);
+        }
+        if (value instanceof String str) {
+            h = mix(h, 1);
+            for (int i = 0; i < str.length(); i++) {
+                h = mix(h, str.charAt(i));
+            }
+            return mix(h, str.length());
+        }
+        if (value instanceof Boolean bool) {
+            return mix(h, bool ? 3 : 2);
+        }
+        if (value instanceof Number number) {
+            h = hashString(mix(h, 4), number.getClass().getName());
+            return hashString(h, number.toString());
+        }
+        if (value instanceof Map<?, ?> map) {
+            // Tổng các entry -> không phụ thuộc thứ tự
+            long entries = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                long e = hash(FNV_OFFSET, entry.getKey());
+                entries += finish(hash(e, entry.getValue()));
+            }
+            return mix(mix(h, 5), entries ^ map.size());
+        }
+        if (value instanceof IntRange range && !range.isEmpty()) {
+            h = mix(mix(h, 9), range.getFromInt());
+            return mix(mix(h, range.getToInt()), range.isReverse() ? 1 : 0);
+        }
+        if (value instanceof Collection<?> collection) {
+            h = mix(h, 6);
+            for (Object item : collection) {
+                h = hash(h, item);
+            }
+            return mix(h, collection.size());
+        }
+        if (value.getClass().isArray()) {
+            return hashArray(mix(h, 8), value);
+        }
+        return hashString(mix(h, 7), value.toString());
+    }
+
+    // Mảng primitive hay gặp được duyệt trực tiếp, còn lại qua reflection
+    private static long hashArray(long h, Object array) {
+        h = hashString(h, array.getClass().getComponentType().getName());
+        if (array instanceof int[] values) {
+            for (int v : values) h = mix(h, v);
+        } else if (array instanceof long[] values) {
+            for (long v : values) h = mix(h, v);
+        } else if (array instanceof double[] values) {
+            for (double v : values) h = mix(h, Double.doubleToLongBits(v));
+        } else if (array instanceof byte[] values) {
+            for (byte v : values) h = mix(h, v);
+        } else if (array instanceof Object[] values) {
+            for (Object v : values) h = hash(h, v);
+        } else {
+            int length = Array.getLength(array);
+            for (int i = 0; i < length; i++) {
+                h = hash(h, Array.get(array, i));
+            }
+        }
+        return mix(h, Array.getLength(array));
+    }
+
+    private static long hashString(long h, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            h = mix(h, str.charAt(i));
+        }
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        return (h ^ value) * FNV_PRIME;
+    }
+
+    // Trộn thêm trước khi cộng dồn để các entry không triệt tiêu nhau
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
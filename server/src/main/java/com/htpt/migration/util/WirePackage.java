@@ -0,0 +1,69 @@
+package com.htpt.migration.util;
+
+import com.htpt.migration.model.CodePackage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dạng gửi đi của CodePackage (coordinator -> worker qua STOMP, hoặc
+ * worker -> worker qua REST): state được mã hóa bằng StateCodec để giữ
+ * nguyên kiểu (int[], long, BigDecimal...) thay vì để Jackson đổi thành JSON.
+ * Nơi nhận đã có code (theo codeHash) thì gửi không kèm code; weak
+ * migration gửi không kèm state để target chạy lại từ đầu.
+ */
+public final class WirePackage {
+
+    private WirePackage() {}
+
+    public static Map<String, Object> payload(CodePackage codePackage) {
+        return payload(codePackage, true);
+    }
+
+    public static Map<String, Object> payload(
+        CodePackage codePackage,
+        boolean withCode
+    ) {
+        return payload(codePackage, withCode, true);
+    }
+
+    public static Map<String, Object> payload(
+        CodePackage codePackage,
+        boolean withCode,
+        boolean withState
+    ) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("id", codePackage.getId());
+        payload.put("name", codePackage.getName());
+        if (withCode || codePackage.getCodeHash() == null) {
+            payload.put("code", codePackage.getCode());
+        }
+        payload.put("codeHash", codePackage.getCodeHash());
+        payload.put("entryPoint", codePackage.getEntryPoint());
+        payload.put("currentNodeId", codePackage.getCurrentNodeId());
+        payload.put("metadata", codePackage.getMetadata());
+        if (withState && codePackage.getState() != null) {
+            payload.put(
+                "state",
+                Map.of(
+                    "encoding",
+                    StateCodec.ENCODING,
+                    "data",
+                    StateCodec.encodeBase64(codePackage.getState())
+                )
+            );
+        }
+        return payload;
+    }
+
+    // Số ký tự code trong payload, 0 nếu chỉ gửi hash
+    public static long codeBytes(Map<String, Object> payload) {
+        return payload.get("code") instanceof String code ? code.length() : 0;
+    }
+
+    // Kích thước state đã mã hóa (base64) trong payload, 0 nếu không có
+    public static long stateBytes(Map<String, Object> payload) {
+        return payload.get("state") instanceof Map<?, ?> state
+            ? state.get("data").toString().length()
+            : 0;
+    }
+}
@@ -1,12 +1,19 @@
 package com.htpt.migration.websocket;
 
+import com.htpt.migration.config.StompCompression;
 import com.htpt.migration.model.CodePackage;
 import com.htpt.migration.model.Node;
 import com.htpt.migration.model.NodeMetrics;
+import com.htpt.migration.service.ChunkTransferService;
+import com.htpt.migration.service.ClusterExecutionService;
+import com.htpt.migration.service.CodeStore;
 import com.htpt.migration.service.CoordinatorService;
 import com.htpt.migration.service.LogBroadcastService;
 import com.htpt.migration.service.MigrationService;
+import com.htpt.migration.service.StateReassembler;
+import com.htpt.migration.util.StateCodec;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -26,6 +33,11 @@ public class WebSocketHandler {
     private final SimpMessagingTemplate messagingTemplate;
     private final LogBroadcastService logService;
     private final MigrationService migrationService;
+    private final StateReassembler stateReassembler;
+    private final ClusterExecutionService clusterExecutionService;
+    private final CodeStore codeStore;
+    private final StompCompression stompCompression;
+    private final ChunkTransferService chunkTransferService;
 
     // Node đăng ký
     @MessageMapping("/node/register")
@@ -43,6 +55,7 @@ public class WebSocketHandler {
             .role(Node.NodeRole.WORKER)
             .status(Node.NodeStatus.ONLINE)
             .connectedAt(Instant.now())
+            .labels(parseLabels(payload.get("labels")))
             .metrics(
                 NodeMetrics.builder()
                     .cpuUsage(Math.random() * 30) // Random initial value
@@ -54,6 +67,10 @@ public class WebSocketHandler {
             .build();
 
         coordinatorService.registerNode(node);
+        // Có thể là process worker mới -> không còn code nào đã gửi trước đó
+        codeStore.forgetNode(nodeId);
+        // Kết nối lại giữa chừng -> gửi tiếp transfer từ chunk cuối đã ack
+        chunkTransferService.resume(nodeId);
 
         // Send acknowledgment
         messagingTemplate.convertAndSend(
@@ -63,6 +80,9 @@ public class WebSocketHandler {
                 "ok",
                 "nodeId",
                 nodeId,
+                // Codec Coordinator giải nén được -> worker bật nén khi gửi
+                "compression",
+                stompCompression.getAcceptedCodecs(),
                 "timestamp",
                 System.currentTimeMillis()
             )
@@ -76,11 +96,13 @@ public class WebSocketHandler {
     public void unregisterNode(@Payload Map<String, Object> payload) {
         String nodeId = (String) payload.get("nodeId");
         coordinatorService.unregisterNode(nodeId);
+        stateReassembler.forgetNode(nodeId);
         log.info("Node {} unregistered", nodeId);
     }
 
     // Cập nhật metrics
     @MessageMapping("/node/metrics")
+    @SuppressWarnings("unchecked")
     public void updateMetrics(@Payload Map<String, Object> payload) {
         String nodeId = (String) payload.get("nodeId");
 
@@ -91,6 +113,80 @@ public class WebSocketHandler {
             .uptime(((Number) payload.getOrDefault("uptime", 0)).longValue())
             .build();
 
+        // Trạng thái hàng đợi thực thi của worker
+        Map<String, Object> executor = (Map<String, Object>) payload.get(
+            "executor"
+        );
+        if (executor != null) {
+            metrics.setExecutionSlots(number(executor, "slots").intValue());
+            metrics.setActiveExecutions(number(executor, "active").intValue());
+            metrics.setQueueDepth(number(executor, "queueDepth").intValue());
+            metrics.setQueueCapacity(
+                number(executor, "queueCapacity").intValue()
+            );
+            metrics.setRejectedExecutions(
+                number(executor, "rejected").longValue()
+            );
+            metrics.setAvgQueueWaitMs(number(executor, "avgWaitMs").longValue());
+        }
+
+        Map<String, Object> stateStore = (Map<String, Object>) payload.get(
+            "stateStore"
+        );
+        if (stateStore != null) {
+            metrics.setRetainedStates(number(stateStore, "entries").intValue());
+            metrics.setRetainedStateBytes(
+                number(stateStore, "bytes").longValue()
+            );
+            metrics.setSpilledStates(
+                number(stateStore, "spilledEntries").intValue()
+            );
+        }
+
+        Map<String, Object> resources = (Map<String, Object>) payload.get(
+            "resources"
+        );
+        if (resources != null) {
+            metrics.setScriptExecutions(
+                number(resources, "executions").longValue()
+            );
+            metrics.setScriptCpuTimeMs(number(resources, "cpuTimeMs").longValue());
+            metrics.setScriptAllocatedBytes(
+                number(resources, "allocatedBytes").longValue()
+            );
+            metrics.setScriptGcTimeMs(number(resources, "gcTimeMs").longValue());
+        }
+
+        Map<String, Object> resultMemo = (Map<String, Object>) payload.get(
+            "resultMemo"
+        );
+        if (resultMemo != null) {
+            metrics.setMemoEntries(number(resultMemo, "entries").intValue());
+            metrics.setMemoHits(number(resultMemo, "hits").longValue());
+            metrics.setMemoMisses(number(resultMemo, "misses").longValue());
+        }
+
+        // Nén message STOMP phía worker (worker -> Coordinator)
+        Map<String, Object> compression = (Map<String, Object>) payload.get(
+            "compression"
+        );
+        if (compression != null) {
+            metrics.setCompressionCodec((String) compression.get("codec"));
+            metrics.setCompressedMessages(
+                number(compression, "compressedMessages").longValue()
+            );
+            metrics.setCompressionSavedBytes(
+                number(compression, "savedBytes").longValue()
+            );
+            metrics.setCompressionRatio(
+                number(compression, "ratio").doubleValue()
+            );
+            metrics.setCompressionCpuMs(
+                number(compression, "compressCpuMs").longValue() +
+                    number(compression, "decompressCpuMs").longValue()
+            );
+        }
+
         coordinatorService.updateMetrics(nodeId, metrics);
         log.debug(
             "Metrics updated for node {}: CPU={}%, MEM={}%",
@@ -117,8 +213,23 @@ public class WebSocketHandler {
         );
     }
 
+    // Worker nhận package chỉ có codeHash nhưng không có code đó
+    @MessageMapping("/node/code-missing")
+    public void codeMissing(@Payload Map<String, Object> payload) {
+        String nodeId = (String) payload.get("nodeId");
+        String codeId = (String) payload.get("codeId");
+        String migrationId = (String) payload.get("migrationId");
+
+        log.warn("Node {} is missing the code of package {}", nodeId, codeId);
+        codeStore.markMissing(nodeId, (String) payload.get("codeHash"));
+        if (migrationId != null) {
+            migrationService.onCodeMissing(migrationId, nodeId);
+        }
+    }
+
     // Code execution completed - nhận kết quả thực từ Worker
     @MessageMapping("/node/execution-complete")
+    @SuppressWarnings("unchecked")
     public void executionComplete(@Payload Map<String, Object> payload) {
         String nodeId = (String) payload.get("nodeId");
         String codeId = (String) payload.get("codeId");
@@ -126,11 +237,25 @@ public class WebSocketHandler {
         String error = (String) payload.get("error");
         String consoleOutput = (String) payload.get("consoleOutput");
         String status = (String) payload.get("status");
+        boolean streamed = Boolean.TRUE.equals(payload.get("streamed"));
+        Map<String, Object> resources = payload.get("resources") instanceof Map
+            ? (Map<String, Object>) payload.get("resources")
+            : Map.of();
 
         log.info("=== REAL EXECUTION RESULT FROM {} ===", nodeId);
         log.info("  Code ID: {}", codeId);
         log.info("  Status: {}", status);
         log.info("  Result: {}", result);
+        if (!resources.isEmpty()) {
+            log.info(
+                "  Resources: wall {}ms, cpu {}ms, allocated {} bytes, gc {}ms ({} compilation)",
+                resources.get("wallTimeMs"),
+                resources.get("cpuTimeMs"),
+                resources.get("allocatedBytes"),
+                resources.get("gcTimeMs"),
+                resources.getOrDefault("compilation", "dynamic")
+            );
+        }
         if (consoleOutput != null && !consoleOutput.isEmpty()) {
             log.info("  Console Output:\n{}", consoleOutput);
         }
@@ -139,40 +264,93 @@ public class WebSocketHandler {
         }
         log.info("=====================================");
 
-        // Log console output to frontend
-        if (consoleOutput != null && !consoleOutput.isEmpty()) {
-            // Split by newlines and log each line
-            String[] lines = consoleOutput.split("\n");
-            for (String line : lines) {
-                if (!line.trim().isEmpty()) {
-                    logService.info(nodeId, "CONSOLE", line.trim());
-                }
-            }
+        // Log console output to frontend (nếu worker đã stream từng chunk
+        // qua /node/execution-output thì không log lại)
+        if (!streamed) {
+            logService.logConsoleOutput(nodeId, consoleOutput);
         }
 
         // Log execution result
-        if ("error".equals(status) && error != null && !error.isEmpty()) {
+        if (
+            !"completed".equals(status) && error != null && !error.isEmpty()
+        ) {
             logService.error(nodeId, "EXEC_ERROR", error);
         } else {
             logService.success(nodeId, "EXEC_RESULT", "Return: " + result);
         }
 
         // Broadcast to clients
+        Map<String, Object> execution = Map.of(
+            "nodeId",
+            nodeId,
+            "codeId",
+            codeId,
+            "result",
+            result != null ? result : "",
+            "consoleOutput",
+            consoleOutput != null ? consoleOutput : "",
+            "error",
+            error != null ? error : "",
+            "status",
+            status,
+            "resources",
+            resources,
+            "timestamp",
+            System.currentTimeMillis()
+        );
+        messagingTemplate.convertAndSend("/topic/execution/" + codeId, execution);
+
+        // Package deterministic: lưu kết quả để lần chạy sau trả về ngay
+        migrationService.recordExecutionResult(codeId, status, execution);
+
+        // Partition/reduce của scatter job -> gộp kết quả
+        clusterExecutionService.onExecutionComplete(
+            codeId,
+            status,
+            result,
+            decodeValue(payload.get("value")),
+            error,
+            number(resources, "wallTimeMs").longValue()
+        );
+    }
+
+    private List<String> parseLabels(Object labels) {
+        if (!(labels instanceof List<?> list)) return List.of();
+        return list.stream().map(String::valueOf).toList();
+    }
+
+    // Giá trị trả về nguyên kiểu do worker mã hóa (StateCodec)
+    private Object decodeValue(Object encoded) {
+        if (!(encoded instanceof String data) || data.isEmpty()) return null;
+        try {
+            return StateCodec.decodeValueBase64(data);
+        } catch (RuntimeException e) {
+            log.warn("Cannot decode execution value: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // Console output đang chạy - worker stream theo chunk
+    @MessageMapping("/node/execution-output")
+    public void executionOutput(@Payload Map<String, Object> payload) {
+        String nodeId = (String) payload.get("nodeId");
+        String codeId = (String) payload.get("codeId");
+        String text = (String) payload.get("text");
+        long seq = number(payload, "seq").longValue();
+
+        logService.logConsoleOutput(nodeId, text);
+
         messagingTemplate.convertAndSend(
-            "/topic/execution/" + codeId,
+            "/topic/execution/" + codeId + "/output",
             Map.of(
                 "nodeId",
                 nodeId,
                 "codeId",
                 codeId,
-                "result",
-                result != null ? result : "",
-                "consoleOutput",
-                consoleOutput != null ? consoleOutput : "",
-                "error",
-                error != null ? error : "",
-                "status",
-                status,
+                "seq",
+                seq,
+                "text",
+                text != null ? text : "",
                 "timestamp",
                 System.currentTimeMillis()
             )
@@ -192,6 +370,40 @@ public class WebSocketHandler {
             nodeId,
             status
         );
+        // Bước tiếp theo của migration chạy theo ack; ack "pushed" /
+        // "push-failed" của source kèm bytes, memoKey, error
+        migrationService.onMigrationAck(migrationId, nodeId, status, payload);
+    }
+
+    // Chunk của payload lớn từ worker (vd. state-captured); đang nhận thì
+    // lùi hạn chờ capture, đủ chunk thì xử lý như message thường
+    @MessageMapping("/node/chunk")
+    public void chunk(@Payload Map<String, Object> payload) {
+        chunkTransferService.receive(
+            payload,
+            (headers, received, total) ->
+                migrationService.onStateProgress(
+                    (String) headers.get("codeId"),
+                    (String) headers.get("requestId"),
+                    received,
+                    total
+                ),
+            (kind, message) -> {
+                if ("state-captured".equals(kind)) {
+                    stateCaptured(message);
+                } else {
+                    throw new IllegalArgumentException(
+                        "Unknown chunked message kind: " + kind
+                    );
+                }
+            }
+        );
+    }
+
+    // Worker ack chunk của package Coordinator gửi (/topic/node/{id}/chunk)
+    @MessageMapping("/node/chunk-ack")
+    public void chunkAck(@Payload Map<String, Object> payload) {
+        chunkTransferService.onAck(payload);
     }
 
     // State captured from worker - nhận state thực từ Worker source
@@ -200,19 +412,70 @@ public class WebSocketHandler {
     public void stateCaptured(@Payload Map<String, Object> payload) {
         String nodeId = (String) payload.get("nodeId");
         String codeId = (String) payload.get("codeId");
-        Map<String, Object> variables = (Map<String, Object>) payload.get(
-            "variables"
+        // Id của request capture (migration) mà state này trả lời
+        String requestId = (String) payload.get("requestId");
+        // Worker chỉ gửi các biến thay đổi so với version đã ack (delta),
+        // mã hóa bằng StateCodec; Worker cũ gửi JSON (variables, ...)
+        CodePackage.CodeState captured = StateCodec.ENCODING.equals(
+                payload.get("stateEncoding")
+            )
+            ? StateCodec.decodeBase64((String) payload.get("state"))
+            : CodePackage.CodeState.builder()
+                .variables((Map<String, Object>) payload.get("variables"))
+                .executionPoint(number(payload, "executionPoint").intValue())
+                .loopIteration(number(payload, "loopIteration").longValue())
+                .output((String) payload.get("output"))
+                .build();
+        Map<String, Object> changed = captured.getVariables();
+        List<String> removed = (List<String>) payload.get("removed");
+        long version = number(payload, "version").longValue();
+        long baseVersion = number(payload, "baseVersion").longValue();
+        int executionPoint = captured.getExecutionPoint();
+        long loopIteration = captured.getLoopIteration();
+        String output = captured.getOutput();
+
+        Map<String, Object> variables = stateReassembler.apply(
+            nodeId,
+            codeId,
+            version,
+            baseVersion,
+            changed,
+            removed
+        );
+        if (variables == null) {
+            // Không còn version làm base -> Worker bỏ base, gửi lại toàn bộ
+            messagingTemplate.convertAndSend(
+                "/topic/node/" + nodeId + "/state-ack",
+                Map.of("codeId", codeId, "resync", true)
+            );
+            messagingTemplate.convertAndSend(
+                "/topic/node/" + nodeId + "/capture-state",
+                requestId != null
+                    ? Map.of("codeId", codeId, "full", true, "requestId", requestId)
+                    : Map.of("codeId", codeId, "full", true)
+            );
+            return;
+        }
+        messagingTemplate.convertAndSend(
+            "/topic/node/" + nodeId + "/state-ack",
+            Map.of("codeId", codeId, "version", version)
         );
-        int executionPoint = ((Number) payload.getOrDefault(
-                "executionPoint",
-                0
-            )).intValue();
-        String output = (String) payload.get("output");
 
         log.info("=== REAL STATE CAPTURED FROM {} ===", nodeId);
         log.info("  Code ID: {}", codeId);
+        log.info(
+            "  Version: {} (base {}, {} changed, {} removed)",
+            version,
+            baseVersion,
+            changed != null ? changed.size() : 0,
+            removed != null ? removed.size() : 0
+        );
         log.info("  Variables: {}", variables);
-        log.info("  Execution Point: {}", executionPoint);
+        log.info(
+            "  Execution Point: {} (loop iteration {})",
+            executionPoint,
+            loopIteration
+        );
         log.info("  Output: {}", output);
         log.info("===================================");
 
@@ -221,8 +484,10 @@ public class WebSocketHandler {
             nodeId,
             "STATE_CAPTURED",
             String.format(
-                "Captured %d variables",
-                variables != null ? variables.size() : 0
+                "Captured %d variables (v%d, %d changed)",
+                variables.size(),
+                version,
+                changed != null ? changed.size() : 0
             )
         );
 
@@ -230,9 +495,10 @@ public class WebSocketHandler {
         CodePackage.CodeState state = CodePackage.CodeState.builder()
             .variables(variables)
             .executionPoint(executionPoint)
+            .loopIteration(loopIteration)
             .output(output)
             .build();
-        migrationService.saveCapturedState(codeId, state);
+        migrationService.saveCapturedState(codeId, state, requestId);
 
         // Broadcast để frontend biết
         messagingTemplate.convertAndSend(
@@ -243,9 +509,13 @@ public class WebSocketHandler {
                 "codeId",
                 codeId,
                 "variables",
-                variables != null ? variables : Map.of(),
+                variables,
+                "version",
+                version,
                 "executionPoint",
                 executionPoint,
+                "loopIteration",
+                loopIteration,
                 "output",
                 output != null ? output : "",
                 "timestamp",
@@ -253,4 +523,9 @@ public class WebSocketHandler {
             )
         );
     }
+
+    private static Number number(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Number ? (Number) value : 0;
+    }
 }
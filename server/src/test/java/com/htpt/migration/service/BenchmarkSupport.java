@@ -0,0 +1,95 @@
+package com.htpt.migration.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Dùng chung cho các benchmark (chỉ chạy khi có -Dbenchmark=true):
+ * dựng CodeExecutorService thật trong một Spring context nhỏ (không
+ * STOMP, không Coordinator) và đo heap / số thread lúc cao nhất.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {}
+
+    // properties đè lên giá trị mặc định của @Value (node.executor.*)
+    static AnnotationConfigApplicationContext executor(
+        Map<String, Object> properties
+    ) {
+        Map<String, Object> all = new HashMap<>();
+        all.put("node.executor.loader.warm-up", "true");
+        all.putAll(properties);
+        AnnotationConfigApplicationContext context =
+            new AnnotationConfigApplicationContext();
+        context
+            .getEnvironment()
+            .getPropertySources()
+            .addFirst(new MapPropertySource("benchmark", all));
+        context.register(
+            CompiledScriptCache.class,
+            ScriptExecutionEngine.class,
+            ExecutionStateStore.class,
+            CodeExecutorService.class
+        );
+        context.refresh();
+        return context;
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        return Integer.getInteger(name, defaultValue);
+    }
+
+    /** Lấy mẫu heap đã dùng + số thread mỗi 10ms cho tới close() */
+    static final class PeakSampler implements AutoCloseable {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final AtomicLong peakHeap = new AtomicLong();
+        private final Thread sampler;
+        private volatile boolean running = true;
+
+        PeakSampler() {
+            System.gc();
+            threads.resetPeakThreadCount();
+            sampler = new Thread(
+                () -> {
+                    while (running) {
+                        peakHeap.accumulateAndGet(
+                            memory.getHeapMemoryUsage().getUsed(),
+                            Math::max
+                        );
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                },
+                "benchmark-sampler"
+            );
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        long peakHeapMb() {
+            return peakHeap.get() / (1024 * 1024);
+        }
+
+        // Chỉ platform thread (virtual thread không được ThreadMXBean đếm)
+        int peakPlatformThreads() {
+            return threads.getPeakThreadCount();
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            running = false;
+            sampler.join();
+        }
+    }
+}
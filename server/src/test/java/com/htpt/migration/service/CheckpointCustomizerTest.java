@@ -0,0 +1,135 @@
+package com.htpt.migration.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.MissingPropertyException;
+import groovy.lang.Script;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.junit.jupiter.api.Test;
+
+class CheckpointCustomizerTest {
+
+    @Test
+    void uninitializedPrimitiveStartsAtDefault() {
+        String code = "int count\nfor (i in 1..3) { count++ }\ncount";
+        assertEquals(3, runPlain(code));
+        assertEquals(3, runInstrumented(code, newTracker(0, 0, Set.of()), new Binding()));
+    }
+
+    @Test
+    void typedLocalKeepsDeclaredTypeAfterReassignment() {
+        String code = "String s = 'a'\ns = 3\ns";
+        assertEquals("3", runPlain(code));
+        Object result = runInstrumented(code, newTracker(0, 0, Set.of()), new Binding());
+        assertEquals("3", result);
+    }
+
+    @Test
+    void scriptMethodsDoNotSeeTopLevelLocals() {
+        String code = "def x = 5\ndef f() { x }\nf()";
+        assertThrows(MissingPropertyException.class, () -> runPlain(code));
+        assertThrows(
+            MissingPropertyException.class,
+            () -> runInstrumented(code, newTracker(0, 0, Set.of()), new Binding())
+        );
+    }
+
+    @Test
+    void snapshotIncludesDeclaredLocals() throws Exception {
+        String code = "int total = 0\nfor (int i = 0; i < 5; i++) { total += i }\ntotal";
+        ScriptCheckpoints.Tracker tracker = newTracker(0, 0, Set.of());
+        CompletableFuture<ScriptCheckpoints.Checkpoint> snapshot =
+            tracker.requestSnapshot(false);
+        assertEquals(10, runInstrumented(code, tracker, new Binding()));
+
+        ScriptCheckpoints.Checkpoint checkpoint = snapshot.get();
+        assertEquals(1, checkpoint.executionPoint());
+        assertEquals(Map.of("total", 0), checkpoint.variables());
+    }
+
+    @Test
+    void snapshotDoesNotShareMutableValuesWithScript() throws Exception {
+        String code = "def items = [1]\nfor (i in 2..4) { items << i }\nitems";
+        ScriptCheckpoints.Tracker tracker = newTracker(0, 0, Set.of());
+        CompletableFuture<ScriptCheckpoints.Checkpoint> snapshot =
+            tracker.requestSnapshot(false);
+        assertEquals(List.of(1, 2, 3, 4), runInstrumented(code, tracker, new Binding()));
+
+        // Script sửa tiếp list sau safepoint: snapshot vẫn giữ giá trị lúc chụp
+        assertEquals(Map.of("items", List.of(1)), snapshot.get().variables());
+    }
+
+    @Test
+    void concurrentRequestsShareOneSnapshotAndMergePause() throws Exception {
+        String code = "int total = 0\nfor (int i = 0; i < 5; i++) { total += i }\ntotal";
+        ScriptCheckpoints.Tracker tracker = newTracker(0, 0, Set.of());
+        CompletableFuture<ScriptCheckpoints.Checkpoint> first =
+            tracker.requestSnapshot(false);
+        // Request thứ hai trước safepoint kế tiếp: không bỏ rơi request đầu
+        assertSame(first, tracker.requestSnapshot(true));
+
+        CompletableFuture<Object> run = CompletableFuture.supplyAsync(() ->
+            runInstrumented(code, tracker, new Binding())
+        );
+        assertEquals(1, first.get().executionPoint());
+        // pause đã được gộp -> script đang bị giữ tại snapshot đó
+        assertSame(first, tracker.requestSnapshot(false));
+        tracker.release();
+        assertEquals(10, run.get());
+    }
+
+    @Test
+    void resumesLocalsAndLoopCounterFromState() {
+        String code = "int total = 0\nfor (int i = 0; i < 5; i++) { total += i }\ntotal";
+        // Snapshot ở đầu iteration thứ 4 (i = 3): 0 + 1 + 2 = 3
+        Binding binding = new Binding();
+        binding.setVariable("total", 3);
+        binding.setVariable("i", 3);
+        ScriptCheckpoints.Tracker tracker = newTracker(1, 3, Set.of("total", "i"));
+
+        assertEquals(10, runInstrumented(code, tracker, binding));
+        assertFalse(binding.hasVariable("total"));
+        assertFalse(binding.hasVariable("i"));
+    }
+
+    private static ScriptCheckpoints.Tracker newTracker(
+        int resumePoint,
+        long resumeIteration,
+        Set<String> restoredVariables
+    ) {
+        return new ScriptCheckpoints.Tracker(
+            resumePoint,
+            resumeIteration,
+            value -> true,
+            1000,
+            restoredVariables
+        );
+    }
+
+    private static Object runPlain(String code) {
+        return new GroovyShell().evaluate(code);
+    }
+
+    private static Object runInstrumented(
+        String code,
+        ScriptCheckpoints.Tracker tracker,
+        Binding binding
+    ) {
+        CompilerConfiguration config = new CompilerConfiguration();
+        config.addCompilationCustomizers(new CheckpointCustomizer());
+        Script script = new GroovyShell(binding, config).parse(code);
+        ScriptCheckpoints.bind(tracker);
+        try {
+            return script.run();
+        } finally {
+            ScriptCheckpoints.unbind();
+            tracker.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.htpt.migration.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * So sánh compile động (có checkpoint) và compile tĩnh (metadata
+ * compileStatic) trên cùng script: thời gian tốt nhất trong N lần chạy
+ * với script đã ở trong cache, CPU time và byte cấp phát của lần đó.
+ *
+ * Chạy: mvn -B test -Dtest=CompilationModeBenchmark -Dbenchmark=true
+ * (tùy chọn -Dbenchmark.runs=N)
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class CompilationModeBenchmark {
+
+    private static final int RUNS = BenchmarkSupport.intProperty(
+        "benchmark.runs",
+        5
+    );
+
+    private static final Map<String, String> WORKLOADS = new LinkedHashMap<>();
+
+    static {
+        WORKLOADS.put(
+            "int modulo 20M",
+            "int count = 0\n" +
+            "for (int i = 0; i < 20000000; i++) { if (i % 3 == 0) count++ }\n" +
+            "count"
+        );
+        WORKLOADS.put(
+            "nested sqrt 1000x1000",
+            "double s = 0\n" +
+            "for (int i = 0; i < 1000; i++) {\n" +
+            "    for (int j = 0; j < 1000; j++) { s += Math.sqrt(i * j) }\n" +
+            "}\n" +
+            "s"
+        );
+        WORKLOADS.put(
+            "list fill+filter 2M",
+            "List<Integer> xs = new ArrayList<>()\n" +
+            "for (int i = 0; i < 2000000; i++) { xs.add(i) }\n" +
+            "int n = 0\n" +
+            "for (Integer x : xs) { if (x % 2 == 0) n++ }\n" +
+            "n"
+        );
+    }
+
+    @Test
+    void staticVersusDynamic() throws Exception {
+        try (
+            AnnotationConfigApplicationContext context =
+                BenchmarkSupport.executor(Map.of())
+        ) {
+            CodeExecutorService executor = context.getBean(
+                CodeExecutorService.class
+            );
+            System.out.printf(
+                "%nbest of %d runs, warm cache%n%-22s %-8s %10s %10s %14s%n",
+                RUNS,
+                "workload",
+                "mode",
+                "wall ms",
+                "cpu ms",
+                "allocated MB"
+            );
+            for (Map.Entry<String, String> workload : WORKLOADS.entrySet()) {
+                Object dynamicValue = null;
+                for (String mode : new String[] { "dynamic", "static" }) {
+                    CodeExecutorService.ExecutionResult best = best(
+                        executor,
+                        workload.getValue(),
+                        "static".equals(mode)
+                    );
+                    assertEquals(mode, best.getCompilation(), workload.getKey());
+                    if (dynamicValue == null) {
+                        dynamicValue = best.getValue();
+                    } else {
+                        assertEquals(
+                            dynamicValue,
+                            best.getValue(),
+                            workload.getKey()
+                        );
+                    }
+                    System.out.printf(
+                        "%-22s %-8s %10d %10d %14d%n",
+                        workload.getKey(),
+                        mode,
+                        best.getExecutionTime(),
+                        best.getCpuTimeMs(),
+                        best.getAllocatedBytes() / (1024 * 1024)
+                    );
+                }
+            }
+        }
+    }
+
+    // Lần đầu compile + nạp class (không tính), rồi lấy lần nhanh nhất
+    private CodeExecutorService.ExecutionResult best(
+        CodeExecutorService executor,
+        String code,
+        boolean compileStatic
+    ) throws Exception {
+        CodeExecutorService.ExecutionOptions options =
+            CodeExecutorService.ExecutionOptions.builder()
+                .compileStatic(compileStatic)
+                .build();
+        executor.execute("warm-up", code, "benchmark", options).get();
+        CodeExecutorService.ExecutionResult best = null;
+        for (int i = 0; i < RUNS; i++) {
+            CodeExecutorService.ExecutionResult result = executor
+                .execute("run-" + i, code, "benchmark", options)
+                .get();
+            assertEquals("completed", result.getStatus(), result.getError());
+            if (
+                best == null ||
+                result.getExecutionTime() < best.getExecutionTime()
+            ) {
+                best = result;
+            }
+        }
+        return best;
+    }
+}
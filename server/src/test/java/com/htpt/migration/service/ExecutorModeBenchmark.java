@@ -0,0 +1,136 @@
+package com.htpt.migration.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * So sánh node.executor.mode = platform / virtual trên cùng một tải:
+ * thời gian chạy hết, throughput, heap và số platform thread lúc cao nhất.
+ *
+ * Chạy: mvn -B test -Dtest=ExecutorModeBenchmark -Dbenchmark=true
+ * (tùy chọn -Dbenchmark.executions=N, -Dbenchmark.sleepMs=N)
+ *
+ * "platform x N" là pool có một thread cho mỗi script (slots = N) để so
+ * chi phí thread với virtual mode ở cùng mức song song; stack của platform
+ * thread nằm ngoài heap nên xem thêm cột threads.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ExecutorModeBenchmark {
+
+    private static final int EXECUTIONS = BenchmarkSupport.intProperty(
+        "benchmark.executions",
+        500
+    );
+    private static final int SLEEP_MS = BenchmarkSupport.intProperty(
+        "benchmark.sleepMs",
+        50
+    );
+
+    @Test
+    void blockingScripts() throws Exception {
+        compare(
+            "sleep " + SLEEP_MS + "ms",
+            "Thread.sleep(" + SLEEP_MS + ")\n1",
+            EXECUTIONS
+        );
+    }
+
+    @Test
+    void cpuBoundScripts() throws Exception {
+        compare(
+            "cpu loop 200k",
+            "long s = 0\nfor (int i = 0; i < 200000; i++) { s += i % 7 }\ns",
+            Math.max(1, EXECUTIONS / 5)
+        );
+    }
+
+    private void compare(String workload, String code, int executions)
+        throws Exception {
+        Map<String, Map<String, Object>> configs = new LinkedHashMap<>();
+        configs.put("platform", Map.of("node.executor.mode", "platform"));
+        configs.put(
+            "platform x " + executions,
+            Map.of(
+                "node.executor.mode",
+                "platform",
+                "node.executor.slots",
+                executions
+            )
+        );
+        configs.put("virtual", Map.of("node.executor.mode", "virtual"));
+
+        System.out.printf(
+            "%n%s, %d executions, %d cores%n%-16s %10s %12s %14s %10s%n",
+            workload,
+            executions,
+            Runtime.getRuntime().availableProcessors(),
+            "mode",
+            "wall ms",
+            "exec/s",
+            "peak heap MB",
+            "threads"
+        );
+        for (Map.Entry<String, Map<String, Object>> config : configs.entrySet()) {
+            Map<String, Object> properties = new LinkedHashMap<>(
+                config.getValue()
+            );
+            // Hàng đợi đủ chỗ cho cả tải: so throughput, không so từ chối
+            properties.put("node.executor.queue-capacity", executions);
+            run(config.getKey(), properties, code, executions);
+        }
+    }
+
+    private void run(
+        String name,
+        Map<String, Object> properties,
+        String code,
+        int executions
+    ) throws Exception {
+        try (
+            AnnotationConfigApplicationContext context =
+                BenchmarkSupport.executor(properties)
+        ) {
+            CodeExecutorService executor = context.getBean(
+                CodeExecutorService.class
+            );
+            // Compile trước (cache script) để chỉ đo phần thực thi
+            executor.execute("warm-up", code, "benchmark").get();
+
+            long elapsedMs;
+            List<CompletableFuture<CodeExecutorService.ExecutionResult>> runs =
+                new ArrayList<>();
+            BenchmarkSupport.PeakSampler sampler =
+                new BenchmarkSupport.PeakSampler();
+            try (sampler) {
+                long start = System.nanoTime();
+                for (int i = 0; i < executions; i++) {
+                    runs.add(executor.execute("run-" + i, code, "benchmark"));
+                }
+                CompletableFuture.allOf(runs.toArray(CompletableFuture[]::new)).join();
+                elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            }
+
+            long completed = runs
+                .stream()
+                .filter(run -> "completed".equals(run.join().getStatus()))
+                .count();
+            System.out.printf(
+                "%-16s %10d %12.1f %14d %10d%n",
+                name,
+                elapsedMs,
+                executions * 1000.0 / Math.max(1, elapsedMs),
+                sampler.peakHeapMb(),
+                sampler.peakPlatformThreads()
+            );
+            assertEquals(executions, completed, name + ": not all completed");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.htpt.migration.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.htpt.migration.model.CodePackage;
+import com.htpt.migration.model.Migration;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class MigrationServiceTest {
+
+    @Test
+    void cancelledSourceDoesNotDropTargetMemoKey() {
+        MigrationService service = service();
+        Migration migration = startedOnTarget(service, "worker-1", "worker-2");
+
+        // Source bị stop cùng lúc target bắt đầu chạy -> báo cancelled sau
+        service.recordExecutionResult(
+            migration.getCodeId(),
+            "cancelled",
+            Map.of("nodeId", "worker-1", "status", "cancelled")
+        );
+        assertEquals(0, service.getResultMemoStats().get("entries"));
+
+        service.recordExecutionResult(
+            migration.getCodeId(),
+            "completed",
+            Map.of("nodeId", "worker-2", "status", "completed", "result", "42")
+        );
+        assertEquals(1, service.getResultMemoStats().get("entries"));
+    }
+
+    private static MigrationService service() {
+        // Chỉ cần broadcast (bỏ qua); các service còn lại không được dùng
+        SimpMessagingTemplate messaging = new SimpMessagingTemplate(
+            (message, timeout) -> true
+        );
+        MigrationService service = new MigrationService(
+            null,
+            messaging,
+            new LogBroadcastService(messaging),
+            null,
+            null,
+            null,
+            null
+        );
+        ReflectionTestUtils.setField(service, "memoMaxEntries", 16);
+        ReflectionTestUtils.setField(service, "memoMaxBytes", 1L << 20);
+        service.init();
+        return service;
+    }
+
+    // Đưa migration tới bước STARTING: target đã nhận package và execute
+    @SuppressWarnings("unchecked")
+    private static Migration startedOnTarget(
+        MigrationService service,
+        String source,
+        String target
+    ) {
+        CodePackage codePackage = CodePackage.builder()
+            .id("code-1")
+            .code("21 * 2")
+            .currentNodeId(target)
+            .metadata(Map.of("deterministic", true))
+            .build();
+        Migration migration = Migration.builder()
+            .id("mig-1")
+            .codeId(codePackage.getId())
+            .sourceNodeId(source)
+            .targetNodeId(target)
+            .type(Migration.MigrationType.WEAK)
+            .status(Migration.MigrationStatus.IN_PROGRESS)
+            .phaseDurations(new HashMap<>())
+            .build();
+        ((Map<String, CodePackage>) ReflectionTestUtils.getField(
+                service,
+                "codePackages"
+            )).put(codePackage.getId(), codePackage);
+        ReflectionTestUtils.invokeMethod(service, "startOnTarget", migration);
+        return migration;
+    }
+}
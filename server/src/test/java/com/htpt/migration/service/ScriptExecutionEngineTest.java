@@ -0,0 +1,85 @@
+package com.htpt.migration.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ScriptExecutionEngineTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = { "platform", "virtual" })
+    void withdrawnTaskGivesBackItsQueueSlot(String mode) throws Exception {
+        ScriptExecutionEngine engine = engine(mode);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            ScriptExecutionEngine.Submission<String> blocker = engine.submit(
+                () -> {
+                    running.countDown();
+                    await(release);
+                    return "done";
+                },
+                () -> "withdrawn"
+            );
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            ScriptExecutionEngine.Submission<String> queued = engine.submit(
+                () -> "ran",
+                () -> "withdrawn"
+            );
+            assertTrue(engine.isSaturated());
+
+            assertTrue(queued.withdraw());
+            assertEquals("withdrawn", queued.result().get(5, TimeUnit.SECONDS));
+            assertFalse(blocker.withdraw());
+            awaitQueueDepth(engine, 0);
+
+            // Chỗ trống lại ngay -> nhận được task mới, task này chạy bình thường
+            ScriptExecutionEngine.Submission<String> next = engine.submit(
+                () -> "ran",
+                () -> "withdrawn"
+            );
+            release.countDown();
+            assertEquals("done", blocker.result().get(5, TimeUnit.SECONDS));
+            assertEquals("ran", next.result().get(5, TimeUnit.SECONDS));
+            assertFalse(next.withdraw());
+            assertEquals(1L, engine.getStats().get("withdrawn"));
+        } finally {
+            release.countDown();
+            engine.shutdown();
+        }
+    }
+
+    private static ScriptExecutionEngine engine(String mode) {
+        ScriptExecutionEngine engine = new ScriptExecutionEngine();
+        ReflectionTestUtils.setField(engine, "mode", mode);
+        ReflectionTestUtils.setField(engine, "configuredSlots", 1);
+        ReflectionTestUtils.setField(engine, "queueCapacity", 1);
+        engine.init();
+        return engine;
+    }
+
+    // Virtual: thread bị interrupt rời Semaphore bất đồng bộ
+    private static void awaitQueueDepth(ScriptExecutionEngine engine, int depth)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (
+            !Integer.valueOf(depth).equals(engine.getStats().get("queueDepth")) &&
+            System.currentTimeMillis() < deadline
+        ) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, engine.getStats().get("queueDepth"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
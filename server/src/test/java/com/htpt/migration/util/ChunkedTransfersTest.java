@@ -0,0 +1,80 @@
+package com.htpt.migration.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ChunkedTransfersTest {
+
+    private final List<Map<String, Object>> frames = new ArrayList<>();
+    private final ChunkedTransfers sender = transfers((target, frame) ->
+        frames.add(frame)
+    );
+    private final ChunkedTransfers receiver = transfers((target, frame) -> {});
+
+    @Test
+    void rejectsCountThatDoesNotMatchTotalBytes() {
+        sender.send("node", "receive", new byte[3000], null, null);
+        Map<String, Object> frame = new HashMap<>(frames.get(0));
+        frame.put("count", Integer.MAX_VALUE);
+
+        ChunkedTransfers.Received received = receiver.onChunk(frame, "node");
+
+        assertTrue(received.ack().containsKey("error"));
+        assertNull(received.completed());
+        assertEquals(0, receiver.getStats().get("receiving"));
+    }
+
+    @Test
+    void rejectsChunkSmallerThanMinimum() {
+        sender.send("node", "receive", new byte[3000], null, null);
+        Map<String, Object> frame = new HashMap<>(frames.get(0));
+        frame.put("chunkSize", 1);
+        frame.put("count", 3000);
+
+        ChunkedTransfers.Received received = receiver.onChunk(frame, "node");
+
+        assertTrue(received.ack().containsKey("error"));
+        assertEquals(0, receiver.getStats().get("receiving"));
+    }
+
+    @Test
+    void completionIsRememberedOnlyAfterMarkHandled() {
+        sender.send("node", "receive", new byte[3000], null, null);
+        assertEquals(3, frames.size());
+
+        ChunkedTransfers.Received last = null;
+        for (Map<String, Object> frame : frames) {
+            last = receiver.onChunk(frame, "node");
+        }
+        assertNotNull(last.completed());
+        // Handler lỗi (không markHandled): chunk gửi lại không được ack
+        // "complete" như thể payload đã dùng
+        ChunkedTransfers.Received resent = receiver.onChunk(
+            frames.get(2),
+            "node"
+        );
+        assertNull(resent.ack().get("complete"));
+        assertEquals(0L, receiver.getStats().get("completedTransfers"));
+
+        // Sender gửi lại từ đầu -> nhận lại đủ payload (chunk 2 đã có sẵn)
+        ChunkedTransfers.Completed completed = null;
+        for (Map<String, Object> frame : frames.subList(0, 2)) {
+            completed = receiver.onChunk(frame, "node").completed();
+        }
+        assertNotNull(completed);
+        receiver.markHandled(completed);
+        resent = receiver.onChunk(frames.get(2), "node");
+        assertEquals(true, resent.ack().get("complete"));
+        assertNull(resent.completed());
+        assertEquals(1L, receiver.getStats().get("completedTransfers"));
+    }
+
+    private static ChunkedTransfers transfers(ChunkedTransfers.ChunkSink sink) {
+        return new ChunkedTransfers(1024, 8, 2000, 5, 1 << 20, 60_000, sink);
+    }
+}
@@ -0,0 +1,77 @@
+package com.htpt.migration.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.htpt.migration.model.CodePackage;
+import groovy.lang.IntRange;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class StateCodecTest {
+
+    @Test
+    void intRangesRoundTripByBounds() {
+        Map<String, Object> variables = Map.of(
+            "up", new IntRange(true, 1, 5),
+            "down", new IntRange(true, 5, 1),
+            "exclusive", new IntRange(false, 0, 4),
+            "huge", new IntRange(true, 0, Integer.MAX_VALUE - 1)
+        );
+
+        Map<String, Object> copy = StateCodec.copyVariables(variables);
+
+        assertEquals(List.of(1, 2, 3, 4, 5), copy.get("up"));
+        assertEquals(List.of(5, 4, 3, 2, 1), copy.get("down"));
+        assertEquals(List.of(0, 1, 2, 3), copy.get("exclusive"));
+        assertInstanceOf(IntRange.class, copy.get("huge"));
+        assertEquals(Integer.MAX_VALUE, ((IntRange) copy.get("huge")).size());
+        // Hai biên + chiều, không phải từng phần tử
+        assertTrue(
+            StateCodec.encode(
+                CodePackage.CodeState.builder().variables(variables).build()
+            ).length < 100
+        );
+    }
+
+    @Test
+    void hugeRangeIsSupportedWithoutWalkingIt() {
+        List<Object> value = List.of(new IntRange(true, 0, Integer.MAX_VALUE - 1));
+        assertTimeoutPreemptively(
+            Duration.ofSeconds(1),
+            () -> assertTrue(StateCodec.supports(value))
+        );
+    }
+
+    @Test
+    void oversizedCollectionsAreNotSupported() {
+        int limit = 1 << 20;
+        assertTrue(StateCodec.supports(Collections.nCopies(limit, 1)));
+        assertFalse(StateCodec.supports(Collections.nCopies(limit + 1, 1)));
+        assertFalse(
+            StateCodec.supports(Map.of("items", Collections.nCopies(limit + 1, "x")))
+        );
+    }
+
+    @Test
+    void emptyRangeIsEncodedAsList() {
+        Map<String, Object> copy = StateCodec.copyVariables(
+            Map.of("empty", new IntRange(false, 1, 1))
+        );
+        assertEquals(List.of(), copy.get("empty"));
+    }
+
+    @Test
+    void rangeFingerprintDependsOnBounds() {
+        assertEquals(
+            ValueFingerprint.of(new IntRange(true, 1, 1000)),
+            ValueFingerprint.of(new IntRange(true, 1, 1000))
+        );
+        assertNotEquals(
+            ValueFingerprint.of(new IntRange(true, 1, 1000)),
+            ValueFingerprint.of(new IntRange(true, 1000, 1))
+        );
+    }
+}